@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only store of encoded access units, e.g. the output of an encoder that is fed to
+ * a decoder later.
+ * <p>
+ * The data of all units is packed into an arena of large segments, so adding a unit is one
+ * copy into the arena and no allocation; the size, flags and timestamp of every unit are
+ * kept in primitive arrays.  Segments are direct buffers until the arena reaches the
+ * memory limit given to the constructor, after that they are mapped from a temp file, so
+ * long streams don't have to fit in memory.  Units are handed out as read-only slices of
+ * the arena, without copying.
+ * <p>
+ * Not thread-safe.
+ */
+class AccessUnitStore {
+    private static final String TAG = "AccessUnitStore";
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long mMaxMemoryBytes;
+    private final File mTempDir;
+
+    private final ArrayList<ByteBuffer> mSegments = new ArrayList<ByteBuffer>();
+    private ByteBuffer mSegment;                    // last segment, being filled
+    private long mMemoryBytes;                      // in direct segments
+    private long mTotalBytes;                       // of all units
+
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private long mSpillBytes;                       // mapped from the spill file
+
+    private int mCount;
+    private int[] mSegmentIndexes = new int[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private int[] mFlags = new int[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+
+    /**
+     * @param maxMemoryBytes direct memory used before spilling to a temp file
+     * @param tempDir directory for the temp file, or null for the default one
+     */
+    public AccessUnitStore(long maxMemoryBytes, File tempDir) {
+        mMaxMemoryBytes = maxMemoryBytes;
+        mTempDir = tempDir;
+    }
+
+    /**
+     * Appends a unit.  Advances buf.position to buf.limit.
+     */
+    public void add(ByteBuffer buf, int flags, long time) {
+        int size = buf.remaining();
+        if (mSegment == null || mSegment.remaining() < size) {
+            mSegment = allocateSegment(Math.max(SEGMENT_SIZE, size));
+            mSegments.add(mSegment);
+        }
+
+        if (mCount == mSizes.length) {
+            int capacity = mCount * 2;
+            mSegmentIndexes = Arrays.copyOf(mSegmentIndexes, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mTimes = Arrays.copyOf(mTimes, capacity);
+        }
+        mSegmentIndexes[mCount] = mSegments.size() - 1;
+        mOffsets[mCount] = mSegment.position();
+        mSizes[mCount] = size;
+        mFlags[mCount] = flags;
+        mTimes[mCount] = time;
+        mCount++;
+
+        mSegment.put(buf);
+        mTotalBytes += size;
+    }
+
+    /**
+     * Returns the number of units.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the total size of the data of all units.
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Returns whether some of the units are held in the temp file.
+     */
+    public boolean isSpilled() {
+        return mSpillFile != null;
+    }
+
+    /**
+     * Returns the data of unit N, as a read-only buffer from position 0 to the unit size.
+     * The buffer shares the store's memory; it stays valid until the store is released.
+     */
+    public ByteBuffer get(int index) {
+        checkIndex(index);
+        ByteBuffer data = mSegments.get(mSegmentIndexes[index]).asReadOnlyBuffer();
+        data.limit(mOffsets[index] + mSizes[index]);
+        data.position(mOffsets[index]);
+        return data.slice();
+    }
+
+    /**
+     * Returns the size of unit N.
+     */
+    public int getSize(int index) {
+        checkIndex(index);
+        return mSizes[index];
+    }
+
+    /**
+     * Returns the flags of unit N.
+     */
+    public int getFlags(int index) {
+        checkIndex(index);
+        return mFlags[index];
+    }
+
+    /**
+     * Returns the timestamp of unit N.
+     */
+    public long getTime(int index) {
+        checkIndex(index);
+        return mTimes[index];
+    }
+
+    /**
+     * Writes the data of all units to a file as a contiguous stream.
+     */
+    public void writeTo(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            FileChannel channel = fos.getChannel();
+            for (int i = 0; i < mCount; i++) {
+                ByteBuffer data = get(i);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Drops all units and deletes the temp file.  Buffers returned by {@link #get} must not
+     * be used afterwards.
+     */
+    public void release() {
+        mSegments.clear();
+        mSegment = null;
+        mCount = 0;
+        mMemoryBytes = 0;
+        mTotalBytes = 0;
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error while closing " + mSpillFile, e);
+            }
+            mSpillRaf = null;
+        }
+        if (mSpillFile != null) {
+            if (!mSpillFile.delete()) {
+                Log.w(TAG, "unable to delete " + mSpillFile);
+            }
+            mSpillFile = null;
+        }
+        mSpillBytes = 0;
+    }
+
+    private ByteBuffer allocateSegment(int size) {
+        if (mMemoryBytes + size <= mMaxMemoryBytes) {
+            mMemoryBytes += size;
+            return ByteBuffer.allocateDirect(size);
+        }
+        try {
+            if (mSpillRaf == null) {
+                mSpillFile = File.createTempFile("access_units", ".bin", mTempDir);
+                mSpillRaf = new RandomAccessFile(mSpillFile, "rw");
+                Log.d(TAG, "spilling to " + mSpillFile + " after " + mMemoryBytes + " bytes");
+            }
+            // Mapping past the end of the file grows it.
+            ByteBuffer segment = mSpillRaf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    mSpillBytes, size);
+            mSpillBytes += size;
+            return segment;
+        } catch (IOException e) {
+            throw new RuntimeException("unable to spill access units to a file", e);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("unit " + index + " of " + mCount);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Compares 16 bit PCM audio with a reference while it is being decoded.
+ * <p>
+ * Samples are fed in chunks as they come out of the decoder, and the squared error, the
+ * signal power and the peak error are accumulated per channel, so the decode never has to
+ * be held in memory.  Samples past the end of the reference are counted but not compared.
+ * <p>
+ * With a maximum RMSE set, the comparison knows the total error it may accumulate over the
+ * whole reference.  Since the error only grows, {@link #isBudgetExceeded} becomes true as
+ * soon as the final RMSE can no longer be within the limit, and the caller can stop.
+ */
+public class AudioComparator {
+    private final short[] mReference;   // null to compare with silence
+    private int mChannelCount = 1;
+    private double mErrorBudget = Double.POSITIVE_INFINITY;
+
+    private int mCount;
+    private long[] mErrorSquared = new long[1];
+    private long[] mSignalSquared = new long[1];
+    private int[] mPeakError = new int[1];
+
+    private short[] mScratch = new short[0];
+    private short[] mSilence = new short[0];
+
+    /**
+     * @param reference the expected samples, interleaved if there are several channels, or
+     *     null to measure the level of the audio against silence
+     */
+    public AudioComparator(short[] reference) {
+        mReference = reference;
+    }
+
+    /**
+     * Sets the number of interleaved channels, e.g. from the decoder's output format.
+     * Can only be changed before the first samples are compared.
+     */
+    public void setChannelCount(int channelCount) {
+        if (channelCount == mChannelCount) {
+            return;
+        }
+        if (mCount > 0) {
+            throw new IllegalStateException("channel count changed after " + mCount + " samples");
+        }
+        if (channelCount < 1) {
+            throw new IllegalArgumentException("invalid channel count " + channelCount);
+        }
+        mChannelCount = channelCount;
+        mErrorSquared = new long[channelCount];
+        mSignalSquared = new long[channelCount];
+        mPeakError = new int[channelCount];
+    }
+
+    /**
+     * Sets the RMSE over the whole reference above which the comparison can stop early.
+     */
+    public void setMaxRmse(double maxRmse) {
+        if (mReference == null) {
+            throw new IllegalStateException("no reference to compare with");
+        }
+        mErrorBudget = maxRmse * maxRmse * mReference.length;
+    }
+
+    /**
+     * Compares the remaining samples of a buffer with the reference, advancing its position.
+     */
+    public void compare(ShortBuffer samples) {
+        int count = samples.remaining();
+        if (mScratch.length < count) {
+            mScratch = new short[count];
+        }
+        samples.get(mScratch, 0, count);
+        compare(mScratch, 0, count);
+    }
+
+    /**
+     * Compares count samples from an array with the reference.
+     */
+    public void compare(short[] samples, int offset, int count) {
+        short[] ref;
+        int refPos;
+        int n;
+        if (mReference == null) {
+            if (mSilence.length < count) {
+                mSilence = new short[count];
+            }
+            ref = mSilence;
+            refPos = 0;
+            n = count;
+        } else {
+            ref = mReference;
+            refPos = mCount;
+            n = Math.max(Math.min(count, ref.length - refPos), 0);
+        }
+
+        final int channels = mChannelCount;
+        final int stride4 = channels * 4;
+        for (int c = 0; c < channels; c++) {
+            // index of the first sample of channel c in this chunk
+            int first = (c - mCount % channels + channels) % channels;
+            long errorSquared = 0;
+            long signalSquared = 0;
+            int peak = mPeakError[c];
+
+            int i = first;
+            // four samples of the channel per iteration, with the bounds checked up front
+            for (; i + 3 * channels < n; i += stride4) {
+                int r0 = ref[refPos + i];
+                int r1 = ref[refPos + i + channels];
+                int r2 = ref[refPos + i + 2 * channels];
+                int r3 = ref[refPos + i + 3 * channels];
+                int d0 = samples[offset + i] - r0;
+                int d1 = samples[offset + i + channels] - r1;
+                int d2 = samples[offset + i + 2 * channels] - r2;
+                int d3 = samples[offset + i + 3 * channels] - r3;
+                errorSquared += (long) d0 * d0 + (long) d1 * d1 + (long) d2 * d2 + (long) d3 * d3;
+                signalSquared += (long) r0 * r0 + (long) r1 * r1 + (long) r2 * r2 + (long) r3 * r3;
+                peak = Math.max(peak, Math.max(Math.max(Math.abs(d0), Math.abs(d1)),
+                        Math.max(Math.abs(d2), Math.abs(d3))));
+            }
+            for (; i < n; i += channels) {
+                int r = ref[refPos + i];
+                int d = samples[offset + i] - r;
+                errorSquared += (long) d * d;
+                signalSquared += (long) r * r;
+                peak = Math.max(peak, Math.abs(d));
+            }
+
+            mErrorSquared[c] += errorSquared;
+            mSignalSquared[c] += signalSquared;
+            mPeakError[c] = peak;
+        }
+        mCount += count;
+    }
+
+    /**
+     * Returns whether the error so far already exceeds the maximum RMSE over the whole
+     * reference, whatever the remaining samples are.
+     */
+    public boolean isBudgetExceeded() {
+        return getErrorSquared() > mErrorBudget;
+    }
+
+    /**
+     * Returns the number of samples fed, including any past the end of the reference.
+     */
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the root mean squared error of the samples compared so far.
+     */
+    public double getRmse() {
+        int compared = getComparedCount();
+        return compared == 0 ? 0 : Math.sqrt((double) getErrorSquared() / compared);
+    }
+
+    /**
+     * Returns the root mean squared error of one channel.
+     */
+    public double getRmse(int channel) {
+        int compared = getComparedCount(channel);
+        return compared == 0 ? 0 : Math.sqrt((double) mErrorSquared[channel] / compared);
+    }
+
+    /**
+     * Returns the signal to noise ratio in dB, treating the error as noise.
+     */
+    public double getSnr() {
+        long signal = 0;
+        for (int c = 0; c < mChannelCount; c++) {
+            signal += mSignalSquared[c];
+        }
+        return 10 * Math.log10((double) signal / getErrorSquared());
+    }
+
+    /**
+     * Returns the largest absolute difference from the reference; when comparing with
+     * silence, the peak level.
+     */
+    public int getPeakError() {
+        int peak = 0;
+        for (int c = 0; c < mChannelCount; c++) {
+            peak = Math.max(peak, mPeakError[c]);
+        }
+        return peak;
+    }
+
+    /**
+     * Returns the largest absolute difference from the reference in one channel.
+     */
+    public int getPeakError(int channel) {
+        return mPeakError[channel];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mCount).append(" samples, rmse ").append(getRmse())
+                .append(", snr ").append(getSnr()).append(" dB, peak ").append(getPeakError());
+        if (mChannelCount > 1) {
+            for (int c = 0; c < mChannelCount; c++) {
+                sb.append("; ch").append(c).append(" rmse ").append(getRmse(c))
+                        .append(" peak ").append(mPeakError[c]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private long getErrorSquared() {
+        long errorSquared = 0;
+        for (int c = 0; c < mChannelCount; c++) {
+            errorSquared += mErrorSquared[c];
+        }
+        return errorSquared;
+    }
+
+    private int getComparedCount() {
+        return mReference == null ? mCount : Math.min(mCount, mReference.length);
+    }
+
+    private int getComparedCount(int channel) {
+        int compared = getComparedCount();
+        return compared / mChannelCount + (channel < compared % mChannelCount ? 1 : 0);
+    }
+}
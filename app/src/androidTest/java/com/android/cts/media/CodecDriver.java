@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Drives a MediaCodec in asynchronous mode, instead of polling it with
+ * dequeueInputBuffer() / dequeueOutputBuffer() timeouts.
+ * <p>
+ * Codec callbacks run on a dedicated handler thread.  Free input buffers are
+ * put on a bounded queue as the codec reports them, and a feeding thread fills
+ * them from a {@link Source}, so a slow or blocking source never holds up
+ * output.  Output buffers are handed to a {@link Sink} on the handler thread as
+ * soon as the codec produces them, and released when the sink returns.
+ * <p>
+ * The codec is created on the handler thread, because before API 23 callbacks
+ * are delivered on the looper of the thread that created the codec.
+ * <p>
+ * Typical use:
+ * <pre>
+ *   CodecDriver driver = CodecDriver.createDecoderByType(mime);
+ *   try {
+ *       driver.configure(format, null, 0);
+ *       driver.run(source, sink, CodecDriver.DEFAULT_TIMEOUT_MS);
+ *   } finally {
+ *       driver.release();
+ *   }
+ * </pre>
+ * A driver can be run again after reconfiguring the codec.
+ */
+public class CodecDriver {
+    private static final String TAG = "CodecDriver";
+    private static final boolean VERBOSE = false;           // lots of logging
+
+    /** Default time the codec may go without making progress before a run fails. */
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    private static final int MAX_INPUT_SLOTS = 64;
+    private static final int NO_SLOT = -1;                  // wakes up the feeding thread
+
+    /**
+     * Provides codec input.
+     */
+    public interface Source {
+        /**
+         * Fills a codec input buffer.  Called on the feeding thread, and may block.
+         * <p>
+         * The size, presentation time and flags of the data are returned in info, its
+         * offset must be left 0.  No more buffers are requested after one flagged with
+         * BUFFER_FLAG_END_OF_STREAM.
+         *
+         * @param buffer cleared codec input buffer
+         * @param info all zero on entry
+         */
+        void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) throws Exception;
+    }
+
+    /**
+     * Consumes codec output.  Called on the handler thread.
+     */
+    public interface Sink {
+        /**
+         * Called when the codec output format changes, before the first output buffer.
+         */
+        void onOutputFormatChanged(MediaFormat format) throws Exception;
+
+        /**
+         * Consumes an output buffer, which is released when this returns.
+         *
+         * @param buffer output buffer with position and limit set to the valid data, or
+         *     null if the codec outputs to a Surface
+         * @return whether to render the buffer to the output Surface
+         */
+        boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) throws Exception;
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private MediaCodec mCodec;
+
+    private final BlockingQueue<Integer> mFreeInputs =
+            new ArrayBlockingQueue<Integer>(MAX_INPUT_SLOTS + 1);
+    private Thread mFeeder;
+    private volatile Source mSource;
+    private volatile Sink mSink;
+    private volatile long mLastProgressMs;
+    private int mOutputIndex = -1;                          // on the handler thread only
+
+    private final Object mLock = new Object();
+    private boolean mRunning;                               // guarded by mLock
+    private boolean mDone;                                  // guarded by mLock
+    private Throwable mError;                               // guarded by mLock
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (!isRunning() || mSource == null) {
+                return;
+            }
+            if (!mFreeInputs.offer(index)) {
+                setError(new IllegalStateException("more than " + MAX_INPUT_SLOTS +
+                        " input buffers"));
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            if (!isRunning()) {
+                return;
+            }
+            mLastProgressMs = SystemClock.elapsedRealtime();
+            boolean render = false;
+            try {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null) {
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                }
+                mOutputIndex = index;
+                render = mSink.onOutputBuffer(buffer, info);
+            } catch (Throwable th) {
+                setError(th);
+            } finally {
+                mOutputIndex = -1;
+            }
+            codec.releaseOutputBuffer(index, render);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "output EOS");
+                finish();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (!isRunning()) {
+                return;
+            }
+            if (VERBOSE) Log.d(TAG, "output format changed: " + format);
+            try {
+                mSink.onOutputFormatChanged(format);
+            } catch (Throwable th) {
+                setError(th);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.w(TAG, "codec error " + e.getDiagnosticInfo(), e);
+            setError(e);
+        }
+    };
+
+    private CodecDriver(String name) {
+        mThread = new HandlerThread(TAG + " " + name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Creates a driver for the codec with the given name.
+     */
+    public static CodecDriver createByCodecName(final String name) throws IOException {
+        return create(name, new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return MediaCodec.createByCodecName(name);
+            }
+        });
+    }
+
+    /**
+     * Creates a driver for the default decoder of the given MIME type.
+     */
+    public static CodecDriver createDecoderByType(final String mime) throws IOException {
+        return create(mime, new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return MediaCodec.createDecoderByType(mime);
+            }
+        });
+    }
+
+    /**
+     * Creates a driver for the default encoder of the given MIME type.
+     */
+    public static CodecDriver createEncoderByType(final String mime) throws IOException {
+        return create(mime, new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return MediaCodec.createEncoderByType(mime);
+            }
+        });
+    }
+
+    private static CodecDriver create(String name, Callable<MediaCodec> factory)
+            throws IOException {
+        CodecDriver driver = new CodecDriver(name);
+        try {
+            driver.mCodec = driver.runOnHandlerThread(factory);
+        } catch (IOException e) {
+            driver.mThread.quit();
+            throw e;
+        } catch (Exception e) {
+            driver.mThread.quit();
+            throw new IOException("failed to create codec for " + name, e);
+        }
+        return driver;
+    }
+
+    /**
+     * Returns the driven codec, e.g. for getName() or createInputSurface().
+     * Don't dequeue buffers from it directly.
+     */
+    public MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * Returns the codec's index of the output buffer being passed to
+     * {@link Sink#onOutputBuffer}, e.g. to cache per-buffer data, or -1.  Only valid when
+     * called from the sink.
+     */
+    public int getOutputBufferIndex() {
+        return mOutputIndex;
+    }
+
+    /**
+     * Configures the codec for asynchronous operation.
+     *
+     * @param format format of the input data (decoder) or desired output (encoder)
+     * @param surface output Surface for a decoder, or null
+     * @param flags MediaCodec.CONFIGURE_FLAG_ENCODE for an encoder, otherwise 0
+     */
+    public void configure(MediaFormat format, Surface surface, int flags) {
+        // the callback has to be set before configure()
+        mCodec.setCallback(mCallback);
+        mCodec.configure(format, surface, null /* crypto */, flags);
+    }
+
+    /**
+     * Starts the codec and feeding it from the source.  Returns immediately, see
+     * {@link #awaitCompletion}.
+     *
+     * @param source input, or null if the codec gets its input from a Surface
+     * @param sink output
+     */
+    public void start(Source source, Sink sink) {
+        synchronized (mLock) {
+            if (mRunning) {
+                throw new IllegalStateException("already running");
+            }
+            mRunning = true;
+            mDone = false;
+            mError = null;
+        }
+        mFreeInputs.clear();
+        mSource = source;
+        mSink = sink;
+        mLastProgressMs = SystemClock.elapsedRealtime();
+        if (source != null) {
+            mFeeder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    feed();
+                }
+            }, TAG + " feeder");
+            mFeeder.start();
+        }
+        mCodec.start();
+    }
+
+    /**
+     * Waits until the codec has output end of stream, a sink has called {@link #finish}
+     * or an error has occurred.  Errors thrown by the source or sink are rethrown here.
+     *
+     * @param timeoutMs how long the codec may go without taking input or producing
+     *     output before this fails
+     */
+    public void awaitCompletion(long timeoutMs) throws Exception {
+        Throwable error;
+        synchronized (mLock) {
+            while (!mDone && mError == null) {
+                long idleMs = SystemClock.elapsedRealtime() - mLastProgressMs;
+                if (idleMs >= timeoutMs) {
+                    throw new TimeoutException(mCodec.getName() + " made no progress in " +
+                            timeoutMs + " ms");
+                }
+                mLock.wait(timeoutMs - idleMs);
+            }
+            error = mError;
+        }
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+    }
+
+    /**
+     * Starts the codec, waits until it's done and stops it.  See {@link #start} and
+     * {@link #awaitCompletion}.
+     */
+    public void run(Source source, Sink sink, long timeoutMs) throws Exception {
+        start(source, sink);
+        try {
+            awaitCompletion(timeoutMs);
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Ends the current run early, e.g. from a sink that has seen enough output.
+     */
+    public void finish() {
+        synchronized (mLock) {
+            mDone = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops feeding and stops the codec.  The codec has to be configured again before
+     * the next run.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+        }
+        if (mFeeder != null) {
+            mFeeder.interrupt();
+            mFreeInputs.offer(NO_SLOT);
+            try {
+                mFeeder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mFeeder = null;
+        }
+        // Stop on the handler thread, so that callbacks already queued for this run
+        // are delivered (and ignored) before the codec is stopped.
+        try {
+            runOnHandlerThread(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    mCodec.stop();
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops and releases the codec, and quits the handler thread.
+     */
+    public void release() {
+        try {
+            stop();
+        } finally {
+            mCodec.release();
+            mThread.quitSafely();
+        }
+    }
+
+    private void feed() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (true) {
+                int index = mFreeInputs.take();
+                if (index == NO_SLOT || !isRunning()) {
+                    return;
+                }
+                ByteBuffer buffer = mCodec.getInputBuffer(index);
+                buffer.clear();
+                info.set(0, 0, 0, 0);
+                mSource.fillInputBuffer(buffer, info);
+                mCodec.queueInputBuffer(index, 0 /* offset */, info.size,
+                        info.presentationTimeUs, info.flags);
+                mLastProgressMs = SystemClock.elapsedRealtime();
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    if (VERBOSE) Log.d(TAG, "input EOS");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable th) {
+            setError(th);
+        }
+    }
+
+    private boolean isRunning() {
+        synchronized (mLock) {
+            return mRunning && !mDone;
+        }
+    }
+
+    private void setError(Throwable th) {
+        synchronized (mLock) {
+            if (mError == null) {
+                mError = th;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private <T> T runOnHandlerThread(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        mHandler.post(task);
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
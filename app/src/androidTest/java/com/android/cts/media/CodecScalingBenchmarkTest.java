@@ -0,0 +1,595 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.cts.media.R;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how video codec throughput scales with the number of concurrent sessions.
+ * <p>
+ * For every video codec, 1, 2, 4, 8... sessions of the codec are started at once, up to
+ * the maximum number of instances the codec reports (or {@link #MAX_SESSIONS} before API
+ * 23).  Each session is a {@link CodecDriver}, so every session is fed on its own thread:
+ * decoders from their own MediaExtractor or IvfReader, encoders from the test pattern of
+ * EncodeDecodeTest.  For every step we record the aggregate frame rate of all sessions,
+ * the frame rate of each session and how fairly the codec shared out its time, and how
+ * many instances could be created and configured if that failed before the step was full.
+ * The ladder stops at the first step that can't be set up.
+ * <p>
+ * Results are logged and written as JSON to {@link #RESULTS_FILE_NAME} on external storage,
+ * like those of {@link VideoCodecBenchmarkTest}.  Codecs that don't scale don't fail the
+ * test.
+ */
+public class CodecScalingBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "CodecScalingBenchmarkTest";
+    private static final boolean VERBOSE = false;           // lots of logging
+
+    private static final String RESULTS_FILE_NAME = "codec_scaling_benchmark.json";
+
+    // sessions tried when the codec doesn't report its maximum number of instances
+    private static final int MAX_SESSIONS = 16;
+    // frames each session processes
+    private static final int NUM_FRAMES = 90;
+    // how long a session may go without making progress; sessions compete for the codec
+    private static final long SESSION_TIMEOUT_MS = 4 * CodecDriver.DEFAULT_TIMEOUT_MS;
+
+    // encoder input
+    private static final int ENCODER_WIDTH = 320;
+    private static final int ENCODER_HEIGHT = 240;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000 / FRAME_RATE;
+    private static final int BIT_RATE = 1000000;
+    private static final int IFRAME_INTERVAL = 1;
+
+    // decoder input, by container
+    private static final int[] EXTRACTOR_INPUTS = {
+        R.raw.video_480x360_mp4_h264_1000kbps_30fps_aac_stereo_128kbps_44100hz,
+        R.raw.video_176x144_3gp_h263_300kbps_25fps_aac_stereo_128kbps_22050hz,
+    };
+    // written by Vp8EncoderTest; those that don't exist are skipped
+    private static final String[] IVF_INPUTS = {
+        "video_176x144_vp8_basic.ivf",
+        "video_176x144_vp9_basic.ivf",
+        "video_176x144_av1_basic.ivf",
+    };
+
+    public void testDecoderScaling() throws Exception {
+        Map<String, InputFactory> inputs = findDecoderInputs();
+        JSONArray results = new JSONArray();
+
+        int codecCount = MediaCodecList.getCodecCount();
+        for (int i = 0; i < codecCount; ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder()) {
+                continue;
+            }
+            String[] types = info.getSupportedTypes();
+            for (int j = 0; j < types.length; ++j) {
+                InputFactory input = inputs.get(types[j]);
+                if (input != null) {
+                    results.put(measureScaling(info, types[j], input));
+                }
+            }
+        }
+        writeResults("decoders", results);
+    }
+
+    public void testEncoderScaling() throws Exception {
+        JSONArray results = new JSONArray();
+
+        int codecCount = MediaCodecList.getCodecCount();
+        for (int i = 0; i < codecCount; ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder()) {
+                continue;
+            }
+            String[] types = info.getSupportedTypes();
+            for (int j = 0; j < types.length; ++j) {
+                if (!types[j].startsWith("video/")) {
+                    continue;
+                }
+                CodecCapabilities caps = info.getCapabilitiesForType(types[j]);
+                int colorFormat = selectColorFormat(caps);
+                if (colorFormat == -1) {
+                    if (VERBOSE) Log.d(TAG, info.getName() + " takes no YUV 420 input");
+                    continue;
+                }
+                results.put(measureScaling(info, types[j],
+                        new PatternInputFactory(types[j], colorFormat)));
+            }
+        }
+        writeResults("encoders", results);
+    }
+
+    /**
+     * Runs the ladder of session counts for one codec.
+     */
+    private JSONObject measureScaling(MediaCodecInfo info, String mime, InputFactory input)
+            throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("codec", info.getName());
+        result.put("mime", mime);
+        result.put("encoder", info.isEncoder());
+
+        int maxSessions = getMaxInstances(info.getCapabilitiesForType(mime));
+        result.put("maxInstances", maxSessions);
+
+        JSONArray steps = new JSONArray();
+        double singleFps = 0;
+        for (int sessions = 1; sessions <= maxSessions;
+                sessions = nextSessionCount(sessions, maxSessions)) {
+            JSONObject step = runStep(info.getName(), input, sessions);
+            if (step.has("aggregateFps")) {
+                double fps = step.getDouble("aggregateFps");
+                if (sessions == 1) {
+                    singleFps = fps;
+                }
+                if (singleFps > 0) {
+                    // 1.0 if every session is as fast as a lone one
+                    step.put("scalingEfficiency", fps / (singleFps * sessions));
+                }
+            }
+            steps.put(step);
+            Log.i(TAG, info.getName() + " " + step);
+            if (step.has("failedStage")) {
+                result.put("instancesBeforeFailure", step.getInt("instancesBeforeFailure"));
+            }
+            if (step.has("error")) {
+                break;
+            }
+        }
+        result.put("steps", steps);
+        return result;
+    }
+
+    /**
+     * Returns the next step of 1, 2, 4, 8... max, or a count above max after the last step.
+     */
+    private static int nextSessionCount(int sessions, int max) {
+        return sessions == max ? max + 1 : Math.min(sessions * 2, max);
+    }
+
+    /**
+     * Sets up a number of sessions of a codec, runs them all at once and measures them.
+     */
+    private JSONObject runStep(String name, InputFactory input, int count)
+            throws JSONException {
+        JSONObject step = new JSONObject();
+        step.put("sessions", count);
+
+        List<Session> sessions = new ArrayList<Session>(count);
+        try {
+            // Set up all sessions before starting any, so setup isn't measured.
+            for (int i = 0; i < count; i++) {
+                Session session = new Session();
+                sessions.add(session);
+                try {
+                    session.mDriver = CodecDriver.createByCodecName(name);
+                } catch (Exception e) {
+                    return putSetupFailure(step, "create", i, e);
+                }
+                session.mSource = input.createSource();
+                try {
+                    session.mDriver.configure(input.getFormat(), null /* surface */,
+                            input.isEncoder() ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+                } catch (Exception e) {
+                    return putSetupFailure(step, "configure", i, e);
+                }
+            }
+
+            long startNs = System.nanoTime();
+            for (Session session : sessions) {
+                session.start(startNs);
+            }
+            for (Session session : sessions) {
+                session.mDriver.awaitCompletion(SESSION_TIMEOUT_MS);
+            }
+            long elapsedNs = System.nanoTime() - startNs;
+
+            int totalFrames = 0;
+            double sumFps = 0;
+            double sumSquaredFps = 0;
+            double minFps = Double.MAX_VALUE;
+            double maxFps = 0;
+            JSONArray sessionFps = new JSONArray();
+            for (Session session : sessions) {
+                double fps = session.getFps();
+                totalFrames += session.mOutputFrames;
+                sumFps += fps;
+                sumSquaredFps += fps * fps;
+                minFps = Math.min(minFps, fps);
+                maxFps = Math.max(maxFps, fps);
+                sessionFps.put(fps);
+            }
+            step.put("aggregateFps", totalFrames * 1E9 / elapsedNs);
+            step.put("sessionFps", sessionFps);
+            step.put("minSessionFps", minFps);
+            step.put("maxSessionFps", maxFps);
+            // Jain's fairness index: 1 if all sessions got the same frame rate, 1/n if one
+            // session got all of it
+            if (sumSquaredFps > 0) {
+                step.put("fairness", sumFps * sumFps / (count * sumSquaredFps));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, name + " failed with " + count + " sessions", e);
+            step.put("error", e.toString());
+        } finally {
+            for (Session session : sessions) {
+                session.release();
+            }
+        }
+        return step;
+    }
+
+    private static JSONObject putSetupFailure(JSONObject step, String stage, int created,
+            Exception e) throws JSONException {
+        Log.w(TAG, stage + " failed after " + created + " sessions", e);
+        step.put("error", e.toString());
+        step.put("failedStage", stage);
+        step.put("instancesBeforeFailure", created);
+        return step;
+    }
+
+    private void writeResults(String kind, JSONArray results) throws Exception {
+        JSONObject report = new JSONObject();
+        report.put("model", Build.MODEL);
+        report.put("fingerprint", Build.FINGERPRINT);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("frames", NUM_FRAMES);
+        report.put(kind, results);
+
+        File file = new File(Environment.getExternalStorageDirectory(),
+                kind + "_" + RESULTS_FILE_NAME);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "wrote " + results.length() + " results to " + file);
+    }
+
+    private static int getMaxInstances(CodecCapabilities caps) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            int max = caps.getMaxSupportedInstances();
+            if (max > 0) {
+                return max;
+            }
+        }
+        return MAX_SESSIONS;
+    }
+
+    /**
+     * Returns the first color format of the codec that EncodeDecodeTest can generate, or -1.
+     */
+    private static int selectColorFormat(CodecCapabilities caps) {
+        for (int i = 0; i < caps.colorFormats.length; i++) {
+            if (EncodeDecodeTest.isRecognizedFormat(caps.colorFormats[i])) {
+                return caps.colorFormats[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds decoder input for every video type we have a stream of.
+     */
+    private Map<String, InputFactory> findDecoderInputs() throws IOException {
+        Map<String, InputFactory> inputs = new HashMap<String, InputFactory>();
+        for (int resId : EXTRACTOR_INPUTS) {
+            ExtractorInputFactory input = new ExtractorInputFactory(resId);
+            if (input.getFormat() != null) {
+                inputs.put(input.getFormat().getString(MediaFormat.KEY_MIME), input);
+            }
+        }
+        for (String filename : IVF_INPUTS) {
+            if (!new File(filename).exists()) {
+                if (VERBOSE) Log.d(TAG, "no " + filename + ", run Vp8EncoderTest first");
+                continue;
+            }
+            IvfInputFactory input = new IvfInputFactory(filename);
+            inputs.put(input.getFormat().getString(MediaFormat.KEY_MIME), input);
+        }
+        return inputs;
+    }
+
+    /**
+     * One codec instance, fed on its own thread, and its output frame count.
+     */
+    private static class Session implements CodecDriver.Sink {
+        CodecDriver mDriver;
+        SessionSource mSource;
+        private long mStartNs;
+        private volatile long mEndNs;
+        private volatile int mOutputFrames;
+
+        void start(long startNs) {
+            mStartNs = startNs;
+            mDriver.start(mSource, this);
+        }
+
+        double getFps() {
+            if (mEndNs <= mStartNs) {
+                return 0;
+            }
+            return mOutputFrames * 1E9 / (mEndNs - mStartNs);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "output format changed: " + format);
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (info.size != 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mOutputFrames++;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mEndNs = System.nanoTime();
+            }
+            return false; // no output Surface, nothing to render
+        }
+
+        void release() {
+            if (mDriver != null) {
+                try {
+                    mDriver.release();
+                } catch (Exception e) {
+                    Log.w(TAG, "error while releasing codec", e);
+                }
+            }
+            if (mSource != null) {
+                mSource.release();
+            }
+        }
+    }
+
+    /**
+     * Codec input of one session.
+     */
+    private static abstract class SessionSource implements CodecDriver.Source {
+        void release() {
+        }
+    }
+
+    /**
+     * Creates the input of the sessions of a codec.
+     */
+    private interface InputFactory {
+        /** Returns the format to configure the codec with. */
+        MediaFormat getFormat();
+
+        /** Returns whether the input is for an encoder. */
+        boolean isEncoder();
+
+        /** Returns a new source for one session. */
+        SessionSource createSource() throws IOException;
+    }
+
+    /**
+     * Decoder input from the video track of a raw resource, one extractor per session.
+     */
+    private class ExtractorInputFactory implements InputFactory {
+        private final int mResId;
+        private final MediaFormat mFormat;
+
+        ExtractorInputFactory(int resId) throws IOException {
+            mResId = resId;
+            MediaExtractor extractor = createExtractor();
+            try {
+                mFormat = selectVideoTrack(extractor);
+            } finally {
+                extractor.release();
+            }
+        }
+
+        @Override
+        public MediaFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public boolean isEncoder() {
+            return false;
+        }
+
+        @Override
+        public SessionSource createSource() throws IOException {
+            final MediaExtractor extractor = createExtractor();
+            selectVideoTrack(extractor);
+            return new SessionSource() {
+                private int mFrames;
+
+                @Override
+                public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                    int size = mFrames < NUM_FRAMES ? extractor.readSampleData(buffer, 0) : -1;
+                    if (size < 0) {
+                        info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        return;
+                    }
+                    info.set(0, size, extractor.getSampleTime(), 0);
+                    extractor.advance();
+                    mFrames++;
+                }
+
+                @Override
+                void release() {
+                    extractor.release();
+                }
+            };
+        }
+
+        private MediaExtractor createExtractor() throws IOException {
+            AssetFileDescriptor fd = getContext().getResources().openRawResourceFd(mResId);
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(),
+                        fd.getLength());
+            } finally {
+                fd.close();
+            }
+            return extractor;
+        }
+
+        /**
+         * Selects the first video track and returns its format, or null if there is none.
+         */
+        private MediaFormat selectVideoTrack(MediaExtractor extractor) {
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Decoder input from an IVF file, one memory-mapped reader per session.
+     */
+    private static class IvfInputFactory implements InputFactory {
+        private final String mFilename;
+        private final MediaFormat mFormat;
+
+        IvfInputFactory(String filename) throws IOException {
+            mFilename = filename;
+            IvfReader ivf = new IvfReader(filename);
+            try {
+                mFormat = MediaFormat.createVideoFormat(ivf.getMimeType(), ivf.getWidth(),
+                        ivf.getHeight());
+            } finally {
+                ivf.close();
+            }
+        }
+
+        @Override
+        public MediaFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public boolean isEncoder() {
+            return false;
+        }
+
+        @Override
+        public SessionSource createSource() throws IOException {
+            final IvfReader ivf = new IvfReader(mFilename, true /* memoryMapped */);
+            return new SessionSource() {
+                @Override
+                public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                        throws IOException {
+                    int index = ivf.getNextFrameIndex();
+                    ByteBuffer frame = index < NUM_FRAMES ? ivf.nextFrame() : null;
+                    if (frame == null) {
+                        info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        return;
+                    }
+                    int size = frame.remaining();
+                    buffer.put(frame);
+                    info.set(0, size, ivf.getFrameTimeUs(index), 0);
+                }
+
+                @Override
+                void release() {
+                    try {
+                        ivf.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "error while closing " + mFilename, e);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Encoder input: the EncodeDecodeTest pattern, shared by all sessions.
+     */
+    private static class PatternInputFactory implements InputFactory {
+        private final MediaFormat mFormat;
+        private final int mColorFormat;
+
+        PatternInputFactory(String mime, int colorFormat) {
+            mColorFormat = colorFormat;
+            mFormat = MediaFormat.createVideoFormat(mime, ENCODER_WIDTH, ENCODER_HEIGHT);
+            mFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            mFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+            mFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            mFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        }
+
+        @Override
+        public MediaFormat getFormat() {
+            return mFormat;
+        }
+
+        @Override
+        public boolean isEncoder() {
+            return true;
+        }
+
+        @Override
+        public SessionSource createSource() {
+            final YuvFrameTemplates frames =
+                    YuvFrameTemplates.get(mColorFormat, ENCODER_WIDTH, ENCODER_HEIGHT);
+            return new SessionSource() {
+                private int mFrameIndex;
+
+                @Override
+                public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                    long ptsUsec = mFrameIndex * FRAME_INTERVAL_US;
+                    if (mFrameIndex == NUM_FRAMES) {
+                        info.set(0, 0, ptsUsec, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        return;
+                    }
+                    frames.putFrame(mFrameIndex, buffer);
+                    info.set(0, frames.getFrameSize(), ptsUsec, 0);
+                    mFrameIndex++;
+                }
+            };
+        }
+    }
+}
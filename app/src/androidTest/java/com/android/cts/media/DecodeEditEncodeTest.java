@@ -24,14 +24,12 @@ import android.opengl.GLES20;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
-import javax.microedition.khronos.opengles.GL10;
+import org.junit.Test;
+
 import static org.junit.Assert.*;
 
 /**
@@ -88,6 +86,8 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
 
     // largest color component delta seen (i.e. actual vs. expected)
     private int mLargestColorDelta;
+    // reads back frames rendered to the surface, allocated for the current frame size
+    private SurfaceFrameReader mFrameReader;
 
 
     public void testVideoEditQCIF() throws Throwable {
@@ -105,6 +105,68 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
         VideoEditWrapper.runTest(this);
     }
 
+    /**
+     * Checks that chunks beyond the memory limit of VideoChunks spill to a temp file and
+     * come back intact, including chunks larger than a segment of the store and empty ones.
+     */
+    @Test
+    public void testVideoChunksSpill() throws Exception {
+        final int[] sizes = { 1, 1000, 300000, 700000, 1500000, 0, 5000, 2500000, 64 };
+        File tempDir = getContext().getCacheDir();
+        int tempFiles = countSpillFiles(tempDir);
+        VideoChunks chunks = new VideoChunks(1024 * 1024 /* maxMemoryBytes */, tempDir);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(2500000);
+            long totalBytes = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                buf.clear();
+                for (int j = 0; j < sizes[i]; j++) {
+                    buf.put(chunkByte(i, j));
+                }
+                buf.flip();
+                chunks.addChunk(buf, i /* flags */, computePresentationTime(i));
+                totalBytes += sizes[i];
+            }
+            assertTrue("chunks should have spilled to a file", chunks.isSpilled());
+            assertEquals(1, countSpillFiles(tempDir) - tempFiles);
+            assertEquals(sizes.length, chunks.getNumChunks());
+            assertEquals(totalBytes, chunks.getTotalBytes());
+
+            for (int i = 0; i < sizes.length; i++) {
+                buf.clear();
+                chunks.getChunkData(i, buf);
+                assertEquals("size of chunk " + i, sizes[i], buf.position());
+                for (int j = 0; j < sizes[i]; j++) {
+                    if (buf.get(j) != chunkByte(i, j)) {
+                        fail("chunk " + i + " differs at byte " + j);
+                    }
+                }
+                assertEquals(i, chunks.getChunkFlags(i));
+                assertEquals(computePresentationTime(i), chunks.getChunkTime(i));
+            }
+        } finally {
+            chunks.release();
+        }
+        assertEquals("temp file should be deleted", tempFiles, countSpillFiles(tempDir));
+    }
+
+    private static byte chunkByte(int chunk, int index) {
+        return (byte) (chunk * 31 + index * 7 + (index >> 8));
+    }
+
+    private static int countSpillFiles(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("access_units")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     /**
      * Wraps testEditVideo, running it in a new thread.  Required because of the way
      * SurfaceTexture.OnFrameAvailableListener works when the current thread has a Looper
@@ -158,29 +220,37 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
      */
     private void videoEditTest() {
         VideoChunks sourceChunks = new VideoChunks();
+        VideoChunks destChunks = null;
 
-        if (!generateVideoFile(sourceChunks)) {
-            // No AVC codec?  Fail silently.
-            return;
-        }
+        try {
+            if (!generateVideoFile(sourceChunks)) {
+                // No AVC codec?  Fail silently.
+                return;
+            }
 
-        if (DEBUG_SAVE_FILE) {
-            // Save a copy to a file.  We call it ".mp4", but it's actually just an elementary
-            // stream, so not all video players will know what to do with it.
-            String dirName = getContext().getFilesDir().getAbsolutePath();
-            String fileName = "vedit1_" + mWidth + "x" + mHeight + ".mp4";
-            sourceChunks.saveToFile(new File(dirName, fileName));
-        }
+            if (DEBUG_SAVE_FILE) {
+                // Save a copy to a file.  We call it ".mp4", but it's actually just an
+                // elementary stream, so not all video players will know what to do with it.
+                String dirName = getContext().getFilesDir().getAbsolutePath();
+                String fileName = "vedit1_" + mWidth + "x" + mHeight + ".mp4";
+                sourceChunks.saveToFile(new File(dirName, fileName));
+            }
 
-        VideoChunks destChunks = editVideoFile(sourceChunks);
+            destChunks = editVideoFile(sourceChunks);
 
-        if (DEBUG_SAVE_FILE) {
-            String dirName = getContext().getFilesDir().getAbsolutePath();
-            String fileName = "vedit2_" + mWidth + "x" + mHeight + ".mp4";
-            destChunks.saveToFile(new File(dirName, fileName));
-        }
+            if (DEBUG_SAVE_FILE) {
+                String dirName = getContext().getFilesDir().getAbsolutePath();
+                String fileName = "vedit2_" + mWidth + "x" + mHeight + ".mp4";
+                destChunks.saveToFile(new File(dirName, fileName));
+            }
 
-        checkVideoFile(destChunks);
+            checkVideoFile(destChunks);
+        } finally {
+            sourceChunks.release();
+            if (destChunks != null) {
+                destChunks.release();
+            }
+        }
     }
 
     /**
@@ -766,7 +836,12 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
      * @return true if the frame looks good
      */
     private boolean checkSurfaceFrame(int frameIndex) {
-        ByteBuffer pixelBuf = ByteBuffer.allocateDirect(4); // TODO - reuse this
+        if (mFrameReader == null || mFrameReader.getWidth() != mWidth ||
+                mFrameReader.getHeight() != mHeight) {
+            mFrameReader = new SurfaceFrameReader(mWidth, mHeight);
+        }
+        // read the whole frame at once, rather than stalling GL for each pixel
+        mFrameReader.readFrame();
         boolean frameFailed = false;
 
         for (int i = 0; i < 8; i++) {
@@ -780,10 +855,9 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
                 y = mHeight / 4;
             }
 
-            GLES20.glReadPixels(x, y, 1, 1, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixelBuf);
-            int r = pixelBuf.get(0) & 0xff;
-            int g = pixelBuf.get(1) & 0xff;
-            int b = pixelBuf.get(2) & 0xff;
+            int r = mFrameReader.getRed(x, y);
+            int g = mFrameReader.getGreen(x, y);
+            int b = mFrameReader.getBlue(x, y);
             //Log.d(TAG, "GOT(" + frameIndex + "/" + i + "): r=" + r + " g=" + g + " b=" + b);
 
             int expR, expG, expB;
@@ -835,14 +909,27 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
     /**
      * The elementary stream coming out of the "video/avc" encoder needs to be fed back into
      * the decoder one chunk at a time.  If we just wrote the data to a file, we would lose
-     * the information about chunk boundaries.  This class stores the encoded data in memory,
-     * retaining the chunk organization.
+     * the information about chunk boundaries.  This class stores the encoded data in an
+     * {@link AccessUnitStore}, retaining the chunk organization.
      */
     private static class VideoChunks {
+        // direct memory for the chunks before they spill to a temp file
+        private static final long MAX_MEMORY_BYTES = 16 * 1024 * 1024;
+
         private MediaFormat mMediaFormat;
-        private ArrayList<byte[]> mChunks = new ArrayList<byte[]>();
-        private ArrayList<Integer> mFlags = new ArrayList<Integer>();
-        private ArrayList<Long> mTimes = new ArrayList<Long>();
+        private final AccessUnitStore mStore;
+
+        public VideoChunks() {
+            this(MAX_MEMORY_BYTES, null);
+        }
+
+        /**
+         * @param maxMemoryBytes direct memory used before the chunks spill to a temp file
+         * @param tempDir directory for the temp file, or null for the default one
+         */
+        public VideoChunks(long maxMemoryBytes, File tempDir) {
+            mStore = new AccessUnitStore(maxMemoryBytes, tempDir);
+        }
 
         /**
          * Sets the MediaFormat, for the benefit of a future decoder.
@@ -862,40 +949,49 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
          * Adds a new chunk.  Advances buf.position to buf.limit.
          */
         public void addChunk(ByteBuffer buf, int flags, long time) {
-            byte[] data = new byte[buf.remaining()];
-            buf.get(data);
-            mChunks.add(data);
-            mFlags.add(flags);
-            mTimes.add(time);
+            mStore.add(buf, flags, time);
         }
 
         /**
          * Returns the number of chunks currently held.
          */
         public int getNumChunks() {
-            return mChunks.size();
+            return mStore.size();
         }
 
         /**
          * Copies the data from chunk N into "dest".  Advances dest.position.
          */
         public void getChunkData(int chunk, ByteBuffer dest) {
-            byte[] data = mChunks.get(chunk);
-            dest.put(data);
+            dest.put(mStore.get(chunk));
         }
 
         /**
          * Returns the flags associated with chunk N.
          */
         public int getChunkFlags(int chunk) {
-            return mFlags.get(chunk);
+            return mStore.getFlags(chunk);
         }
 
         /**
          * Returns the timestamp associated with chunk N.
          */
         public long getChunkTime(int chunk) {
-            return mTimes.get(chunk);
+            return mStore.getTime(chunk);
+        }
+
+        /**
+         * Returns the total size of the data of all chunks.
+         */
+        public long getTotalBytes() {
+            return mStore.getTotalBytes();
+        }
+
+        /**
+         * Returns whether some of the chunks are held in a temp file.
+         */
+        public boolean isSpilled() {
+            return mStore.isSpilled();
         }
 
         /**
@@ -903,33 +999,18 @@ public class DecodeEditEncodeTest  extends AExampleInstrumentedTest{
          */
         public void saveToFile(File file) {
             Log.d(TAG, "saving chunk data to file " + file);
-            FileOutputStream fos = null;
-            BufferedOutputStream bos = null;
-
             try {
-                fos = new FileOutputStream(file);
-                bos = new BufferedOutputStream(fos);
-                fos = null;     // closing bos will also close fos
-
-                int numChunks = getNumChunks();
-                for (int i = 0; i < numChunks; i++) {
-                    byte[] chunk = mChunks.get(i);
-                    bos.write(chunk);
-                }
+                mStore.writeTo(file);
             } catch (IOException ioe) {
                 throw new RuntimeException(ioe);
-            } finally {
-                try {
-                    if (bos != null) {
-                        bos.close();
-                    }
-                    if (fos != null) {
-                        fos.close();
-                    }
-                } catch (IOException ioe) {
-                    throw new RuntimeException(ioe);
-                }
             }
         }
+
+        /**
+         * Frees the chunk data.
+         */
+        public void release() {
+            mStore.release();
+        }
     }
 }
@@ -21,22 +21,37 @@ import com.android.cts.media.R;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Environment;
+import android.support.test.InstrumentationRegistry;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.zip.CRC32;
+import java.util.Collections;
+import java.util.List;
 
 public class DecoderTest extends MediaPlayerTestBase {
     private static final String TAG = "DecoderTest";
 
+    // in the assets of the test APK, see GoldenFrameDatabase
+    private static final String GOLDEN_FRAMES_ASSET = "golden_frames.bin";
+    // on external storage; only written when the test runs with -e recordGoldenFrames true
+    private static final String RECORDED_FRAMES_FILE = "golden_frames.bin";
+    private static final String RECORD_GOLDEN_FRAMES_ARG = "recordGoldenFrames";
+
+    private static GoldenFrameDatabase sGoldenFrames;   // guarded by DecoderTest.class
+
     private Resources mResources;
     short[] mMasterBuffer;
 
@@ -91,47 +106,46 @@ public class DecoderTest extends MediaPlayerTestBase {
      * @param testinput the file to decode
      * @param maxerror the maximum allowed root mean squared error
      * @param testReconfigure whether to also test reconfiguring the codec
-     * @throws IOException
      */
-    private void decode(int testinput, float maxerror, boolean reconfigure) throws IOException {
-
-        short [] decoded = decodeToMemory(testinput, false);
-
-        assertEquals("wrong data size", mMasterBuffer.length, decoded.length);
-
-        long totalErrorSquared = 0;
-
-        for (int i = 0; i < decoded.length; i++) {
-            short sample = decoded[i];
-            short mastersample = mMasterBuffer[i];
-            int d = sample - mastersample;
-            totalErrorSquared += d * d;
-        }
-
-        long avgErrorSquared = (totalErrorSquared / decoded.length);
-        double rmse = Math.sqrt(avgErrorSquared);
+    private void decode(int testinput, float maxerror, boolean reconfigure) throws Exception {
+
+        // Compare with the master as the samples arrive.  The decode stops as soon as the
+        // error is too big, whatever the rest of the file decodes to.
+        AudioComparator comparator = new AudioComparator(mMasterBuffer);
+        comparator.setMaxRmse(maxerror);
+        ComparingPcmSink decoded = new ComparingPcmSink(comparator, reconfigure);
+        decodeTo(testinput, false, decoded);
+        Log.d(TAG, "decoded: " + comparator);
+
+        assertFalse("decoding error too big: " + comparator, comparator.isBudgetExceeded());
+        assertEquals("wrong data size", mMasterBuffer.length, comparator.getSampleCount());
+        double rmse = comparator.getRmse();
         assertTrue("decoding error too big: " + rmse, rmse <= maxerror);
 
         if (reconfigure) {
-            short [] decoded2 = decodeToMemory(testinput, true);
-            assertEquals("count different with reconfigure", decoded.length, decoded2.length);
-            for (int i = 0; i < decoded.length; i++) {
-                assertEquals("samples don't match", decoded[i], decoded2[i]);
+            // compare with the first pass as the samples arrive, without keeping them
+            short[] reference = decoded.getSamples();
+            MatchingPcmSink decoded2 = new MatchingPcmSink(reference);
+            decodeTo(testinput, true, decoded2);
+            assertEquals("count different with reconfigure", reference.length,
+                    decoded2.getCount());
+            int mismatch = decoded2.getFirstMismatch();
+            if (mismatch >= 0) {
+                assertEquals("samples don't match at " + mismatch,
+                        reference[mismatch], decoded2.getMismatchedSample());
             }
         }
     }
 
-    private short[] decodeToMemory(int testinput, boolean reconfigure) throws IOException {
-
-        short [] decoded = new short[0];
-        int decodedIdx = 0;
+    /**
+     * Decodes an audio file, handing the 16 bit PCM output to a sink.
+     */
+    private void decodeTo(int testinput, boolean reconfigure, PcmSink sink) throws Exception {
 
         AssetFileDescriptor testFd = mResources.openRawResourceFd(testinput);
 
         MediaExtractor extractor;
-        MediaCodec codec;
-        ByteBuffer[] codecInputBuffers;
-        ByteBuffer[] codecOutputBuffers;
+        CodecDriver codec;
 
         extractor = new MediaExtractor();
         extractor.setDataSource(testFd.getFileDescriptor(), testFd.getStartOffset(),
@@ -143,116 +157,297 @@ public class DecoderTest extends MediaPlayerTestBase {
         String mime = format.getString(MediaFormat.KEY_MIME);
         assertTrue("not an audio file", mime.startsWith("audio/"));
 
-        codec = MediaCodec.createDecoderByType(mime);
-        codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
-        codec.start();
-        codecInputBuffers = codec.getInputBuffers();
-        codecOutputBuffers = codec.getOutputBuffers();
+        codec = CodecDriver.createDecoderByType(mime);
+        try {
+            codec.configure(format, null /* surface */, 0 /* flags */);
 
-        if (reconfigure) {
-            codec.stop();
-            codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
-            codec.start();
-            codecInputBuffers = codec.getInputBuffers();
-            codecOutputBuffers = codec.getOutputBuffers();
+            if (reconfigure) {
+                restart(codec, format, null /* surface */);
+            }
+
+            extractor.selectTrack(0);
+
+            if (reconfigure) {
+                // once we've gotten some data out of the decoder, reconfigure it again
+                decodeUntilFirstOutput(codec, extractor);
+                codec.configure(format, null /* surface */, 0 /* flags */);
+            }
+
+            // start decoding
+            sink.setDriver(codec);
+            codec.run(new ExtractorSource(extractor, -1 /* maxSamples */), sink,
+                    CodecDriver.DEFAULT_TIMEOUT_MS);
+        } finally {
+            codec.release();
+            extractor.release();
         }
+    }
 
-        extractor.selectTrack(0);
+    /**
+     * Feeds the selected track of an extractor to a codec.  End of stream is signalled
+     * after the last sample, or with sample number maxSamples if that is positive.
+     */
+    private static class ExtractorSource implements CodecDriver.Source {
+        private final MediaExtractor mExtractor;
+        private final int mMaxSamples;
+        private volatile int mSampleCount;
+
+        ExtractorSource(MediaExtractor extractor, int maxSamples) {
+            mExtractor = extractor;
+            mMaxSamples = maxSamples;
+        }
 
-        // start decoding
-        final long kTimeOutUs = 5000;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        int noOutputCounter = 0;
-        while (!sawOutputEOS && noOutputCounter < 50) {
-            noOutputCounter++;
-            if (!sawInputEOS) {
-                int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-
-                    int sampleSize =
-                        extractor.readSampleData(dstBuf, 0 /* offset */);
-
-                    long presentationTimeUs = 0;
-
-                    if (sampleSize < 0) {
-                        Log.d(TAG, "saw input EOS.");
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeUs = extractor.getSampleTime();
-                    }
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            int sampleSize = mExtractor.readSampleData(buffer, 0 /* offset */);
+            long presentationTimeUs = 0;
+            int flags = 0;
 
-                    codec.queueInputBuffer(
-                            inputBufIndex,
-                            0 /* offset */,
-                            sampleSize,
-                            presentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            if (sampleSize < 0) {
+                Log.d(TAG, "saw input EOS.");
+                flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                sampleSize = 0;
+            } else {
+                presentationTimeUs = mExtractor.getSampleTime();
+                mSampleCount++;
+                if (mSampleCount == mMaxSamples) {
+                    Log.d(TAG, "saw input EOS.");
+                    flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                } else {
+                    mExtractor.advance();
+                }
+            }
+
+            onQueued(presentationTimeUs);
+            info.set(0 /* offset */, sampleSize, presentationTimeUs, flags);
+        }
+
+        /**
+         * Called on the feeding thread before each buffer is queued.
+         */
+        protected void onQueued(long presentationTimeUs) {
+        }
+
+        /**
+         * Returns the number of samples queued so far.
+         */
+        int getSampleCount() {
+            return mSampleCount;
+        }
+    }
+
+    /**
+     * Receives decoded 16 bit PCM samples.
+     */
+    private static abstract class PcmSink implements CodecDriver.Sink {
+        private CodecDriver mDriver;
+
+        void setDriver(CodecDriver driver) {
+            mDriver = driver;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            Log.d(TAG, "output format has changed to " + format);
+        }
 
-                    if (!sawInputEOS) {
-                        extractor.advance();
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buf, MediaCodec.BufferInfo info) {
+            //Log.d(TAG, "got frame, size " + info.size + "/" + info.presentationTimeUs);
+
+            if (!onSamples(buf.asShortBuffer())) {
+                Log.d(TAG, "stopping decode early.");
+                mDriver.finish();
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Log.d(TAG, "saw output EOS.");
+            }
+            return false; // render
+        }
+
+        /**
+         * Consumes the samples of one output buffer.
+         *
+         * @return false to stop decoding
+         */
+        protected abstract boolean onSamples(ShortBuffer samples);
+    }
+
+    /**
+     * Compares decoded samples with a reference using an AudioComparator, and optionally
+     * keeps them.
+     */
+    private static class ComparingPcmSink extends PcmSink {
+        private final AudioComparator mComparator;
+        private final PcmAccumulator mSamples;
+
+        ComparingPcmSink(AudioComparator comparator, boolean keepSamples) {
+            mComparator = comparator;
+            mSamples = keepSamples ? new PcmAccumulator() : null;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            super.onOutputFormatChanged(format);
+            mComparator.setChannelCount(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        }
+
+        @Override
+        protected boolean onSamples(ShortBuffer samples) {
+            if (mSamples != null) {
+                mSamples.append(samples.duplicate());
+            }
+            mComparator.compare(samples);
+            return !mComparator.isBudgetExceeded();
+        }
+
+        short[] getSamples() {
+            return mSamples.toArray();
+        }
+    }
+
+    /**
+     * Checks that decoded samples are identical to a reference as they arrive, without
+     * keeping them.
+     */
+    private static class MatchingPcmSink extends PcmSink {
+        private final short[] mReference;
+        private short[] mScratch = new short[0];
+        private int mCount;
+        private int mFirstMismatch = -1;
+        private short mMismatchedSample;
+
+        MatchingPcmSink(short[] reference) {
+            mReference = reference;
+        }
+
+        @Override
+        protected boolean onSamples(ShortBuffer samples) {
+            int n = samples.remaining();
+            if (mScratch.length < n) {
+                mScratch = new short[n];
+            }
+            samples.get(mScratch, 0, n);
+
+            if (mFirstMismatch < 0) {
+                int end = Math.min(n, mReference.length - mCount);
+                for (int i = 0; i < end; i++) {
+                    if (mScratch[i] != mReference[mCount + i]) {
+                        mFirstMismatch = mCount + i;
+                        mMismatchedSample = mScratch[i];
+                        break;
                     }
                 }
             }
+            mCount += n;
+            return true;
+        }
 
-            int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
+        int getCount() {
+            return mCount;
+        }
 
-            if (res >= 0) {
-                //Log.d(TAG, "got frame, size " + info.size + "/" + info.presentationTimeUs);
+        /**
+         * Returns the index of the first sample that differs from the reference, or -1.
+         */
+        int getFirstMismatch() {
+            return mFirstMismatch;
+        }
 
-                if (info.size > 0) {
-                    noOutputCounter = 0;
-                }
-                if (info.size > 0 && reconfigure) {
-                    // once we've gotten some data out of the decoder, reconfigure it again
-                    reconfigure = false;
-                    extractor.seekTo(0, MediaExtractor.SEEK_TO_NEXT_SYNC);
-                    sawInputEOS = false;
-                    codec.stop();
-                    codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
-                    codec.start();
-                    codecInputBuffers = codec.getInputBuffers();
-                    codecOutputBuffers = codec.getOutputBuffers();
-                    continue;
-                }
+        short getMismatchedSample() {
+            return mMismatchedSample;
+        }
+    }
 
-                int outputBufIndex = res;
-                ByteBuffer buf = codecOutputBuffers[outputBufIndex];
+    /**
+     * Counts decoded video frames, or bytes for audio.
+     */
+    private static class CountingSink implements CodecDriver.Sink {
+        private final boolean mIsAudio;
+        private final boolean mRender;
+        private int mNumFrames;
+        private boolean mSawOutputEOS;
+
+        CountingSink(boolean isAudio, boolean render) {
+            mIsAudio = isAudio;
+            mRender = render;
+        }
 
-                if (decodedIdx + (info.size / 2) >= decoded.length) {
-                    decoded = Arrays.copyOf(decoded, decodedIdx + (info.size / 2));
-                }
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            Log.d(TAG, "output format has changed to " + format);
+        }
 
-                for (int i = 0; i < info.size; i += 2) {
-                    decoded[decodedIdx++] = buf.getShort(i);
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            // Some decoders output a 0-sized buffer at the end. Disregard those.
+            if (info.size > 0) {
+                if (mIsAudio) {
+                    // for audio, count the number of bytes that were decoded, not the number
+                    // of access units
+                    mNumFrames += info.size;
+                } else {
+                    // for video, count the number of video frames
+                    onVideoFrame(buffer, info, mNumFrames);
+                    mNumFrames++;
                 }
+            }
 
-                codec.releaseOutputBuffer(outputBufIndex, false /* render */);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                Log.d(TAG, "saw output EOS.");
+                mSawOutputEOS = true;
+            }
+            return mRender;
+        }
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "saw output EOS.");
-                    sawOutputEOS = true;
-                }
-            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
+        /**
+         * Called for each non-empty video frame.
+         *
+         * @param buffer frame data, or null when decoding to a Surface
+         * @param frame number of the frame
+         */
+        protected void onVideoFrame(ByteBuffer buffer, MediaCodec.BufferInfo info, int frame) {
+        }
 
-                Log.d(TAG, "output buffers have changed.");
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat oformat = codec.getOutputFormat();
+        int getCount() {
+            return mNumFrames;
+        }
 
-                Log.d(TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(TAG, "dequeueOutputBuffer returned " + res);
-            }
+        boolean sawOutputEOS() {
+            return mSawOutputEOS;
         }
+    }
 
+    /**
+     * Starts and immediately stops the codec, then configures it again.
+     */
+    private static void restart(CodecDriver codec, MediaFormat format, Surface s) {
+        codec.start(null /* source */, new CountingSink(false /* isAudio */, false /* render */));
         codec.stop();
-        codec.release();
-        return decoded;
+        codec.configure(format, s /* surface */, 0 /* flags */);
+    }
+
+    /**
+     * Decodes until the codec outputs some data, then stops it and seeks the extractor
+     * back to the start.  The codec has to be configured again before the next run.
+     */
+    private static void decodeUntilFirstOutput(final CodecDriver codec, MediaExtractor extractor)
+            throws Exception {
+        codec.run(new ExtractorSource(extractor, -1 /* maxSamples */), new CodecDriver.Sink() {
+            @Override
+            public void onOutputFormatChanged(MediaFormat format) {
+            }
+
+            @Override
+            public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                if (info.size > 0) {
+                    codec.finish();
+                }
+                return false; // render
+            }
+        }, CodecDriver.DEFAULT_TIMEOUT_MS);
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_NEXT_SYNC);
     }
 
     public void testCodecBasicH264() throws Exception {
@@ -332,20 +527,22 @@ public class DecoderTest extends MediaPlayerTestBase {
     }
 
     private void testCodecReconfig(int video, Surface s) throws Exception {
-        int frames1 = countFrames(video, false /* reconfigure */, -1 /* eosframe */, s);
         int frames2 = countFrames(video, true /* reconfigure */, -1 /* eosframe */, s);
+        GoldenFrameDatabase.Frames golden = getGoldenFrames(video, null /* codecName */);
+        int frames1;
+        if (golden != null && golden.isComplete()) {
+            // the number of frames of a plain decode is known
+            frames1 = golden.getFrameCount();
+        } else {
+            frames1 = countFrames(video, false /* reconfigure */, -1 /* eosframe */, s);
+        }
         assertEquals("different number of frames when reusing codec", frames1, frames2);
     }
 
     private int countFrames(int video, boolean reconfigure, int eosframe, Surface s) throws Exception {
-        int numframes = 0;
-
         AssetFileDescriptor testFd = mResources.openRawResourceFd(video);
 
         MediaExtractor extractor;
-        MediaCodec codec = null;
-        ByteBuffer[] codecInputBuffers;
-        ByteBuffer[] codecOutputBuffers;
 
         extractor = new MediaExtractor();
         extractor.setDataSource(testFd.getFileDescriptor(), testFd.getStartOffset(),
@@ -355,137 +552,79 @@ public class DecoderTest extends MediaPlayerTestBase {
         String mime = format.getString(MediaFormat.KEY_MIME);
         boolean isAudio = mime.startsWith("audio/");
 
-        codec = MediaCodec.createDecoderByType(mime);
+        final CodecDriver codec = CodecDriver.createDecoderByType(mime);
 //        if (mime.contains("avc")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h264.decoder");
+//            codec = CodecDriver.createByCodecName("OMX.google.h264.decoder");
 //        } else if (mime.contains("3gpp")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h263.decoder");
+//            codec = CodecDriver.createByCodecName("OMX.google.h263.decoder");
 //        }
         assertNotNull("couldn't find codec", codec);
-        Log.i("@@@@", "using codec: " + codec.getName());
-        codec.configure(format, s /* surface */, null /* crypto */, 0 /* flags */);
-        codec.start();
-        codecInputBuffers = codec.getInputBuffers();
-        codecOutputBuffers = codec.getOutputBuffers();
-
-        if (reconfigure) {
-            codec.stop();
-            codec.configure(format, s /* surface */, null /* crypto */, 0 /* flags */);
-            codec.start();
-            codecInputBuffers = codec.getInputBuffers();
-            codecOutputBuffers = codec.getOutputBuffers();
-        }
-        Log.i("@@@@", "format: " + format);
+        try {
+            // without a Surface, the frames can be checked against their golden hashes, or
+            // recorded if there are none
+            boolean checkFrames = !isAudio && s == null;
+            final GoldenFrameDatabase.Frames golden = checkFrames ?
+                    getGoldenFrames(video, codec.getCodec().getName()) : null;
+            final List<Long> hashes = Collections.synchronizedList(new ArrayList<Long>());
+            final FrameHasher hasher = new FrameHasher();
+
+            Log.i("@@@@", "using codec: " + codec.getCodec().getName());
+            codec.configure(format, s /* surface */, 0 /* flags */);
+
+            if (reconfigure) {
+                restart(codec, format, s);
+            }
+            Log.i("@@@@", "format: " + format);
 
-        extractor.selectTrack(0);
+            extractor.selectTrack(0);
 
-        // start decoding
-        final long kTimeOutUs = 5000;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        int deadDecoderCounter = 0;
-        int samplecounter = 0;
-        ArrayList<Long> timestamps = new ArrayList<Long>();
-        while (!sawOutputEOS && deadDecoderCounter < 100) {
-            if (!sawInputEOS) {
-                int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-
-                    int sampleSize =
-                        extractor.readSampleData(dstBuf, 0 /* offset */);
-
-                    long presentationTimeUs = 0;
-
-                    if (sampleSize < 0) {
-                        Log.d(TAG, "saw input EOS.");
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeUs = extractor.getSampleTime();
-                        samplecounter++;
-                        if (samplecounter == eosframe) {
-                            sawInputEOS = true;
-                        }
-                    }
+            if (reconfigure) {
+                // once we've gotten some data out of the decoder, reconfigure it again
+                decodeUntilFirstOutput(codec, extractor);
+                codec.configure(format, s /* surface */, 0 /* flags */);
+            }
 
+            // start decoding
+            final List<Long> timestamps = Collections.synchronizedList(new ArrayList<Long>());
+            ExtractorSource source = new ExtractorSource(extractor, eosframe) {
+                @Override
+                protected void onQueued(long presentationTimeUs) {
                     timestamps.add(presentationTimeUs);
-
-                    int flags = extractor.getSampleFlags();
-
-                    codec.queueInputBuffer(
-                            inputBufIndex,
-                            0 /* offset */,
-                            sampleSize,
-                            presentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-
-                    if (!sawInputEOS) {
-                        extractor.advance();
-                    }
                 }
-            }
-
-            int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
-
-            deadDecoderCounter++;
-            if (res >= 0) {
-                //Log.d(TAG, "got frame, size " + info.size + "/" + info.presentationTimeUs);
-
-                // Some decoders output a 0-sized buffer at the end. Disregard those.
-                if (info.size > 0) {
-                    deadDecoderCounter = 0;
-                    if (reconfigure) {
-                        // once we've gotten some data out of the decoder, reconfigure it again
-                        reconfigure = false;
-                        numframes = 0;
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_NEXT_SYNC);
-                        sawInputEOS = false;
-                        timestamps.clear();
-                        codec.stop();
-                        codec.configure(format, s /* surface */, null /* crypto */, 0 /* flags */);
-                        codec.start();
-                        codecInputBuffers = codec.getInputBuffers();
-                        codecOutputBuffers = codec.getOutputBuffers();
-                        continue;
+            };
+            CountingSink sink = new CountingSink(isAudio, true /* render */) {
+                @Override
+                protected void onVideoFrame(ByteBuffer buffer, MediaCodec.BufferInfo info,
+                        int frame) {
+                    // for video, also check the timestamp
+                    assertTrue("invalid timestamp", timestamps.remove(info.presentationTimeUs));
+                    if (buffer == null) {
+                        return;
                     }
-
-                    if (isAudio) {
-                        // for audio, count the number of bytes that were decoded, not the number
-                        // of access units
-                        numframes += info.size;
-                    } else {
-                        // for video, count the number of video frames and check the timestamp
-                        numframes++;
-                        assertTrue("invalid timestamp", timestamps.remove(info.presentationTimeUs));
+                    long sum = checksum(hasher, codec, buffer, info);
+                    if (golden != null && frame < golden.getFrameCount()) {
+                        assertEquals("frame data mismatch at frame " + frame,
+                                golden.getHash(frame), sum);
                     }
+                    hashes.add(sum);
                 }
-                int outputBufIndex = res;
-                codec.releaseOutputBuffer(outputBufIndex, true /* render */);
-
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "saw output EOS.");
-                    sawOutputEOS = true;
+            };
+            codec.run(source, sink, CodecDriver.DEFAULT_TIMEOUT_MS);
+            if (checkFrames && golden == null && !reconfigure && eosframe < 0 &&
+                    isRecordingGoldenFrames()) {
+                long[] sums = new long[hashes.size()];
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] = hashes.get(i);
                 }
-            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
-
-                Log.d(TAG, "output buffers have changed.");
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat oformat = codec.getOutputFormat();
-
-                Log.d(TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(TAG, "no output");
+                recordGoldenFrames(video, codec.getCodec().getName(), sums, sums.length,
+                        true /* complete */);
             }
+            return sink.getCount();
+        } finally {
+            codec.release();
+            extractor.release();
+            testFd.close();
         }
-
-        codec.stop();
-        codec.release();
-        testFd.close();
-        return numframes;
     }
 
     public void testEOSBehaviorH264() throws Exception {
@@ -503,18 +642,13 @@ public class DecoderTest extends MediaPlayerTestBase {
         testEOSBehavior(R.raw.video_176x144_3gp_h263_300kbps_12fps_aac_stereo_128kbps_22050hz, 50);
     }
 
-    private void testEOSBehavior(int movie, int stopatsample) throws Exception {
+    private void testEOSBehavior(int movie, final int stopatsample) throws Exception {
 
-        int numframes = 0;
-
-        long [] checksums = new long[stopatsample];
+        final long [] checksums = new long[stopatsample + 100];
 
         AssetFileDescriptor testFd = mResources.openRawResourceFd(movie);
 
         MediaExtractor extractor;
-        MediaCodec codec = null;
-        ByteBuffer[] codecInputBuffers;
-        ByteBuffer[] codecOutputBuffers;
 
         extractor = new MediaExtractor();
         extractor.setDataSource(testFd.getFileDescriptor(), testFd.getStartOffset(),
@@ -524,117 +658,54 @@ public class DecoderTest extends MediaPlayerTestBase {
         String mime = format.getString(MediaFormat.KEY_MIME);
         boolean isAudio = mime.startsWith("audio/");
 
-        codec = MediaCodec.createDecoderByType(mime);
+        final CodecDriver codec = CodecDriver.createDecoderByType(mime);
 //        if (mime.contains("avc")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h264.decoder");
+//            codec = CodecDriver.createByCodecName("OMX.google.h264.decoder");
 //        } else if (mime.contains("3gpp")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h263.decoder");
+//            codec = CodecDriver.createByCodecName("OMX.google.h263.decoder");
 //        }
+        final FrameHasher hasher = new FrameHasher();
         assertNotNull("couldn't find codec", codec);
-        Log.i("@@@@", "using codec: " + codec.getName());
-        codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
-        codec.start();
-        codecInputBuffers = codec.getInputBuffers();
-        codecOutputBuffers = codec.getOutputBuffers();
-
-        extractor.selectTrack(0);
-
-        // start decoding
-        final long kTimeOutUs = 5000;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        int deadDecoderCounter = 0;
-        int samplenum = 0;
-        while (!sawOutputEOS && deadDecoderCounter < 100) {
-            if (!sawInputEOS) {
-                int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-
-                    int sampleSize =
-                        extractor.readSampleData(dstBuf, 0 /* offset */);
-//                    Log.i("@@@@", "read sample " + samplenum + ":" + extractor.getSampleFlags()
-//                            + " @ " + extractor.getSampleTime() + " size " + sampleSize);
-                    samplenum++;
-
-                    long presentationTimeUs = 0;
-
-                    if (sampleSize < 0 || samplenum >= (stopatsample + 100)) {
-                        Log.d(TAG, "saw input EOS.");
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeUs = extractor.getSampleTime();
-                    }
-
-                    int flags = extractor.getSampleFlags();
-
-                    codec.queueInputBuffer(
-                            inputBufIndex,
-                            0 /* offset */,
-                            sampleSize,
-                            presentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-
-                    if (!sawInputEOS) {
-                        extractor.advance();
-                    }
+        try {
+            String codecName = codec.getCodec().getName();
+            Log.i("@@@@", "using codec: " + codecName);
+            GoldenFrameDatabase.Frames golden = getGoldenFrames(movie, codecName);
+            if (golden != null && golden.getFrameCount() >= stopatsample) {
+                // the frames are known, no need for a reference decode
+                for (int i = 0; i < stopatsample; i++) {
+                    checksums[i] = golden.getHash(i);
                 }
-            }
-
-            int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
-
-            deadDecoderCounter++;
-            if (res >= 0) {
-
-                // Some decoders output a 0-sized buffer at the end. Disregard those.
-                if (info.size > 0) {
-                    deadDecoderCounter = 0;
-
-                    if (isAudio) {
-                        // for audio, count the number of bytes that were decoded, not the number
-                        // of access units
-                        numframes += info.size;
-                    } else {
-                        // for video, count the number of video frames
-                        long sum = checksum(codecOutputBuffers[res], info.size);
-                        if (numframes < checksums.length) {
-                            checksums[numframes] = sum;
+            } else {
+                codec.configure(format, null /* surface */, 0 /* flags */);
+
+                extractor.selectTrack(0);
+
+                // start decoding
+                ExtractorSource source = new ExtractorSource(extractor, checksums.length);
+                CountingSink sink = new CountingSink(isAudio, true /* render */) {
+                    @Override
+                    protected void onVideoFrame(ByteBuffer buffer, MediaCodec.BufferInfo info,
+                            int frame) {
+                        long sum = checksum(hasher, codec, buffer, info);
+                        if (frame < checksums.length) {
+                            checksums[frame] = sum;
                         }
-                        numframes++;
                     }
+                };
+                codec.run(source, sink, CodecDriver.DEFAULT_TIMEOUT_MS);
+                if (!isAudio && isRecordingGoldenFrames()) {
+                    recordGoldenFrames(movie, codecName, checksums,
+                            Math.min(sink.getCount(), checksums.length),
+                            source.getSampleCount() < checksums.length /* complete */);
                 }
-//                Log.d(TAG, "got frame, size " + info.size + "/" + info.presentationTimeUs +
-//                        "/" + numframes + "/" + info.flags);
-
-                int outputBufIndex = res;
-                codec.releaseOutputBuffer(outputBufIndex, true /* render */);
-
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "saw output EOS.");
-                    sawOutputEOS = true;
-                }
-            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
-
-                Log.d(TAG, "output buffers have changed.");
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat oformat = codec.getOutputFormat();
-
-                Log.d(TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(TAG, "no output");
             }
+        } finally {
+            codec.release();
+            extractor.release();
         }
 
-        codec.stop();
-        codec.release();
-        extractor.release();
-
 
-        // We now have checksums for every frame.
+        // We now have checksums for every frame, either golden or from the decode above.
         // Now decode again, but signal EOS right before an index frame, and ensure the frames
         // prior to that are the same.
 
@@ -642,132 +713,145 @@ public class DecoderTest extends MediaPlayerTestBase {
         extractor.setDataSource(testFd.getFileDescriptor(), testFd.getStartOffset(),
                 testFd.getLength());
 
-        codec = MediaCodec.createDecoderByType(mime);
+        final CodecDriver codec2 = CodecDriver.createDecoderByType(mime);
 //        if (mime.contains("avc")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h264.decoder");
+//            codec2 = CodecDriver.createByCodecName("OMX.google.h264.decoder");
 //        } else if (mime.contains("3gpp")) {
-//            codec = MediaCodec.createByCodecName("OMX.google.h263.decoder");
+//            codec2 = CodecDriver.createByCodecName("OMX.google.h263.decoder");
 //        }
-        codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */);
-        codec.start();
-        codecInputBuffers = codec.getInputBuffers();
-        codecOutputBuffers = codec.getOutputBuffers();
-
-        extractor.selectTrack(0);
-
-        // start decoding
-        info = new MediaCodec.BufferInfo();
-        sawInputEOS = false;
-        sawOutputEOS = false;
-        deadDecoderCounter = 0;
-        samplenum = 0;
-        numframes = 0;
-        while (!sawOutputEOS && deadDecoderCounter < 100) {
-            if (!sawInputEOS) {
-                int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
-
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = codecInputBuffers[inputBufIndex];
-
-                    int sampleSize =
-                        extractor.readSampleData(dstBuf, 0 /* offset */);
-//                    Log.i("@@@@", "read sample " + samplenum + ":" + extractor.getSampleFlags()
-//                            + " @ " + extractor.getSampleTime() + " size " + sampleSize);
-                    samplenum++;
-
-                    long presentationTimeUs = extractor.getSampleTime();
-
-                    if (sampleSize < 0 || samplenum >= stopatsample) {
-                        Log.d(TAG, "saw input EOS.");
-                        sawInputEOS = true;
-                        if (sampleSize < 0) {
-                            sampleSize = 0;
-                        }
-                    }
-
-                    int flags = extractor.getSampleFlags();
-
-                    codec.queueInputBuffer(
-                            inputBufIndex,
-                            0 /* offset */,
-                            sampleSize,
-                            presentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-
-                    if (!sawInputEOS) {
-                        extractor.advance();
-                    }
+        final FrameHasher hasher2 = new FrameHasher();
+        ExtractorSource source = new ExtractorSource(extractor, stopatsample);
+        CountingSink sink = new CountingSink(isAudio, true /* render */) {
+            @Override
+            protected void onVideoFrame(ByteBuffer buffer, MediaCodec.BufferInfo info,
+                    int frame) {
+                long sum = checksum(hasher2, codec2, buffer, info);
+                if (frame < stopatsample) {
+                    assertEquals("frame data mismatch at frame " + frame,
+                            checksums[frame], sum);
                 }
             }
+        };
+        try {
+            codec2.configure(format, null /* surface */, 0 /* flags */);
 
-            int res = codec.dequeueOutputBuffer(info, kTimeOutUs);
-
-            deadDecoderCounter++;
-            if (res >= 0) {
-
-                // Some decoders output a 0-sized buffer at the end. Disregard those.
-                if (info.size > 0) {
-                    deadDecoderCounter = 0;
-
-                    if (isAudio) {
-                        // for audio, count the number of bytes that were decoded, not the number
-                        // of access units
-                        numframes += info.size;
-                    } else {
-                        // for video, count the number of video frames
-                        long sum = checksum(codecOutputBuffers[res], info.size);
-                        if (numframes < checksums.length) {
-                            assertEquals("frame data mismatch at frame " + numframes,
-                                    checksums[numframes], sum);
-                        }
-                        numframes++;
-                    }
-                }
-//                Log.d(TAG, "got frame, size " + info.size + "/" + info.presentationTimeUs +
-//                        "/" + numframes + "/" + info.flags);
+            extractor.selectTrack(0);
 
-                int outputBufIndex = res;
-                codec.releaseOutputBuffer(outputBufIndex, true /* render */);
+            // start decoding
+            codec2.run(source, sink, CodecDriver.DEFAULT_TIMEOUT_MS);
+        } finally {
+            codec2.release();
+            extractor.release();
+        }
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "saw output EOS.");
-                    sawOutputEOS = true;
-                }
-            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
+        assertEquals("I!=O", source.getSampleCount(), sink.getCount());
+        assertTrue("last frame didn't have EOS", sink.sawOutputEOS());
+        assertEquals(stopatsample, sink.getCount());
 
-                Log.d(TAG, "output buffers have changed.");
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                MediaFormat oformat = codec.getOutputFormat();
+        testFd.close();
+    }
 
-                Log.d(TAG, "output format has changed to " + oformat);
-            } else {
-                Log.d(TAG, "no output");
+    /**
+     * Returns the golden hashes of the frames of a resource decoded by a codec, or null if
+     * there are none.  The database comes from the assets of the test APK, not those of
+     * the app under test.
+     *
+     * @param codecName name of the decoder, or null for the one that would be chosen for
+     *     the first track of the resource
+     */
+    private GoldenFrameDatabase.Frames getGoldenFrames(int resource, String codecName)
+            throws IOException {
+        synchronized (DecoderTest.class) {
+            if (sGoldenFrames == null) {
+                sGoldenFrames = GoldenFrameDatabase.load(
+                        InstrumentationRegistry.getContext().getAssets(), GOLDEN_FRAMES_ASSET);
+                Log.i(TAG, "loaded " + sGoldenFrames.size() + " golden frame entries");
+            }
+            if (sGoldenFrames.size() == 0) {
+                return null;
             }
         }
+        if (codecName == null) {
+            codecName = getVideoDecoderName(resource);
+            if (codecName == null) {
+                return null;
+            }
+        }
+        synchronized (DecoderTest.class) {
+            return sGoldenFrames.get(mResources.getResourceEntryName(resource), codecName);
+        }
+    }
 
-        codec.stop();
-        codec.release();
-        extractor.release();
-
-        assertEquals("I!=O", samplenum, numframes);
-        assertTrue("last frame didn't have EOS", sawOutputEOS);
-        assertEquals(stopatsample, numframes);
+    /**
+     * Returns whether hashes of frames without golden hashes are recorded, which is only
+     * done when asked for with the {@link #RECORD_GOLDEN_FRAMES_ARG} instrumentation
+     * argument.
+     */
+    private static boolean isRecordingGoldenFrames() {
+        Bundle args = InstrumentationRegistry.getArguments();
+        return args != null && "true".equals(args.getString(RECORD_GOLDEN_FRAMES_ARG));
+    }
 
-        testFd.close();
+    /**
+     * Records the hashes of frames that had no golden hashes to check against in a database
+     * on external storage, which can be copied to the test assets.
+     */
+    private void recordGoldenFrames(int resource, String codecName, long[] hashes, int count,
+            boolean complete) {
+        File file = new File(Environment.getExternalStorageDirectory(), RECORDED_FRAMES_FILE);
+        String name = mResources.getResourceEntryName(resource);
+        try {
+            GoldenFrameDatabase db = GoldenFrameDatabase.load(file);
+            db.put(name, codecName, hashes, count, complete);
+            db.save(file);
+            Log.i(TAG, "recorded " + count + " frames of " + name + " decoded by " + codecName +
+                    " in " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "failed to record golden frames in " + file, e);
+        }
     }
 
-    private long checksum(ByteBuffer buf, int size) {
-        assertTrue(size != 0);
-        assertTrue(size <= buf.capacity());
-        CRC32 crc = new CRC32();
-        int pos = buf.position();
-        buf.rewind();
-        for (int i = 0; i < buf.capacity(); i++) {
-            crc.update(buf.get());
+    /**
+     * Returns the name of the decoder that createDecoderByType would choose for the first
+     * track of a resource, or null if the track isn't video.  Looked up in the codec list,
+     * without creating a codec.
+     */
+    private String getVideoDecoderName(int resource) throws IOException {
+        AssetFileDescriptor testFd = mResources.openRawResourceFd(resource);
+        MediaExtractor extractor = new MediaExtractor();
+        String mime;
+        try {
+            extractor.setDataSource(testFd.getFileDescriptor(), testFd.getStartOffset(),
+                    testFd.getLength());
+            mime = extractor.getTrackFormat(0).getString(MediaFormat.KEY_MIME);
+        } finally {
+            extractor.release();
+            testFd.close();
         }
-        buf.position(pos);
-        return crc.getValue();
+        if (!mime.startsWith("video/")) {
+            return null;
+        }
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (info.isEncoder()) {
+                continue;
+            }
+            String[] types = info.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+                if (types[j].equalsIgnoreCase(mime)) {
+                    return info.getName();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long checksum(FrameHasher hasher, CodecDriver codec, ByteBuffer buf,
+            MediaCodec.BufferInfo info) {
+        assertTrue(info.size != 0);
+        assertTrue(info.offset + info.size <= buf.capacity());
+        return hasher.hashFrame(codec.getOutputBufferIndex(), buf, info);
     }
 
     public void testFlush() throws Exception {
@@ -823,14 +907,15 @@ public class DecoderTest extends MediaPlayerTestBase {
     }
     
     private short getAmplitude(MediaExtractor extractor, MediaCodec codec) {
+        // the largest positive sample, which the thresholds in testFlush were set for
         short maxvalue = 0;
-        int numBytesDecoded = 0;
+        int numSamplesDecoded = 0;
         final long kTimeOutUs = 5000;
         ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
         ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 
-        while(numBytesDecoded < 44100 * 2) {
+        while (numSamplesDecoded < 44100) {
             int inputBufIndex = codec.dequeueInputBuffer(kTimeOutUs);
 
             if (inputBufIndex >= 0) {
@@ -855,15 +940,16 @@ public class DecoderTest extends MediaPlayerTestBase {
                 int outputBufIndex = res;
                 ByteBuffer buf = codecOutputBuffers[outputBufIndex];
 
-                for (int i = 0; i < info.size; i += 2) {
-                    short sample = buf.getShort(i);
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                ShortBuffer samples = buf.asShortBuffer();
+                while (samples.hasRemaining()) {
+                    short sample = samples.get();
                     if (maxvalue < sample) {
                         maxvalue = sample;
                     }
-                    int idx = (numBytesDecoded + i) / 2;
                 }
-
-                numBytesDecoded += info.size;
+                numSamplesDecoded += info.size / 2;
 
                 codec.releaseOutputBuffer(outputBufIndex, false /* render */);
             } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
@@ -872,7 +958,7 @@ public class DecoderTest extends MediaPlayerTestBase {
                 MediaFormat oformat = codec.getOutputFormat();
             }
         }
-        return maxvalue; 
+        return maxvalue;
     }
     
 }
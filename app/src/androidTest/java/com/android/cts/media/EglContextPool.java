@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Process-wide pool of GLES 2.0 EGL contexts, shared by InputSurface and OutputSurface.
+ * <p>
+ * Setting up EGL and compiling shaders is a large part of the runtime of the surface tests,
+ * especially with software GL.  Instead of being destroyed, a released context goes back to
+ * the pool, together with the programs that were linked in it, and is handed out again to
+ * the next surface that asks for the same config.
+ * <p>
+ * A context is only ever used by the one surface that acquired it.  It must not be current
+ * on another thread when it is released.
+ */
+class EglContextPool {
+    private static final String TAG = "EglContextPool";
+    private static final boolean VERBOSE = false;
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final int EGL_OPENGL_ES2_BIT = 4;
+
+    // idle contexts kept per config, the rest are destroyed when released
+    private static final int MAX_IDLE_CONTEXTS = 2;
+    // linked programs kept per context
+    private static final int MAX_PROGRAMS = 16;
+
+    /**
+     * Config for window surfaces that feed a video encoder.  We want enough RGB bits to be
+     * able to tell if the frame is reasonable.
+     */
+    public static final int[] RECORDABLE_CONFIG = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+    };
+
+    /**
+     * Config for pbuffer surfaces, which can be checked with glReadPixels.
+     */
+    public static final int[] PBUFFER_CONFIG = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+            EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+            EGL14.EGL_NONE
+    };
+
+    // all guarded by EglContextPool.class
+    private static EGLDisplay sDisplay;
+    private static final Map<String, ArrayList<PooledContext>> sIdleContexts =
+            new HashMap<String, ArrayList<PooledContext>>();
+    private static final Map<EGLContext, PooledContext> sContexts =
+            new HashMap<EGLContext, PooledContext>();
+
+    /**
+     * A context of the pool, and the programs linked in it.
+     */
+    public static class PooledContext {
+        private final EGLDisplay mDisplay;
+        private final EGLConfig mConfig;
+        private final EGLContext mContext;
+        private final String mKey;
+        private final ProgramCache mProgramCache = new ProgramCache(MAX_PROGRAMS);
+
+        private EGLSurface mCurrentSurface;
+        private boolean mNeedsReset;
+
+        private PooledContext(EGLDisplay display, EGLConfig config, EGLContext context,
+                String key) {
+            mDisplay = display;
+            mConfig = config;
+            mContext = context;
+            mKey = key;
+        }
+
+        public EGLDisplay getDisplay() {
+            return mDisplay;
+        }
+
+        public EGLConfig getConfig() {
+            return mConfig;
+        }
+
+        public EGLContext getContext() {
+            return mContext;
+        }
+
+        /**
+         * Makes the context current, drawing to and reading from a surface.  The first time
+         * after the context was acquired, or when the surface changes, resets the viewport to
+         * the surface size and the GL state that a previous user may have left behind.
+         */
+        public void makeCurrent(EGLSurface surface) {
+            if (!EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext)) {
+                throw new RuntimeException("eglMakeCurrent failed");
+            }
+            if (surface != mCurrentSurface || mNeedsReset) {
+                int[] size = new int[2];
+                EGL14.eglQuerySurface(mDisplay, surface, EGL14.EGL_WIDTH, size, 0);
+                EGL14.eglQuerySurface(mDisplay, surface, EGL14.EGL_HEIGHT, size, 1);
+                GLES20.glViewport(0, 0, size[0], size[1]);
+                if (mNeedsReset) {
+                    GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                    GLES20.glUseProgram(0);
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    mNeedsReset = false;
+                }
+                mCurrentSurface = surface;
+            }
+        }
+
+        /**
+         * Returns the programs linked in this context, which stay with the context while it
+         * is in the pool.
+         */
+        public ProgramCache getProgramCache() {
+            return mProgramCache;
+        }
+    }
+
+    private EglContextPool() {
+    }
+
+    /**
+     * Returns an idle context for a config, creating one if there is none.
+     *
+     * @param configAttribs attributes for eglChooseConfig, e.g. {@link #PBUFFER_CONFIG}
+     */
+    public static synchronized PooledContext acquire(int[] configAttribs) {
+        String key = Arrays.toString(configAttribs);
+        ArrayList<PooledContext> idle = sIdleContexts.get(key);
+        if (idle != null && !idle.isEmpty()) {
+            if (VERBOSE) Log.d(TAG, "reusing context for " + key);
+            return idle.remove(idle.size() - 1);
+        }
+
+        EGLDisplay display = getDisplay();
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, configs.length,
+                numConfigs, 0) || numConfigs[0] == 0) {
+            throw new RuntimeException("unable to find EGL config " + key);
+        }
+
+        // Configure context for OpenGL ES 2.0.
+        int[] attrib_list = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        EGLContext context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                attrib_list, 0);
+        checkEglError("eglCreateContext");
+        if (context == null) {
+            throw new RuntimeException("null context");
+        }
+        if (VERBOSE) Log.d(TAG, "created context for " + key);
+
+        PooledContext pooled = new PooledContext(display, configs[0], context, key);
+        sContexts.put(context, pooled);
+        return pooled;
+    }
+
+    /**
+     * Returns a context to the pool.  If the context is current on this thread, it is made
+     * not current first.
+     */
+    public static synchronized void release(PooledContext pooled) {
+        if (EGL14.eglGetCurrentContext().equals(pooled.mContext)) {
+            // Clear the current context and surface, so the surface can be destroyed.
+            EGL14.eglMakeCurrent(pooled.mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+        }
+        pooled.mCurrentSurface = null;
+        pooled.mNeedsReset = true;
+
+        ArrayList<PooledContext> idle = sIdleContexts.get(pooled.mKey);
+        if (idle == null) {
+            idle = new ArrayList<PooledContext>();
+            sIdleContexts.put(pooled.mKey, idle);
+        }
+        if (idle.size() < MAX_IDLE_CONTEXTS) {
+            idle.add(pooled);
+        } else {
+            // the programs go with the context
+            EGL14.eglDestroyContext(pooled.mDisplay, pooled.mContext);
+            sContexts.remove(pooled.mContext);
+        }
+    }
+
+    /**
+     * Returns the pooled context that is current on this thread, or null if the current
+     * context (if any) is not from the pool.
+     */
+    public static synchronized PooledContext getCurrent() {
+        EGLContext current = EGL14.eglGetCurrentContext();
+        if (current == null || current.equals(EGL14.EGL_NO_CONTEXT)) {
+            return null;
+        }
+        return sContexts.get(current);
+    }
+
+    private static EGLDisplay getDisplay() {
+        if (sDisplay == null) {
+            EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            if (display == EGL14.EGL_NO_DISPLAY) {
+                throw new RuntimeException("unable to get EGL14 display");
+            }
+            int[] version = new int[2];
+            if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+                throw new RuntimeException("unable to initialize EGL14");
+            }
+            // The display is never terminated, the pooled contexts live as long as the
+            // process.
+            sDisplay = display;
+        }
+        return sDisplay;
+    }
+
+    /**
+     * Checks for EGL errors.
+     */
+    private static void checkEglError(String msg) {
+        boolean failed = false;
+        int error;
+        while ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS) {
+            Log.e(TAG, msg + ": EGL error: 0x" + Integer.toHexString(error));
+            failed = true;
+        }
+        if (failed) {
+            throw new RuntimeException("EGL error encountered (see log)");
+        }
+    }
+}
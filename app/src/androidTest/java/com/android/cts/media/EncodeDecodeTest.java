@@ -27,9 +27,11 @@ import android.util.Log;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-
-import javax.microedition.khronos.opengles.GL10;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -58,15 +60,17 @@ public class EncodeDecodeTest extends AndroidTestCase {
     // movie length, in frames
     private static final int NUM_FRAMES = 30;               // two seconds of video
 
-    private static final int TEST_Y = 120;                  // YUV values for colored rect
-    private static final int TEST_U = 160;
-    private static final int TEST_V = 200;
+    static final int TEST_Y = 120;                          // YUV values for colored rect
+    static final int TEST_U = 160;
+    static final int TEST_V = 200;
     private static final int TEST_R0 = 0;                   // RGB equivalent of {0,0,0}
     private static final int TEST_G0 = 136;
     private static final int TEST_B0 = 0;
     private static final int TEST_R1 = 236;                 // RGB equivalent of {120,160,200}
     private static final int TEST_G1 = 50;
     private static final int TEST_B1 = 186;
+    // A frame fails if a plane is worse than an error of 8 (see isColorClose) on every sample
+    private static final double MIN_PSNR = 30.0;
 
     // size of a frame, in pixels
     private int mWidth = -1;
@@ -76,6 +80,11 @@ public class EncodeDecodeTest extends AndroidTestCase {
 
     // largest color component delta seen (i.e. actual vs. expected)
     private int mLargestColorDelta;
+    // reads back frames rendered to the surface, allocated for the current frame size
+    private SurfaceFrameReader mFrameReader;
+    // lowest plane PSNR of a whole decoded frame vs. the frame that was encoded
+    private double mLowestPsnr;
+    private final FrameQuality mFrameQuality = new FrameQuality(false /* computeSsim */);
 
 
     /**
@@ -233,10 +242,11 @@ public class EncodeDecodeTest extends AndroidTestCase {
      * See http://b.android.com/37769 for a discussion of input format pitfalls.
      */
     private void encodeDecodeVideoFromBuffer(boolean toSurface) throws Exception {
-        MediaCodec encoder = null;
-        MediaCodec decoder = null;
+        CodecDriver encoder = null;
+        CodecDriver decoder = null;
 
         mLargestColorDelta = -1;
+        mLowestPsnr = Double.POSITIVE_INFINITY;
 
         try {
             MediaCodecInfo codecInfo = selectCodec(MIME_TYPE);
@@ -264,27 +274,27 @@ public class EncodeDecodeTest extends AndroidTestCase {
 
             // Create a MediaCodec for the desired codec, then configure it as an encoder with
             // our desired properties.
-            encoder = MediaCodec.createByCodecName(codecInfo.getName());
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            encoder.start();
+            encoder = CodecDriver.createByCodecName(codecInfo.getName());
+            encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
             // Create a MediaCodec for the decoder, just based on the MIME type.  The various
             // format details will be passed through the csd-0 meta-data later on.
-            decoder = MediaCodec.createDecoderByType(MIME_TYPE);
+            decoder = CodecDriver.createDecoderByType(MIME_TYPE);
 
             doEncodeDecodeVideoFromBuffer(encoder, colorFormat, decoder, toSurface);
         } finally {
             if (VERBOSE) Log.d(TAG, "releasing codecs");
             if (encoder != null) {
-                encoder.stop();
                 encoder.release();
             }
             if (decoder != null) {
-                decoder.stop();
                 decoder.release();
             }
 
             Log.i(TAG, "Largest color delta: " + mLargestColorDelta);
+            if (!toSurface) {
+                Log.i(TAG, "Lowest PSNR: " + mLowestPsnr);
+            }
         }
     }
 
@@ -408,7 +418,7 @@ public class EncodeDecodeTest extends AndroidTestCase {
      * Returns true if this is a color format that this test code understands (i.e. we know how
      * to read and generate frames in this format).
      */
-    private static boolean isRecognizedFormat(int colorFormat) {
+    static boolean isRecognizedFormat(int colorFormat) {
         switch (colorFormat) {
             // these are the formats we know how to handle for this test
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
@@ -426,7 +436,7 @@ public class EncodeDecodeTest extends AndroidTestCase {
      * Returns true if the specified color format is semi-planar YUV.  Throws an exception
      * if the color format is not recognized (e.g. not YUV).
      */
-    private static boolean isSemiPlanarYUV(int colorFormat) {
+    static boolean isSemiPlanarYUV(int colorFormat) {
         switch (colorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
@@ -440,266 +450,302 @@ public class EncodeDecodeTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * An encoded frame on its way from the encoder to the decoder.
+     */
+    private static class EncodedFrame {
+        final byte[] mData;
+        final long mPresentationTimeUs;
+        final int mFlags;
+
+        EncodedFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+            mData = new byte[info.size];
+            data.get(mData);
+            mPresentationTimeUs = info.presentationTimeUs;
+            mFlags = info.flags;
+        }
+    }
+
+    /**
+     * Checks the frames coming out of the decoder.
+     * <p>
+     * Frames decoded to a buffer are checked right here.  Frames decoded to a Surface are
+     * rendered one at a time, and their indices are handed to the test thread, which checks
+     * them and calls {@link #frameChecked}.
+     */
+    private class DecodedFrameSink implements CodecDriver.Sink {
+        private final boolean mToSurface;
+        private final YuvFrameTemplates mFrames;
+        private final int mFrameColorFormat;
+        private final BlockingQueue<Integer> mRenderedFrames = new LinkedBlockingQueue<Integer>();
+        private final Semaphore mFrameChecked = new Semaphore(1);
+        private MediaFormat mOutputFormat;
+        private int mCheckIndex;
+        private int mBadFrames;
+        private long mRawSize;
+
+        /**
+         * @param frames the frames that were encoded
+         * @param frameColorFormat color format of the encoded frames
+         */
+        DecodedFrameSink(boolean toSurface, YuvFrameTemplates frames, int frameColorFormat) {
+            mToSurface = toSurface;
+            mFrames = frames;
+            mFrameColorFormat = frameColorFormat;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            // this happens before the first frame is returned
+            mOutputFormat = format;
+            if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer outputFrame, MediaCodec.BufferInfo info)
+                throws Exception {
+            boolean doRender = false;
+            mRawSize += info.size;
+            if (!mToSurface) {
+                if (info.size == 0) {
+                    if (VERBOSE) Log.d(TAG, "got empty frame");
+                } else {
+                    if (VERBOSE) Log.d(TAG, "decoded, checking frame " + mCheckIndex);
+                    assertEquals("Wrong time stamp", computePresentationTime(mCheckIndex),
+                            info.presentationTimeUs);
+                    if (!checkFrame(mCheckIndex++, mOutputFormat, outputFrame, mFrames,
+                            mFrameColorFormat)) {
+                        mBadFrames++;
+                    }
+                }
+            } else {
+                if (VERBOSE) Log.d(TAG, "surface decoder given buffer (size=" + info.size + ")");
+                doRender = (info.size != 0);
+                if (doRender) {
+                    assertEquals("Wrong time stamp", computePresentationTime(mCheckIndex),
+                            info.presentationTimeUs);
+                    // The SurfaceTexture only latches the newest image, so don't render this
+                    // frame before the previous one has been checked.
+                    if (!mFrameChecked.tryAcquire(CodecDriver.DEFAULT_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS)) {
+                        throw new TimeoutException("frame " + (mCheckIndex - 1) +
+                                " was not checked");
+                    }
+                    mRenderedFrames.add(mCheckIndex++);
+                }
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "output EOS");
+                if (mToSurface) {
+                    mRenderedFrames.add(-1);
+                }
+            }
+            return doRender;
+        }
+
+        /**
+         * Returns the index of the next rendered frame, -1 after the last one, or null if
+         * none was rendered within the timeout.
+         */
+        Integer pollRenderedFrame(long timeoutMs) throws InterruptedException {
+            return mRenderedFrames.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        void frameChecked() {
+            mFrameChecked.release();
+        }
+
+        int getCheckIndex() {
+            return mCheckIndex;
+        }
+
+        int getBadFrames() {
+            return mBadFrames;
+        }
+
+        long getRawSize() {
+            return mRawSize;
+        }
+    }
+
     /**
      * Does the actual work for encoding frames from buffers of byte[].
+     * <p>
+     * The encoder and decoder run asynchronously.  Encoded frames are handed from the
+     * encoder's output to the decoder's input through a queue.
      */
-    private void doEncodeDecodeVideoFromBuffer(MediaCodec encoder, int encoderColorFormat,
-                                               MediaCodec decoder, boolean toSurfacexx) {
-        final int TIMEOUT_USEC = 10000;
-        ByteBuffer[] encoderInputBuffers = encoder.getInputBuffers();
-        ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
-        ByteBuffer[] decoderInputBuffers = null;
-        ByteBuffer[] decoderOutputBuffers = null;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        MediaFormat decoderOutputFormat = null;
-        int generateIndex = 0;
-        int checkIndex = 0;
+    private void doEncodeDecodeVideoFromBuffer(CodecDriver encoder, final int encoderColorFormat,
+            final CodecDriver decoder, final boolean toSurface) throws Exception {
+        final long TIMEOUT_MS = CodecDriver.DEFAULT_TIMEOUT_MS;
         int badFrames = 0;
-        boolean decoderConfigured = false;
-        OutputSurface outputSurfacexx = null;
 
         // The size of a frame of video data, in the formats we handle, is stride*sliceHeight
-        // for Y, and (stride/2)*(sliceHeight/2) for each of the Cb and Cr channels.  Application
-        // of algebra and assuming that stride==width and sliceHeight==height yields:
-        byte[] frameData = new byte[mWidth * mHeight * 3 / 2];
-
-        // Just out of curiosity.
-        long rawSize = 0;
-        long encodedSize = 0;
+        // for Y, and (stride/2)*(sliceHeight/2) for each of the Cb and Cr channels.  Assuming
+        // that stride==width and sliceHeight==height, that's width*height*3/2.  The frames are
+        // rendered up front and copied straight into the input buffers.
+        final YuvFrameTemplates frames =
+                YuvFrameTemplates.get(encoderColorFormat, mWidth, mHeight);
 
         // Save a copy to disk.  Useful for debugging the test.  Note this is a raw elementary
         // stream, not a .mp4 file, so not all players will know what to do with it.
-        FileOutputStream outputStream = null;
+        FileOutputStream debugStream = null;
         if (DEBUG_SAVE_FILE) {
             String fileName = DEBUG_FILE_NAME_BASE + mWidth + "x" + mHeight + ".mp4";
             try {
-                outputStream = new FileOutputStream(fileName);
+                debugStream = new FileOutputStream(fileName);
                 Log.d(TAG, "encoded output will be saved as " + fileName);
             } catch (IOException ioe) {
                 Log.w(TAG, "Unable to create debug output file " + fileName);
                 throw new RuntimeException(ioe);
             }
         }
+        final FileOutputStream outputStream = debugStream;
 
+        OutputSurface surface = null;
         if (toSurface) {
-            outputSurface = new OutputSurface(mWidth, mHeight);
+            surface = new OutputSurface(mWidth, mHeight);
         }
+        final OutputSurface outputSurface = surface;
+
+        // Generate frames into the encoder's input buffers as it asks for them.
+        CodecDriver.Source encoderSource = new CodecDriver.Source() {
+            private int mGenerateIndex = 0;
+
+            @Override
+            public void fillInputBuffer(ByteBuffer inputBuf, MediaCodec.BufferInfo info) {
+                long ptsUsec = computePresentationTime(mGenerateIndex);
+                if (mGenerateIndex == NUM_FRAMES) {
+                    // Send an empty frame with the end-of-stream flag set.  If we set EOS
+                    // on a frame with data, that frame data will be ignored, and the
+                    // output will be short one frame.
+                    info.set(0, 0, ptsUsec, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    if (VERBOSE) Log.d(TAG, "sent input EOS (with zero-length frame)");
+                } else {
+                    // the buffer should be sized to hold one full frame
+                    assertTrue(inputBuf.capacity() >= frames.getFrameSize());
+                    frames.putFrame(mGenerateIndex, inputBuf);
 
-        // Loop until the output side is done.
-        boolean inputDone = false;
-        boolean encoderDone = false;
-        boolean outputDone = false;
-        while (!outputDone) {
-            if (VERBOSE) Log.d(TAG, "loop");
+                    info.set(0, frames.getFrameSize(), ptsUsec, 0);
+                    if (VERBOSE) Log.d(TAG, "submitted frame " + mGenerateIndex + " to enc");
+                }
+                mGenerateIndex++;
+            }
+        };
+
+        // The decoder's feeding thread blocks until the encoder has produced the next frame.
+        final BlockingQueue<EncodedFrame> encodedFrames = new LinkedBlockingQueue<EncodedFrame>();
+        final CodecDriver.Source decoderSource = new CodecDriver.Source() {
+            @Override
+            public void fillInputBuffer(ByteBuffer inputBuf, MediaCodec.BufferInfo info)
+                    throws InterruptedException {
+                EncodedFrame frame = encodedFrames.take();
+                inputBuf.put(frame.mData);
+                info.set(0, frame.mData.length, frame.mPresentationTimeUs, frame.mFlags);
+            }
+        };
+        final DecodedFrameSink decoderSink =
+                new DecodedFrameSink(toSurface, frames, encoderColorFormat);
+
+        CodecDriver.Sink encoderSink = new CodecDriver.Sink() {
+            private boolean mDecoderConfigured = false;
+            private long mEncodedSize = 0;
+
+            @Override
+            public void onOutputFormatChanged(MediaFormat newFormat) {
+                // not expected for an encoder
+                if (VERBOSE) Log.d(TAG, "encoder output format changed: " + newFormat);
+            }
 
-            // If we're not done submitting frames, generate a new one and submit it.  By
-            // doing this on every loop we're working to ensure that the encoder always has
-            // work to do.
-            //
-            // We don't really want a timeout here, but sometimes there's a delay opening
-            // the encoder device, so a short timeout can keep us from spinning hard.
-            if (!inputDone) {
-                int inputBufIndex = encoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (VERBOSE) Log.d(TAG, "inputBufIndex=" + inputBufIndex);
-                if (inputBufIndex >= 0) {
-                    long ptsUsec = computePresentationTime(generateIndex);
-                    if (generateIndex == NUM_FRAMES) {
-                        // Send an empty frame with the end-of-stream flag set.  If we set EOS
-                        // on a frame with data, that frame data will be ignored, and the
-                        // output will be short one frame.
-                        encoder.queueInputBuffer(inputBufIndex, 0, 0, ptsUsec,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        inputDone = true;
-                        if (VERBOSE) Log.d(TAG, "sent input EOS (with zero-length frame)");
-                    } else {
-                        generateFrame(generateIndex, encoderColorFormat, frameData);
-
-                        ByteBuffer inputBuf = encoderInputBuffers[inputBufIndex];
-                        // the buffer should be sized to hold one full frame
-                        assertTrue(inputBuf.capacity() >= frameData.length);
-                        inputBuf.clear();
-                        inputBuf.put(frameData);
+            @Override
+            public boolean onOutputBuffer(ByteBuffer encodedData, MediaCodec.BufferInfo info)
+                    throws IOException {
+                if (encodedData == null) {
+                    fail("encoderOutputBuffer was null");
+                }
 
-                        encoder.queueInputBuffer(inputBufIndex, 0, frameData.length, ptsUsec, 0);
-                        if (VERBOSE) Log.d(TAG, "submitted frame " + generateIndex + " to enc");
-                    }
-                    generateIndex++;
+                mEncodedSize += info.size;
+                if (outputStream != null) {
+                    byte[] data = new byte[info.size];
+                    encodedData.get(data);
+                    encodedData.position(info.offset);
+                    outputStream.write(data);
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Codec config info.  Only expected on first packet.  One way to
+                    // handle this is to manually stuff the data into the MediaFormat
+                    // and pass that to configure().  We do that here to exercise the API.
+                    assertFalse(mDecoderConfigured);
+                    MediaFormat format =
+                            MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+                    format.setByteBuffer("csd-0", encodedData);
+                    decoder.configure(format, toSurface ? outputSurface.getSurface() : null, 0);
+                    decoder.start(decoderSource, decoderSink);
+                    mDecoderConfigured = true;
+                    if (VERBOSE) Log.d(TAG, "decoder configured (" + info.size + " bytes)");
                 } else {
-                    // either all in use, or we timed out during initial setup
-                    if (VERBOSE) Log.d(TAG, "input buffer not available");
+                    assertTrue(mDecoderConfigured);
+                    encodedFrames.add(new EncodedFrame(encodedData, info));
+                    if (VERBOSE) Log.d(TAG, "passed " + info.size + " bytes to decoder"
+                            + ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ?
+                            " (EOS, enc=" + mEncodedSize + ")" : ""));
                 }
+                return false; // render
             }
+        };
 
-            // Check for output from the encoder.  If there's no output yet, we either need to
-            // provide more input, or we need to wait for the encoder to work its magic.  We
-            // can't actually tell which is the case, so if we can't get an output buffer right
-            // away we loop around and see if it wants more input.
-            //
-            // Once we get EOS from the encoder, we don't need to do this anymore.
-            if (!encoderDone) {
-                int encoderStatus = encoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    if (VERBOSE) Log.d(TAG, "no output from encoder available");
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = encoder.getOutputBuffers();
-                    if (VERBOSE) Log.d(TAG, "encoder output buffers changed");
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // not expected for an encoder
-                    MediaFormat newFormat = encoder.getOutputFormat();
-                    if (VERBOSE) Log.d(TAG, "encoder output format changed: " + newFormat);
-                } else if (encoderStatus < 0) {
-                    fail("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-                } else { // encoderStatus >= 0
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) {
-                        fail("encoderOutputBuffer " + encoderStatus + " was null");
+        encoder.start(encoderSource, encoderSink);
+        try {
+            if (toSurface) {
+                while (true) {
+                    Integer frame = decoderSink.pollRenderedFrame(TIMEOUT_MS);
+                    if (frame == null) {
+                        // rethrow the error of whichever codec got stuck
+                        encoder.awaitCompletion(0);
+                        decoder.awaitCompletion(0);
+                        fail("timed out waiting for decoded frame");
                     }
-
-                    // It's usually necessary to adjust the ByteBuffer values to match BufferInfo.
-                    encodedData.position(info.offset);
-                    encodedData.limit(info.offset + info.size);
-
-                    encodedSize += info.size;
-                    if (outputStream != null) {
-                        byte[] data = new byte[info.size];
-                        encodedData.get(data);
-                        encodedData.position(info.offset);
-                        try {
-                            outputStream.write(data);
-                        } catch (IOException ioe) {
-                            Log.w(TAG, "failed writing debug data to file");
-                            throw new RuntimeException(ioe);
-                        }
+                    if (frame < 0) {
+                        break;
                     }
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // Codec config info.  Only expected on first packet.  One way to
-                        // handle this is to manually stuff the data into the MediaFormat
-                        // and pass that to configure().  We do that here to exercise the API.
-                        assertFalse(decoderConfigured);
-                        MediaFormat format =
-                                MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-                        format.setByteBuffer("csd-0", encodedData);
-                        decoder.configure(format, toSurface ? outputSurface.getSurface() : null,
-                                null, 0);
-                        decoder.start();
-                        decoderInputBuffers = decoder.getInputBuffers();
-                        decoderOutputBuffers = decoder.getOutputBuffers();
-                        decoderConfigured = true;
-                        if (VERBOSE) Log.d(TAG, "decoder configured (" + info.size + " bytes)");
-                    } else {
-                        // Get a decoder input buffer, blocking until it's available.
-                        assertTrue(decoderConfigured);
-                        int inputBufIndex = decoder.dequeueInputBuffer(-1);
-                        ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
-                        inputBuf.clear();
-                        inputBuf.put(encodedData);
-                        decoder.queueInputBuffer(inputBufIndex, 0, info.size,
-                                info.presentationTimeUs, info.flags);
 
-                        encoderDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-                        if (VERBOSE) Log.d(TAG, "passed " + info.size + " bytes to decoder"
-                                + (encoderDone ? " (EOS)" : ""));
+                    // As soon as the decoder releases the output buffer, it will be forwarded
+                    // to SurfaceTexture to convert to a texture.  The API doesn't guarantee
+                    // that the texture will be available before the call returns, so we
+                    // need to wait for the onFrameAvailable callback to fire.
+                    if (VERBOSE) Log.d(TAG, "awaiting frame " + frame);
+                    outputSurface.awaitNewImage();
+                    outputSurface.drawImage();
+                    if (!checkSurfaceFrame(frame)) {
+                        badFrames++;
                     }
-
-                    encoder.releaseOutputBuffer(encoderStatus, false);
+                    decoderSink.frameChecked();
                 }
             }
-
-            // Check for output from the decoder.  We want to do this on every loop to avoid
-            // the possibility of stalling the pipeline.  We use a short timeout to avoid
-            // burning CPU if the decoder is hard at work but the next frame isn't quite ready.
-            //
-            // If we're decoding to a Surface, we'll get notified here as usual but the
-            // ByteBuffer references will be null.  The data is sent to Surface instead.
-            if (decoderConfigured) {
-                int decoderStatus = decoder.dequeueOutputBuffer(info, TIMEOUT_USEC);
-                if (decoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    // no output available yet
-                    if (VERBOSE) Log.d(TAG, "no output from decoder available");
-                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // The storage associated with the direct ByteBuffer may already be unmapped,
-                    // so attempting to access data through the old output buffer array could
-                    // lead to a native crash.
-                    if (VERBOSE) Log.d(TAG, "decoder output buffers changed");
-                    decoderOutputBuffers = decoder.getOutputBuffers();
-                } else if (decoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // this happens before the first frame is returned
-                    decoderOutputFormat = decoder.getOutputFormat();
-                    if (VERBOSE) Log.d(TAG, "decoder output format changed: " +
-                            decoderOutputFormat);
-                } else if (decoderStatus < 0) {
-                    fail("unexpected result from deocder.dequeueOutputBuffer: " + decoderStatus);
-                } else {  // decoderStatus >= 0
-                    if (!toSurface) {
-                        ByteBuffer outputFrame = decoderOutputBuffers[decoderStatus];
-
-                        outputFrame.position(info.offset);
-                        outputFrame.limit(info.offset + info.size);
-
-                        rawSize += info.size;
-                        if (info.size == 0) {
-                            if (VERBOSE) Log.d(TAG, "got empty frame");
-                        } else {
-                            if (VERBOSE) Log.d(TAG, "decoded, checking frame " + checkIndex);
-                            assertEquals("Wrong time stamp", computePresentationTime(checkIndex),
-                                    info.presentationTimeUs);
-                            if (!checkFrame(checkIndex++, decoderOutputFormat, outputFrame)) {
-                                badFrames++;
-                            }
-                        }
-
-                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            if (VERBOSE) Log.d(TAG, "output EOS");
-                            outputDone = true;
-                        }
-                        decoder.releaseOutputBuffer(decoderStatus, false /*render*/);
-                    } else {
-                        if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
-                                " (size=" + info.size + ")");
-                        rawSize += info.size;
-                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            if (VERBOSE) Log.d(TAG, "output EOS");
-                            outputDone = true;
-                        }
-
-                        boolean doRender = (info.size != 0);
-
-                        // As soon as we call releaseOutputBuffer, the buffer will be forwarded
-                        // to SurfaceTexture to convert to a texture.  The API doesn't guarantee
-                        // that the texture will be available before the call returns, so we
-                        // need to wait for the onFrameAvailable callback to fire.
-                        decoder.releaseOutputBuffer(decoderStatus, doRender);
-                        if (doRender) {
-                            if (VERBOSE) Log.d(TAG, "awaiting frame " + checkIndex);
-                            assertEquals("Wrong time stamp", computePresentationTime(checkIndex),
-                                    info.presentationTimeUs);
-                            outputSurface.awaitNewImage();
-                            outputSurface.drawImage();
-                            if (!checkSurfaceFrame(checkIndex++)) {
-                                badFrames++;
-                            }
-                        }
-                    }
+            encoder.awaitCompletion(TIMEOUT_MS);
+            decoder.awaitCompletion(TIMEOUT_MS);
+        } finally {
+            encoder.stop();
+            decoder.stop();
+
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed closing debug file");
+                    throw new RuntimeException(ioe);
                 }
             }
-        }
 
-        if (VERBOSE) Log.d(TAG, "decoded " + checkIndex + " frames at "
-                + mWidth + "x" + mHeight + ": raw=" + rawSize + ", enc=" + encodedSize);
-        if (outputStream != null) {
-            try {
-                outputStream.close();
-            } catch (IOException ioe) {
-                Log.w(TAG, "failed closing debug file");
-                throw new RuntimeException(ioe);
+            if (outputSurface != null) {
+                outputSurface.release();
             }
         }
 
-        if (outputSurface != null) {
-            outputSurface.release();
-        }
+        int checkIndex = decoderSink.getCheckIndex();
+        badFrames += decoderSink.getBadFrames();
+        if (VERBOSE) Log.d(TAG, "decoded " + checkIndex + " frames at "
+                + mWidth + "x" + mHeight + ": raw=" + decoderSink.getRawSize());
 
         if (checkIndex != NUM_FRAMES) {
             fail("expected " + NUM_FRAMES + " frames, only decoded " + checkIndex);
@@ -904,96 +950,37 @@ public class EncodeDecodeTest extends AndroidTestCase {
     }
 
 
-    /**
-     * Generates data for frame N into the supplied buffer.  We have an 8-frame animation
-     * sequence that wraps around.  It looks like this:
-     * <pre>
-     *   0 1 2 3
-     *   7 6 5 4
-     * </pre>
-     * We draw one of the eight rectangles and leave the rest set to the zero-fill color.
-     */
-    private void generateFrame(int frameIndex, int colorFormat, byte[] frameData) {
-        final int HALF_WIDTH = mWidth / 2;
-        boolean semiPlanar = isSemiPlanarYUV(colorFormat);
-
-        // Set to zero.  In YUV this is a dull green.
-        Arrays.fill(frameData, (byte) 0);
-
-        int startX, startY, countX, countY;
-
-        frameIndex %= 8;
-        //frameIndex = (frameIndex / 8) % 8;    // use this instead for debug -- easier to see
-        if (frameIndex < 4) {
-            startX = frameIndex * (mWidth / 4);
-            startY = 0;
-        } else {
-            startX = (7 - frameIndex) * (mWidth / 4);
-            startY = mHeight / 2;
-        }
-
-        for (int y = startY + (mHeight / 2) - 1; y >= startY; --y) {
-            for (int x = startX + (mWidth / 4) - 1; x >= startX; --x) {
-                if (semiPlanar) {
-                    // full-size Y, followed by UV pairs at half resolution
-                    // e.g. Nexus 4 OMX.qcom.video.encoder.avc COLOR_FormatYUV420SemiPlanar
-                    // e.g. Galaxy Nexus OMX.TI.DUCATI1.VIDEO.H264E
-                    //        OMX_TI_COLOR_FormatYUV420PackedSemiPlanar
-                    frameData[y * mWidth + x] = (byte) TEST_Y;
-                    if ((x & 0x01) == 0 && (y & 0x01) == 0) {
-                        frameData[mWidth * mHeight + y * HALF_WIDTH + x] = (byte) TEST_U;
-                        frameData[mWidth * mHeight + y * HALF_WIDTH + x + 1] = (byte) TEST_V;
-                    }
-                } else {
-                    // full-size Y, followed by quarter-size U and quarter-size V
-                    // e.g. Nexus 10 OMX.Exynos.AVC.Encoder COLOR_FormatYUV420Planar
-                    // e.g. Nexus 7 OMX.Nvidia.h264.encoder COLOR_FormatYUV420Planar
-                    frameData[y * mWidth + x] = (byte) TEST_Y;
-                    if ((x & 0x01) == 0 && (y & 0x01) == 0) {
-                        frameData[mWidth * mHeight + (y / 2) * HALF_WIDTH + (x / 2)] = (byte) TEST_U;
-                        frameData[mWidth * mHeight + HALF_WIDTH * (mHeight / 2) +
-                                (y / 2) * HALF_WIDTH + (x / 2)] = (byte) TEST_V;
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * Performs a simple check to see if the frame is more or less right.
      * <p>
-     * See {@link #generateFrame} for a description of the layout.  The idea is to sample
+     * See {@link YuvFrameTemplates} for a description of the layout.  The idea is to sample
      * one pixel from the middle of the 8 regions, and verify that the correct one has
      * the non-background color.  We can't know exactly what the video encoder has done
      * with our frames, so we just check to see if it looks like more or less the right thing.
+     * <p>
+     * The whole crop rectangle is also compared with the frame that was encoded, and the
+     * frame fails if the PSNR of any plane is below MIN_PSNR.
      *
+     * @param frames the frames that were encoded
+     * @param frameColorFormat color format of the encoded frames
      * @return true if the frame looks good
      */
-    private boolean checkFrame(int frameIndex, MediaFormat format, ByteBuffer frameData) {
+    private boolean checkFrame(int frameIndex, MediaFormat format, ByteBuffer frameData,
+            YuvFrameTemplates frames, int frameColorFormat) {
         // Check for color formats we don't understand.  There is no requirement for video
         // decoders to use a "mundane" format, so we just give a pass on proprietary formats.
         // e.g. Nexus 4 0x7FA30C03 OMX_QCOM_COLOR_FormatYUV420PackedSemiPlanar64x32Tile2m8ka
-        int colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
-        if (!isRecognizedFormat(colorFormat)) {
+        YuvFrameView view = YuvFrameView.create(frameData, frameData.position(), format);
+        if (view == null) {
             Log.d(TAG, "unable to check frame contents for colorFormat=" +
-                    Integer.toHexString(colorFormat));
+                    Integer.toHexString(format.getInteger(MediaFormat.KEY_COLOR_FORMAT)));
             return true;
         }
 
         boolean frameFailed = false;
-        boolean semiPlanar = isSemiPlanarYUV(colorFormat);
-        int width = format.getInteger(MediaFormat.KEY_WIDTH);
-        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
-        int halfWidth = width / 2;
-        int cropLeft = format.getInteger("crop-left");
-        int cropRight = format.getInteger("crop-right");
-        int cropTop = format.getInteger("crop-top");
-        int cropBottom = format.getInteger("crop-bottom");
-        int cropWidth = cropRight - cropLeft + 1;
-        int cropHeight = cropBottom - cropTop + 1;
-
-        assertEquals(mWidth, cropWidth);
-        assertEquals(mHeight, cropHeight);
+
+        assertEquals(mWidth, view.getWidth());
+        assertEquals(mHeight, view.getHeight());
 
         for (int i = 0; i < 8; i++) {
             int x, y;
@@ -1005,22 +992,9 @@ public class EncodeDecodeTest extends AndroidTestCase {
                 y = (mHeight * 3) / 4;
             }
 
-            y += cropTop;
-            x += cropLeft;
-
-            int testY, testU, testV;
-            if (semiPlanar) {
-                // Galaxy Nexus uses OMX_TI_COLOR_FormatYUV420PackedSemiPlanar
-                testY = frameData.get(y * width + x) & 0xff;
-                testU = frameData.get(width * height + 2 * (y / 2) * halfWidth + 2 * (x / 2)) & 0xff;
-                testV = frameData.get(width * height + 2 * (y / 2) * halfWidth + 2 * (x / 2) + 1) & 0xff;
-            } else {
-                // Nexus 10, Nexus 7 use COLOR_FormatYUV420Planar
-                testY = frameData.get(y * width + x) & 0xff;
-                testU = frameData.get(width * height + (y / 2) * halfWidth + (x / 2)) & 0xff;
-                testV = frameData.get(width * height + halfWidth * (height / 2) +
-                        (y / 2) * halfWidth + (x / 2)) & 0xff;
-            }
+            int testY = view.getY(x, y);
+            int testU = view.getU(x, y);
+            int testV = view.getV(x, y);
 
             int expY, expU, expV;
             if (i == frameIndex % 8) {
@@ -1042,6 +1016,16 @@ public class EncodeDecodeTest extends AndroidTestCase {
             }
         }
 
+        FrameQuality.Result quality = mFrameQuality.compare(view,
+                YuvFrameView.create(ByteBuffer.wrap(frames.getFrame(frameIndex)), 0,
+                        frameColorFormat, mWidth, mHeight, 0, 0, mWidth, mHeight));
+        if (VERBOSE) Log.d(TAG, "frame " + frameIndex + " quality: " + quality);
+        mLowestPsnr = Math.min(mLowestPsnr, quality.getMinPsnr());
+        if (quality.getMinPsnr() < MIN_PSNR) {
+            Log.w(TAG, "Bad frame " + frameIndex + " (" + quality + ")");
+            frameFailed = true;
+        }
+
         return !frameFailed;
     }
 
@@ -1077,7 +1061,12 @@ public class EncodeDecodeTest extends AndroidTestCase {
      * @return true if the frame looks good
      */
     private boolean checkSurfaceFrame(int frameIndex) {
-        ByteBuffer pixelBuf = ByteBuffer.allocateDirect(4); // TODO - reuse this
+        if (mFrameReader == null || mFrameReader.getWidth() != mWidth ||
+                mFrameReader.getHeight() != mHeight) {
+            mFrameReader = new SurfaceFrameReader(mWidth, mHeight);
+        }
+        // read the whole frame at once, rather than stalling GL for each pixel
+        mFrameReader.readFrame();
         boolean frameFailed = false;
 
         for (int i = 0; i < 8; i++) {
@@ -1091,10 +1080,9 @@ public class EncodeDecodeTest extends AndroidTestCase {
                 y = mHeight / 4;
             }
 
-            GLES20.glReadPixels(x, y, 1, 1, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, pixelBuf);
-            int r = pixelBuf.get(0) & 0xff;
-            int g = pixelBuf.get(1) & 0xff;
-            int b = pixelBuf.get(2) & 0xff;
+            int r = mFrameReader.getRed(x, y);
+            int g = mFrameReader.getGreen(x, y);
+            int b = mFrameReader.getBlue(x, y);
             //Log.d(TAG, "GOT(" + frameIndex + "/" + i + "): r=" + r + " g=" + g + " b=" + b);
 
             int expR, expG, expB;
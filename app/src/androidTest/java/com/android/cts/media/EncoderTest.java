@@ -35,14 +35,14 @@ public class EncoderTest extends AndroidTestCase {
     private static final boolean VERBOSE = false;
 
     private static final int kNumInputBytes = 256 * 1024;
-    private static final long kTimeoutUs = 10000;
+    private static final long kTimeoutMs = CodecDriver.DEFAULT_TIMEOUT_MS;
 
     @Override
     public void setContext(Context context) {
         super.setContext(context);
     }
 
-    public void testAMRNBEncoders() {
+    public void testAMRNBEncoders() throws Exception {
         LinkedList<MediaFormat> formats = new LinkedList<MediaFormat>();
 
         final int kBitRates[] =
@@ -60,7 +60,7 @@ public class EncoderTest extends AndroidTestCase {
         testEncoderWithFormats("audio/3gpp", formats);
     }
 
-    public void testAMRWBEncoders() {
+    public void testAMRWBEncoders() throws Exception {
         LinkedList<MediaFormat> formats = new LinkedList<MediaFormat>();
 
         final int kBitRates[] =
@@ -78,7 +78,7 @@ public class EncoderTest extends AndroidTestCase {
         testEncoderWithFormats("audio/amr-wb", formats);
     }
 
-    public void testAACEncoders() {
+    public void testAACEncoders() throws Exception {
         LinkedList<MediaFormat> formats = new LinkedList<MediaFormat>();
 
         final int kAACProfiles[] = {
@@ -119,7 +119,7 @@ public class EncoderTest extends AndroidTestCase {
     }
 
     private void testEncoderWithFormats(
-            String mime, List<MediaFormat> formats) {
+            String mime, List<MediaFormat> formats) throws Exception {
         List<String> componentNames = getEncoderNamesForType(mime);
 
         for (String componentName : componentNames) {
@@ -165,37 +165,82 @@ public class EncoderTest extends AndroidTestCase {
         return names;
     }
 
-    private int queueInputBuffer(
-            MediaCodec codec, ByteBuffer[] inputBuffers, int index) {
-        ByteBuffer buffer = inputBuffers[index];
-        buffer.clear();
+    /**
+     * Feeds kNumInputBytes of silence to an encoder, filling each input buffer.
+     */
+    private static class SilenceSource implements CodecDriver.Source {
+        private byte[] mZeroes = new byte[0];
+        private int mNumBytesSubmitted = 0;
 
-        int size = buffer.limit();
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (mNumBytesSubmitted >= kNumInputBytes) {
+                info.set(0 /* offset */, 0 /* size */, 0 /* timeUs */,
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
 
-        byte[] zeroes = new byte[size];
-        buffer.put(zeroes);
+                if (VERBOSE) {
+                    Log.d(TAG, "queued input EOS.");
+                }
+                return;
+            }
+
+            int size = buffer.limit();
+            if (mZeroes.length < size) {
+                mZeroes = new byte[size];
+            }
+            buffer.put(mZeroes, 0, size);
+            info.set(0 /* offset */, size, 0 /* timeUs */, 0 /* flags */);
+
+            mNumBytesSubmitted += size;
 
-        codec.queueInputBuffer(index, 0 /* offset */, size, 0 /* timeUs */, 0);
+            if (VERBOSE) {
+                Log.d(TAG, "queued " + size + " bytes of input data.");
+            }
+        }
 
-        return size;
+        int getNumBytesSubmitted() {
+            return mNumBytesSubmitted;
+        }
     }
 
-    private void dequeueOutputBuffer(
-            MediaCodec codec, ByteBuffer[] outputBuffers,
-            int index, MediaCodec.BufferInfo info) {
-        codec.releaseOutputBuffer(index, false /* render */);
+    /**
+     * Counts the encoded bytes.
+     */
+    private static class ByteCountingSink implements CodecDriver.Sink {
+        private int mNumBytesDequeued = 0;
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            mNumBytesDequeued += info.size;
+
+            if (VERBOSE) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.d(TAG, "dequeued output EOS.");
+                } else {
+                    Log.d(TAG, "dequeued " + info.size + " bytes of output data.");
+                }
+            }
+            return false; // render
+        }
+
+        int getNumBytesDequeued() {
+            return mNumBytesDequeued;
+        }
     }
 
-    private void testEncoder(String componentName, MediaFormat format) {
+    private void testEncoder(String componentName, MediaFormat format) throws Exception {
 
-        MediaCodec codec = null;
+        CodecDriver codec = null;
 
         try {
-            codec = MediaCodec.createByCodecName(componentName);
+            codec = CodecDriver.createByCodecName(componentName);
             codec.configure(
                     format,
                     null /* surface */,
-                    null /* crypto */,
                     MediaCodec.CONFIGURE_FLAG_ENCODE);
         } catch (Exception e) {
             Log.e(TAG, "codec '" + componentName + "' failed configuration.");
@@ -203,72 +248,18 @@ public class EncoderTest extends AndroidTestCase {
             assertTrue("codec '" + componentName + "' failed configuration.", false);
         }
 
-        codec.start();
-        ByteBuffer[] codecInputBuffers = codec.getInputBuffers();
-        ByteBuffer[] codecOutputBuffers = codec.getOutputBuffers();
-
-        int numBytesSubmitted = 0;
-        boolean doneSubmittingInput = false;
-        int numBytesDequeued = 0;
-
-        while (true) {
-            int index;
-
-            if (!doneSubmittingInput) {
-                index = codec.dequeueInputBuffer(kTimeoutUs /* timeoutUs */);
-
-                if (index != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (numBytesSubmitted >= kNumInputBytes) {
-                        codec.queueInputBuffer(
-                                index,
-                                0 /* offset */,
-                                0 /* size */,
-                                0 /* timeUs */,
-                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "queued input EOS.");
-                        }
-
-                        doneSubmittingInput = true;
-                    } else {
-                        int size = queueInputBuffer(
-                                codec, codecInputBuffers, index);
-
-                        numBytesSubmitted += size;
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "queued " + size + " bytes of input data.");
-                        }
-                    }
-                }
-            }
-
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            index = codec.dequeueOutputBuffer(info, kTimeoutUs /* timeoutUs */);
-
-            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                codecOutputBuffers = codec.getOutputBuffers();
-            } else {
-                dequeueOutputBuffer(codec, codecOutputBuffers, index, info);
-
-                numBytesDequeued += info.size;
-
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (VERBOSE) {
-                        Log.d(TAG, "dequeued output EOS.");
-                    }
-                    break;
-                }
-
-                if (VERBOSE) {
-                    Log.d(TAG, "dequeued " + info.size + " bytes of output data.");
-                }
-            }
+        SilenceSource source = new SilenceSource();
+        ByteCountingSink sink = new ByteCountingSink();
+        try {
+            codec.run(source, sink, kTimeoutMs);
+        } finally {
+            codec.release();
+            codec = null;
         }
 
+        int numBytesSubmitted = source.getNumBytesSubmitted();
+        int numBytesDequeued = sink.getNumBytesDequeued();
+
         if (VERBOSE) {
             Log.d(TAG, "queued a total of " + numBytesSubmitted + "bytes, "
                     + "dequeued " + numBytesDequeued + " bytes.");
@@ -286,9 +277,5 @@ public class EncoderTest extends AndroidTestCase {
             Log.w(TAG, "desiredRatio = " + desiredRatio
                     + ", actualRatio = " + actualRatio);
         }
-
-        codec.release();
-        codec = null;
     }
 }
-
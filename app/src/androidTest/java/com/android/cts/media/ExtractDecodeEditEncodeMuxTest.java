@@ -33,7 +33,8 @@ import com.android.cts.media.R;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -55,11 +56,6 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
     private static final String TAG = ExtractDecodeEditEncodeMuxTest.class.getSimpleName();
     private static final boolean VERBOSE = false; // lots of logging
 
-    /**
-     * How long to wait for the next buffer to become available.
-     */
-    private static final int TIMEOUT_USEC = 10000;
-
     /**
      * Where to output the test files.
      */
@@ -80,6 +76,8 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
     private static final int OUTPUT_AUDIO_AAC_PROFILE =
             MediaCodecInfo.CodecProfileLevel.AACObjectHE;
     private static final int OUTPUT_AUDIO_SAMPLE_RATE_HZ = 44100; // Must match the input stream.
+    // PCM frames per encoded access unit: 1024 for AAC-LC, 2048 with the SBR of HE-AAC
+    private static final int AAC_MAX_FRAMES_PER_UNIT = 2048;
 
     /**
      * Used for editing the frames.
@@ -95,6 +93,16 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
                     "  gl_FragColor = texture2D(sTexture, vTextureCoord).rbga;\n" +
                     "}\n";
 
+    /**
+     * BT.601 luma in all three channels, in column-major order.
+     */
+    private static final float[] GRAYSCALE_MATRIX = {
+            0.299f, 0.299f, 0.299f, 0f,
+            0.587f, 0.587f, 0.587f, 0f,
+            0.114f, 0.114f, 0.114f, 0f,
+            0f, 0f, 0f, 1f,
+    };
+
     /**
      * Whether to copy the video from the test video.
      */
@@ -112,6 +120,15 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
      */
     private int mHeight = -1;
 
+    /**
+     * Filters used for editing the frames instead of {@link #FRAGMENT_SHADER}, or null.
+     */
+    private List<GlFilterGraph.Filter> mFilters;
+    /**
+     * The render passes the filters are expected to be fused into.
+     */
+    private List<String> mExpectedPassNames;
+
     /**
      * The raw resource used as the input file.
      */
@@ -143,6 +160,19 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
         TestWrapper.runTest(this);
     }
 
+    public void testExtractDecodeEditEncodeMuxFilterChainQVGA() throws Throwable {
+        setSize(320, 240);
+        setSource(R.raw.video_480x360_mp4_h264_500kbps_30fps_aac_stereo_128kbps_44100hz);
+        setCopyVideo();
+        setFilters(Arrays.asList(
+                GlFilterGraph.Filter.scale(1.25f, 1.25f),
+                GlFilterGraph.Filter.colorMatrix(GRAYSCALE_MATRIX),
+                GlFilterGraph.Filter.boxBlur(),
+                GlFilterGraph.Filter.overlay(0.1f, 0.1f, 0.4f, 0.3f, 1f, 0f, 0f, 0.5f)),
+                Arrays.asList("scale+colorMatrix", "boxBlur+overlay"));
+        TestWrapper.runTest(this);
+    }
+
     public void testExtractDecodeEditEncodeMuxAudio() throws Throwable {
         setSize(1280, 720);
         setSource(R.raw.video_480x360_mp4_h264_500kbps_30fps_aac_stereo_128kbps_44100hz);
@@ -207,6 +237,15 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
         mCopyAudio = true;
     }
 
+    /**
+     * Sets the filters used for editing the video frames, and the names of the render passes
+     * they should be fused into (see {@link GlFilterGraph#getPassNames}).
+     */
+    private void setFilters(List<GlFilterGraph.Filter> filters, List<String> passNames) {
+        mFilters = filters;
+        mExpectedPassNames = passNames;
+    }
+
     /**
      * Sets the desired frame size.
      */
@@ -247,6 +286,9 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
             sb.append(mWidth);
             sb.append('x');
             sb.append(mHeight);
+            if (mFilters != null) {
+                sb.append("-filters");
+            }
         }
         if (mCopyAudio) {
             sb.append('-');
@@ -285,13 +327,14 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
         MediaExtractor videoExtractor = null;
         MediaExtractor audioExtractor = null;
         OutputSurface outputSurface = null;
-        MediaCodec videoDecoder = null;
-        MediaCodec audioDecoder = null;
-        MediaCodec videoEncoder = null;
-        MediaCodec audioEncoder = null;
+        CodecDriver videoDecoder = null;
+        CodecDriver audioDecoder = null;
+        CodecDriver videoEncoder = null;
+        CodecDriver audioEncoder = null;
         MediaMuxer muxer = null;
 
         InputSurface inputSurface = null;
+        GlFilterGraph filterGraph = null;
 
         try {
             if (mCopyVideo) {
@@ -324,7 +367,14 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
                 inputSurface.makeCurrent();
                 // Create a MediaCodec for the decoder, based on the extractor's format.
                 outputSurface = new OutputSurface();
-                outputSurface.changeFragmentShader(FRAGMENT_SHADER);
+                if (mFilters != null) {
+                    filterGraph = outputSurface.setFilters(mFilters);
+                    assertEquals("filters should be fused into the expected passes",
+                            mExpectedPassNames, filterGraph.getPassNames());
+                    filterGraph.setTimingEnabled(true);
+                } else {
+                    outputSurface.changeFragmentShader(FRAGMENT_SHADER);
+                }
                 videoDecoder = createVideoDecoder(inputFormat, outputSurface.getSurface());
             }
 
@@ -361,6 +411,21 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
                     muxer,
                     inputSurface,
                     outputSurface);
+
+            if (filterGraph != null) {
+                List<String> passes = filterGraph.getPassNames();
+                long[] times = filterGraph.getPassTimesNs();
+                assertEquals("should have a time for each filter pass", passes.size(),
+                        times.length);
+                for (int i = 0; i < passes.size(); i++) {
+                    if (VERBOSE) {
+                        Log.d(TAG, "filter pass " + passes.get(i) + ": " + times[i] / 1000
+                                + " us");
+                    }
+                    assertTrue("negative time for filter pass " + passes.get(i),
+                            times[i] >= 0);
+                }
+            }
         } finally {
             if (VERBOSE) Log.d(TAG, "releasing extractor, decoder, encoder, and muxer");
             // Try to release everything we acquired, even if one of the releases fails, in which
@@ -390,7 +455,6 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
             }
             try {
                 if (videoDecoder != null) {
-                    videoDecoder.stop();
                     videoDecoder.release();
                 }
             } catch (Exception e) {
@@ -411,7 +475,6 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
             }
             try {
                 if (videoEncoder != null) {
-                    videoEncoder.stop();
                     videoEncoder.release();
                 }
             } catch (Exception e) {
@@ -422,7 +485,6 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
             }
             try {
                 if (audioDecoder != null) {
-                    audioDecoder.stop();
                     audioDecoder.release();
                 }
             } catch (Exception e) {
@@ -433,7 +495,6 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
             }
             try {
                 if (audioEncoder != null) {
-                    audioEncoder.stop();
                     audioEncoder.release();
                 }
             } catch (Exception e) {
@@ -487,16 +548,11 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
      * @param inputFormat the format of the stream to decode
      * @param surface     into which to decode the frames
      */
-    private MediaCodec createVideoDecoder(MediaFormat inputFormat, Surface surface) {
-        try {
-            MediaCodec decoder = MediaCodec.createDecoderByType(getMimeTypeFor(inputFormat));
-            decoder.configure(inputFormat, surface, null, 0);
-            decoder.start();
-            return decoder;
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    private CodecDriver createVideoDecoder(MediaFormat inputFormat, Surface surface)
+            throws IOException {
+        CodecDriver decoder = CodecDriver.createDecoderByType(getMimeTypeFor(inputFormat));
+        decoder.configure(inputFormat, surface, 0);
+        return decoder;
     }
 
     /**
@@ -509,21 +565,15 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
      * @param format           of the stream to be produced
      * @param surfaceReference to store the surface to use as input
      */
-    private MediaCodec createVideoEncoder(
+    private CodecDriver createVideoEncoder(
             MediaCodecInfo codecInfo,
             MediaFormat format,
-            AtomicReference<Surface> surfaceReference) {
-        try {
-            MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            // Must be called before start() is.
-            surfaceReference.set(encoder.createInputSurface());
-            encoder.start();
-            return encoder;
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+            AtomicReference<Surface> surfaceReference) throws IOException {
+        CodecDriver encoder = CodecDriver.createByCodecName(codecInfo.getName());
+        encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        // Must be called before start() is.
+        surfaceReference.set(encoder.getCodec().createInputSurface());
+        return encoder;
     }
 
     /**
@@ -531,16 +581,10 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
      *
      * @param inputFormat the format of the stream to decode
      */
-    private MediaCodec createAudioDecoder(MediaFormat inputFormat) {
-        try {
-            MediaCodec decoder = MediaCodec.createDecoderByType(getMimeTypeFor(inputFormat));
-            decoder.configure(inputFormat, null, null, 0);
-            decoder.start();
-            return decoder;
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    private CodecDriver createAudioDecoder(MediaFormat inputFormat) throws IOException {
+        CodecDriver decoder = CodecDriver.createDecoderByType(getMimeTypeFor(inputFormat));
+        decoder.configure(inputFormat, null, 0);
+        return decoder;
     }
 
     /**
@@ -549,16 +593,11 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
      * @param codecInfo of the codec to use
      * @param format    of the stream to be produced
      */
-    private MediaCodec createAudioEncoder(MediaCodecInfo codecInfo, MediaFormat format) {
-        try {
-            MediaCodec encoder = MediaCodec.createByCodecName(codecInfo.getName());
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-            encoder.start();
-            return encoder;
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+    private CodecDriver createAudioEncoder(MediaCodecInfo codecInfo, MediaFormat format)
+            throws IOException {
+        CodecDriver encoder = CodecDriver.createByCodecName(codecInfo.getName());
+        encoder.configure(format, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return encoder;
     }
 
     /**
@@ -600,504 +639,62 @@ public class ExtractDecodeEditEncodeMuxTest extends AndroidTestCase {
 
     /**
      * Does the actual work for extracting, decoding, encoding and muxing.
+     * <p>
+     * The tracks run in parallel in a {@link TranscodeEngine}, the video GL stage on this
+     * thread.
      */
     private void doExtractDecodeEditEncodeMux(
             MediaExtractor videoExtractor,
             MediaExtractor audioExtractor,
-            MediaCodec videoDecoder,
-            MediaCodec videoEncoder,
-            MediaCodec audioDecoder,
-            MediaCodec audioEncoder,
+            CodecDriver videoDecoder,
+            CodecDriver videoEncoder,
+            CodecDriver audioDecoder,
+            CodecDriver audioEncoder,
             MediaMuxer muxer,
             InputSurface inputSurface,
-            OutputSurface outputSurface) {
-        ByteBuffer[] videoDecoderInputBuffers = null;
-        ByteBuffer[] videoDecoderOutputBuffers = null;
-        ByteBuffer[] videoEncoderOutputBuffers = null;
-        MediaCodec.BufferInfo videoDecoderOutputBufferInfo = null;
-        MediaCodec.BufferInfo videoEncoderOutputBufferInfo = null;
+            OutputSurface outputSurface) throws Exception {
+        TranscodeEngine engine = new TranscodeEngine(muxer, CodecDriver.DEFAULT_TIMEOUT_MS);
+        TranscodeEngine.Track videoTrack = null;
+        TranscodeEngine.Track audioTrack = null;
         if (mCopyVideo) {
-            videoDecoderInputBuffers = videoDecoder.getInputBuffers();
-            videoDecoderOutputBuffers = videoDecoder.getOutputBuffers();
-            videoEncoderOutputBuffers = videoEncoder.getOutputBuffers();
-            videoDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
-            videoEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
+            videoTrack = engine.addVideoTrack(videoExtractor, videoDecoder, videoEncoder,
+                    inputSurface, outputSurface);
         }
-        ByteBuffer[] audioDecoderInputBuffers = null;
-        ByteBuffer[] audioDecoderOutputBuffers = null;
-        ByteBuffer[] audioEncoderInputBuffers = null;
-        ByteBuffer[] audioEncoderOutputBuffers = null;
-        MediaCodec.BufferInfo audioDecoderOutputBufferInfo = null;
-        MediaCodec.BufferInfo audioEncoderOutputBufferInfo = null;
         if (mCopyAudio) {
-            audioDecoderInputBuffers = audioDecoder.getInputBuffers();
-            audioDecoderOutputBuffers = audioDecoder.getOutputBuffers();
-            audioEncoderInputBuffers = audioEncoder.getInputBuffers();
-            audioEncoderOutputBuffers = audioEncoder.getOutputBuffers();
-            audioDecoderOutputBufferInfo = new MediaCodec.BufferInfo();
-            audioEncoderOutputBufferInfo = new MediaCodec.BufferInfo();
-        }
-        // We will get these from the decoders when notified of a format change.
-        MediaFormat decoderOutputVideoFormat = null;
-        MediaFormat decoderOutputAudioFormat = null;
-        // We will get these from the encoders when notified of a format change.
-        MediaFormat encoderOutputVideoFormat = null;
-        MediaFormat encoderOutputAudioFormat = null;
-        // We will determine these once we have the output format.
-        int outputVideoTrack = -1;
-        int outputAudioTrack = -1;
-        // Whether things are done on the video side.
-        boolean videoExtractorDone = false;
-        boolean videoDecoderDone = false;
-        boolean videoEncoderDone = false;
-        // Whether things are done on the audio side.
-        boolean audioExtractorDone = false;
-        boolean audioDecoderDone = false;
-        boolean audioEncoderDone = false;
-        // The audio decoder output buffer to process, -1 if none.
-        int pendingAudioDecoderOutputBufferIndex = -1;
-
-        boolean muxing = false;
-
-        int videoExtractedFrameCount = 0;
-        int videoDecodedFrameCount = 0;
-        int videoEncodedFrameCount = 0;
-
-        int audioExtractedFrameCount = 0;
-        int audioDecodedFrameCount = 0;
-        int audioEncodedFrameCount = 0;
-
-        while ((mCopyVideo && !videoEncoderDone) || (mCopyAudio && !audioEncoderDone)) {
-            if (VERBOSE) {
-                Log.d(TAG, String.format(
-                        "loop: "
-
-                                + "V(%b){"
-                                + "extracted:%d(done:%b) "
-                                + "decoded:%d(done:%b) "
-                                + "encoded:%d(done:%b)} "
-
-                                + "A(%b){"
-                                + "extracted:%d(done:%b) "
-                                + "decoded:%d(done:%b) "
-                                + "encoded:%d(done:%b) "
-                                + "pending:%d} "
-
-                                + "muxing:%b(V:%d,A:%d)",
-
-                        mCopyVideo,
-                        videoExtractedFrameCount, videoExtractorDone,
-                        videoDecodedFrameCount, videoDecoderDone,
-                        videoEncodedFrameCount, videoEncoderDone,
-
-                        mCopyAudio,
-                        audioExtractedFrameCount, audioExtractorDone,
-                        audioDecodedFrameCount, audioDecoderDone,
-                        audioEncodedFrameCount, audioEncoderDone,
-                        pendingAudioDecoderOutputBufferIndex,
-
-                        muxing, outputVideoTrack, outputAudioTrack));
-            }
-
-            // Extract video from file and feed to decoder.
-            // Do not extract video if we have determined the output format but we are not yet
-            // ready to mux the frames.
-            while (mCopyVideo && !videoExtractorDone
-                    && (encoderOutputVideoFormat == null || muxing)) {
-                int decoderInputBufferIndex = videoDecoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no video decoder input buffer");
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "video decoder: returned input buffer: " + decoderInputBufferIndex);
-                }
-                ByteBuffer decoderInputBuffer = videoDecoderInputBuffers[decoderInputBufferIndex];
-                int size = videoExtractor.readSampleData(decoderInputBuffer, 0);
-                long presentationTime = videoExtractor.getSampleTime();
-                if (VERBOSE) {
-                    Log.d(TAG, "video extractor: returned buffer of size " + size);
-                    Log.d(TAG, "video extractor: returned buffer for time " + presentationTime);
-                }
-                if (size >= 0) {
-                    videoDecoder.queueInputBuffer(
-                            decoderInputBufferIndex,
-                            0,
-                            size,
-                            presentationTime,
-                            videoExtractor.getSampleFlags());
-                }
-                videoExtractorDone = !videoExtractor.advance();
-                if (videoExtractorDone) {
-                    if (VERBOSE) Log.d(TAG, "video extractor: EOS");
-                    videoDecoder.queueInputBuffer(
-                            decoderInputBufferIndex,
-                            0,
-                            0,
-                            0,
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                }
-                videoExtractedFrameCount++;
-                // We extracted a frame, let's try something else next.
-                break;
-            }
-
-            // Extract audio from file and feed to decoder.
-            // Do not extract audio if we have determined the output format but we are not yet
-            // ready to mux the frames.
-            while (mCopyAudio && !audioExtractorDone
-                    && (encoderOutputAudioFormat == null || muxing)) {
-                int decoderInputBufferIndex = audioDecoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (decoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no audio decoder input buffer");
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: returned input buffer: " + decoderInputBufferIndex);
-                }
-                ByteBuffer decoderInputBuffer = audioDecoderInputBuffers[decoderInputBufferIndex];
-                int size = audioExtractor.readSampleData(decoderInputBuffer, 0);
-                long presentationTime = audioExtractor.getSampleTime();
-                if (VERBOSE) {
-                    Log.d(TAG, "audio extractor: returned buffer of size " + size);
-                    Log.d(TAG, "audio extractor: returned buffer for time " + presentationTime);
-                }
-                if (size >= 0) {
-                    audioDecoder.queueInputBuffer(
-                            decoderInputBufferIndex,
-                            0,
-                            size,
-                            presentationTime,
-                            audioExtractor.getSampleFlags());
-                }
-                audioExtractorDone = !audioExtractor.advance();
-                if (audioExtractorDone) {
-                    if (VERBOSE) Log.d(TAG, "audio extractor: EOS");
-                    audioDecoder.queueInputBuffer(
-                            decoderInputBufferIndex,
-                            0,
-                            0,
-                            0,
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                }
-                audioExtractedFrameCount++;
-                // We extracted a frame, let's try something else next.
-                break;
-            }
-
-            // Poll output frames from the video decoder and feed the encoder.
-            while (mCopyVideo && !videoDecoderDone
-                    && (encoderOutputVideoFormat == null || muxing)) {
-                int decoderOutputBufferIndex =
-                        videoDecoder.dequeueOutputBuffer(
-                                videoDecoderOutputBufferInfo, TIMEOUT_USEC);
-                if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no video decoder output buffer");
-                    break;
-                }
-                if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "video decoder: output buffers changed");
-                    videoDecoderOutputBuffers = videoDecoder.getOutputBuffers();
-                    break;
-                }
-                if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    decoderOutputVideoFormat = videoDecoder.getOutputFormat();
-                    if (VERBOSE) {
-                        Log.d(TAG, "video decoder: output format changed: "
-                                + decoderOutputVideoFormat);
-                    }
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "video decoder: returned output buffer: "
-                            + decoderOutputBufferIndex);
-                    Log.d(TAG, "video decoder: returned buffer of size "
-                            + videoDecoderOutputBufferInfo.size);
-                }
-                ByteBuffer decoderOutputBuffer =
-                        videoDecoderOutputBuffers[decoderOutputBufferIndex];
-                if ((videoDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "video decoder: codec config buffer");
-                    videoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "video decoder: returned buffer for time "
-                            + videoDecoderOutputBufferInfo.presentationTimeUs);
-                }
-                boolean render = videoDecoderOutputBufferInfo.size != 0;
-                videoDecoder.releaseOutputBuffer(decoderOutputBufferIndex, render);
-                if (render) {
-                    if (VERBOSE) Log.d(TAG, "output surface: await new image");
-                    outputSurface.awaitNewImage();
-                    // Edit the frame and send it to the encoder.
-                    if (VERBOSE) Log.d(TAG, "output surface: draw image");
-                    outputSurface.drawImage();
-                    inputSurface.setPresentationTime(
-                            videoDecoderOutputBufferInfo.presentationTimeUs * 1000);
-                    if (VERBOSE) Log.d(TAG, "input surface: swap buffers");
-                    inputSurface.swapBuffers();
-                    if (VERBOSE) Log.d(TAG, "video encoder: notified of new frame");
-                }
-                if ((videoDecoderOutputBufferInfo.flags
-                        & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (VERBOSE) Log.d(TAG, "video decoder: EOS");
-                    videoDecoderDone = true;
-                    videoEncoder.signalEndOfInputStream();
-                }
-                videoDecodedFrameCount++;
-                // We extracted a pending frame, let's try something else next.
-                break;
-            }
-
-            // Poll output frames from the audio decoder.
-            // Do not poll if we already have a pending buffer to feed to the encoder.
-            while (mCopyAudio && !audioDecoderDone && pendingAudioDecoderOutputBufferIndex == -1
-                    && (encoderOutputAudioFormat == null || muxing)) {
-                int decoderOutputBufferIndex =
-                        audioDecoder.dequeueOutputBuffer(
-                                audioDecoderOutputBufferInfo, TIMEOUT_USEC);
-                if (decoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no audio decoder output buffer");
-                    break;
-                }
-                if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "audio decoder: output buffers changed");
-                    audioDecoderOutputBuffers = audioDecoder.getOutputBuffers();
-                    break;
-                }
-                if (decoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    decoderOutputAudioFormat = audioDecoder.getOutputFormat();
-                    if (VERBOSE) {
-                        Log.d(TAG, "audio decoder: output format changed: "
-                                + decoderOutputAudioFormat);
-                    }
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: returned output buffer: "
-                            + decoderOutputBufferIndex);
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: returned buffer of size "
-                            + audioDecoderOutputBufferInfo.size);
-                }
-                ByteBuffer decoderOutputBuffer =
-                        audioDecoderOutputBuffers[decoderOutputBufferIndex];
-                if ((audioDecoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "audio decoder: codec config buffer");
-                    audioDecoder.releaseOutputBuffer(decoderOutputBufferIndex, false);
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: returned buffer for time "
-                            + audioDecoderOutputBufferInfo.presentationTimeUs);
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: output buffer is now pending: "
-                            + pendingAudioDecoderOutputBufferIndex);
-                }
-                pendingAudioDecoderOutputBufferIndex = decoderOutputBufferIndex;
-                audioDecodedFrameCount++;
-                // We extracted a pending frame, let's try something else next.
-                break;
-            }
-
-            // Feed the pending decoded audio buffer to the audio encoder.
-            while (mCopyAudio && pendingAudioDecoderOutputBufferIndex != -1) {
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: attempting to process pending buffer: "
-                            + pendingAudioDecoderOutputBufferIndex);
-                }
-                int encoderInputBufferIndex = audioEncoder.dequeueInputBuffer(TIMEOUT_USEC);
-                if (encoderInputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no audio encoder input buffer");
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio encoder: returned input buffer: " + encoderInputBufferIndex);
-                }
-                ByteBuffer encoderInputBuffer = audioEncoderInputBuffers[encoderInputBufferIndex];
-                int size = audioDecoderOutputBufferInfo.size;
-                long presentationTime = audioDecoderOutputBufferInfo.presentationTimeUs;
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: processing pending buffer: "
-                            + pendingAudioDecoderOutputBufferIndex);
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio decoder: pending buffer of size " + size);
-                    Log.d(TAG, "audio decoder: pending buffer for time " + presentationTime);
-                }
-                if (size >= 0) {
-                    ByteBuffer decoderOutputBuffer =
-                            audioDecoderOutputBuffers[pendingAudioDecoderOutputBufferIndex]
-                                    .duplicate();
-                    decoderOutputBuffer.position(audioDecoderOutputBufferInfo.offset);
-                    decoderOutputBuffer.limit(audioDecoderOutputBufferInfo.offset + size);
-                    encoderInputBuffer.position(0);
-                    encoderInputBuffer.put(decoderOutputBuffer);
-
-                    audioEncoder.queueInputBuffer(
-                            encoderInputBufferIndex,
-                            0,
-                            size,
-                            presentationTime,
-                            audioDecoderOutputBufferInfo.flags);
-                }
-                audioDecoder.releaseOutputBuffer(pendingAudioDecoderOutputBufferIndex, false);
-                pendingAudioDecoderOutputBufferIndex = -1;
-                if ((audioDecoderOutputBufferInfo.flags
-                        & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (VERBOSE) Log.d(TAG, "audio decoder: EOS");
-                    audioDecoderDone = true;
-                }
-                // We enqueued a pending frame, let's try something else next.
-                break;
-            }
-
-            // Poll frames from the video encoder and send them to the muxer.
-            while (mCopyVideo && !videoEncoderDone
-                    && (encoderOutputVideoFormat == null || muxing)) {
-                int encoderOutputBufferIndex = videoEncoder.dequeueOutputBuffer(
-                        videoEncoderOutputBufferInfo, TIMEOUT_USEC);
-                if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no video encoder output buffer");
-                    break;
-                }
-                if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "video encoder: output buffers changed");
-                    videoEncoderOutputBuffers = videoEncoder.getOutputBuffers();
-                    break;
-                }
-                if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "video encoder: output format changed");
-                    if (outputVideoTrack >= 0) {
-                        fail("video encoder changed its output format again?");
-                    }
-                    encoderOutputVideoFormat = videoEncoder.getOutputFormat();
-                    break;
-                }
-                assertTrue("should have added track before processing output", muxing);
-                if (VERBOSE) {
-                    Log.d(TAG, "video encoder: returned output buffer: "
-                            + encoderOutputBufferIndex);
-                    Log.d(TAG, "video encoder: returned buffer of size "
-                            + videoEncoderOutputBufferInfo.size);
-                }
-                ByteBuffer encoderOutputBuffer =
-                        videoEncoderOutputBuffers[encoderOutputBufferIndex];
-                if ((videoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "video encoder: codec config buffer");
-                    // Simply ignore codec config buffers.
-                    videoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "video encoder: returned buffer for time "
-                            + videoEncoderOutputBufferInfo.presentationTimeUs);
-                }
-                if (videoEncoderOutputBufferInfo.size != 0) {
-                    muxer.writeSampleData(
-                            outputVideoTrack, encoderOutputBuffer, videoEncoderOutputBufferInfo);
-                }
-                if ((videoEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "video encoder: EOS");
-                    videoEncoderDone = true;
-                }
-                videoEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-                videoEncodedFrameCount++;
-                // We enqueued an encoded frame, let's try something else next.
-                break;
-            }
-
-            // Poll frames from the audio encoder and send them to the muxer.
-            while (mCopyAudio && !audioEncoderDone
-                    && (encoderOutputAudioFormat == null || muxing)) {
-                int encoderOutputBufferIndex = audioEncoder.dequeueOutputBuffer(
-                        audioEncoderOutputBufferInfo, TIMEOUT_USEC);
-                if (encoderOutputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    if (VERBOSE) Log.d(TAG, "no audio encoder output buffer");
-                    break;
-                }
-                if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "audio encoder: output buffers changed");
-                    audioEncoderOutputBuffers = audioEncoder.getOutputBuffers();
-                    break;
-                }
-                if (encoderOutputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (VERBOSE) Log.d(TAG, "audio encoder: output format changed");
-                    if (outputAudioTrack >= 0) {
-                        fail("audio encoder changed its output format again?");
-                    }
-
-                    encoderOutputAudioFormat = audioEncoder.getOutputFormat();
-                    break;
-                }
-                assertTrue("should have added track before processing output", muxing);
-                if (VERBOSE) {
-                    Log.d(TAG, "audio encoder: returned output buffer: "
-                            + encoderOutputBufferIndex);
-                    Log.d(TAG, "audio encoder: returned buffer of size "
-                            + audioEncoderOutputBufferInfo.size);
-                }
-                ByteBuffer encoderOutputBuffer =
-                        audioEncoderOutputBuffers[encoderOutputBufferIndex];
-                if ((audioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "audio encoder: codec config buffer");
-                    // Simply ignore codec config buffers.
-                    audioEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-                    break;
-                }
-                if (VERBOSE) {
-                    Log.d(TAG, "audio encoder: returned buffer for time "
-                            + audioEncoderOutputBufferInfo.presentationTimeUs);
-                }
-                if (audioEncoderOutputBufferInfo.size != 0) {
-                    muxer.writeSampleData(
-                            outputAudioTrack, encoderOutputBuffer, audioEncoderOutputBufferInfo);
-                }
-                if ((audioEncoderOutputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM)
-                        != 0) {
-                    if (VERBOSE) Log.d(TAG, "audio encoder: EOS");
-                    audioEncoderDone = true;
-                }
-                audioEncoder.releaseOutputBuffer(encoderOutputBufferIndex, false);
-                audioEncodedFrameCount++;
-                // We enqueued an encoded frame, let's try something else next.
-                break;
-            }
-
-            if (!muxing
-                    && (!mCopyAudio || encoderOutputAudioFormat != null)
-                    && (!mCopyVideo || encoderOutputVideoFormat != null)) {
-                if (mCopyVideo) {
-                    Log.d(TAG, "muxer: adding video track.");
-                    outputVideoTrack = muxer.addTrack(encoderOutputVideoFormat);
-                }
-                if (mCopyAudio) {
-                    Log.d(TAG, "muxer: adding audio track.");
-                    outputAudioTrack = muxer.addTrack(encoderOutputAudioFormat);
-                }
-                Log.d(TAG, "muxer: starting");
-                muxer.start();
-                muxing = true;
-            }
+            audioTrack = engine.addAudioTrack(audioExtractor, audioDecoder, audioEncoder);
         }
+        engine.run();
 
         // Basic sanity checks.
         if (mCopyVideo) {
+            if (VERBOSE) {
+                Log.d(TAG, "video: extracted " + videoTrack.getExtractedCount() +
+                        " decoded " + videoTrack.getDecodedCount() +
+                        " encoded " + videoTrack.getEncodedCount());
+            }
             assertEquals("encoded and decoded video frame counts should match",
-                    videoDecodedFrameCount, videoEncodedFrameCount);
+                    videoTrack.getDecodedCount(), videoTrack.getEncodedCount());
             assertTrue("decoded frame count should be less than extracted frame count",
-                    videoDecodedFrameCount <= videoExtractedFrameCount);
+                    videoTrack.getDecodedCount() <= videoTrack.getExtractedCount());
+            assertEquals("every decoded frame should have been latched",
+                    videoTrack.getDecodedCount(), outputSurface.getLatchedFrames());
+            assertEquals("the decoder should not get further ahead than allowed",
+                    0, outputSurface.getOverflowFrames());
         }
         if (mCopyAudio) {
-            assertEquals("no frame should be pending", -1, pendingAudioDecoderOutputBufferIndex);
+            if (VERBOSE) {
+                Log.d(TAG, "audio: extracted " + audioTrack.getExtractedCount() +
+                        " decoded " + audioTrack.getDecodedCount() +
+                        " (" + audioTrack.getDecodedBytes() + " bytes) encoded " +
+                        audioTrack.getEncodedCount());
+            }
+            assertTrue("some audio frames should have been decoded",
+                    audioTrack.getDecodedCount() > 0);
+            assertEquals("all decoded audio should have been fed to the encoder",
+                    audioTrack.getDecodedBytes(), audioTrack.getEncoderInputBytes());
+            long pcmFrames = audioTrack.getDecodedBytes() / (2 * OUTPUT_AUDIO_CHANNEL_COUNT);
+            assertTrue("encoded audio frames should cover the decoded audio",
+                    (long) audioTrack.getEncodedCount() * AAC_MAX_FRAMES_PER_UNIT >= pcmFrames);
         }
 
         // TODO: Check the generated output file.
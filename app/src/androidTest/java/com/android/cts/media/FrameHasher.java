@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Hashes decoded frames, for comparing decoder output between runs.
+ * <p>
+ * Only the valid region of an output buffer is hashed, eight bytes at a time, with the 64 bit
+ * MurmurHash2 (MurmurHash64A) function.  This is not a cryptographic hash, but any change to
+ * a frame changes it with overwhelming probability, and it runs at memory speed on direct
+ * buffers.  (CRC32.update(ByteBuffer) is only available from API 26.)
+ * <p>
+ * Hashes are cached per output buffer index, so asking for the hash of the same buffer
+ * several times, e.g. whole and per plane, hashes it once.  A cached hash is reused while
+ * the buffer at that index has the same presentation time, offset and size; call
+ * {@link #invalidate} after flushing or restarting the codec.
+ */
+public class FrameHasher {
+    private static final long SEED = 0x9747b28cL;
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+
+    private static class Entry {
+        long mPresentationTimeUs;
+        int mOffset;
+        int mSize;
+        boolean mHasFrameHash;
+        long mFrameHash;
+        long[] mPlaneHashes;
+    }
+
+    private Entry[] mEntries = new Entry[0];
+
+    /**
+     * Returns the hash of size bytes of a buffer, starting at offset.  The buffer's position,
+     * limit and byte order are not changed.
+     */
+    public static long hash(ByteBuffer buffer, int offset, int size) {
+        ByteBuffer buf = buffer.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        long h = SEED ^ (size * M);
+        int end = offset + (size & ~7);
+        for (int i = offset; i < end; i += 8) {
+            long k = buf.getLong(i);
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+
+        int tail = size & 7;
+        if (tail != 0) {
+            long k = 0;
+            for (int i = tail - 1; i >= 0; i--) {
+                k = (k << 8) | (buf.get(end + i) & 0xff);
+            }
+            h ^= k;
+            h *= M;
+        }
+
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+
+    /**
+     * Mixes a value into a hash, e.g. to combine the hash of a buffer with its size and
+     * timestamp, or the hashes of several buffers in order.
+     */
+    public static long combine(long hash, long value) {
+        long h = (hash ^ value) * M;
+        return h ^ (h >>> R);
+    }
+
+    /**
+     * Returns the hash of the valid region of an output buffer.
+     *
+     * @param index the codec's index of the output buffer
+     */
+    public long hashFrame(int index, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        Entry entry = getEntry(index, info);
+        if (!entry.mHasFrameHash) {
+            entry.mFrameHash = hash(buffer, info.offset, info.size);
+            entry.mHasFrameHash = true;
+        }
+        return entry.mFrameHash;
+    }
+
+    /**
+     * Returns the hashes of the planes of a YUV 4:2:0 frame in an output buffer: Y, U and V
+     * for planar formats, Y and interleaved UV for semi-planar ones.  The plane layout is
+     * taken from the width, height, stride and slice height of the output format; planes are
+     * cut short if the buffer is.
+     *
+     * @param index the codec's index of the output buffer
+     */
+    public long[] hashPlanes(int index, ByteBuffer buffer, MediaCodec.BufferInfo info,
+            MediaFormat format) {
+        Entry entry = getEntry(index, info);
+        if (entry.mPlaneHashes == null) {
+            int[] planeSizes = getPlaneSizes(format);
+            long[] hashes = new long[planeSizes.length];
+            int offset = info.offset;
+            int end = info.offset + info.size;
+            for (int i = 0; i < planeSizes.length; i++) {
+                int size = Math.max(Math.min(planeSizes[i], end - offset), 0);
+                hashes[i] = hash(buffer, offset, size);
+                offset += size;
+            }
+            entry.mPlaneHashes = hashes;
+        }
+        return entry.mPlaneHashes;
+    }
+
+    /**
+     * Forgets all cached hashes.
+     */
+    public void invalidate() {
+        mEntries = new Entry[0];
+    }
+
+    /**
+     * Returns the sizes in bytes of the planes of a YUV 4:2:0 frame.
+     */
+    private static int[] getPlaneSizes(MediaFormat format) {
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int stride = format.containsKey(MediaFormat.KEY_STRIDE) ?
+                format.getInteger(MediaFormat.KEY_STRIDE) : width;
+        int sliceHeight = format.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                format.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : height;
+        int colorFormat = format.containsKey(MediaFormat.KEY_COLOR_FORMAT) ?
+                format.getInteger(MediaFormat.KEY_COLOR_FORMAT) :
+                CodecCapabilities.COLOR_FormatYUV420Planar;
+
+        int lumaSize = stride * sliceHeight;
+        if (EncodeDecodeTest.isRecognizedFormat(colorFormat) &&
+                EncodeDecodeTest.isSemiPlanarYUV(colorFormat)) {
+            return new int[] { lumaSize, lumaSize / 2 };
+        }
+        int chromaSize = (stride / 2) * (sliceHeight / 2);
+        return new int[] { lumaSize, chromaSize, chromaSize };
+    }
+
+    private Entry getEntry(int index, MediaCodec.BufferInfo info) {
+        if (index < 0) {
+            // no index to cache by
+            return newEntry(info);
+        }
+        if (index >= mEntries.length) {
+            Entry[] entries = new Entry[Math.max(index + 1, mEntries.length * 2)];
+            System.arraycopy(mEntries, 0, entries, 0, mEntries.length);
+            mEntries = entries;
+        }
+        Entry entry = mEntries[index];
+        if (entry == null || entry.mPresentationTimeUs != info.presentationTimeUs ||
+                entry.mOffset != info.offset || entry.mSize != info.size) {
+            entry = newEntry(info);
+            mEntries[index] = entry;
+        }
+        return entry;
+    }
+
+    private static Entry newEntry(MediaCodec.BufferInfo info) {
+        Entry entry = new Entry();
+        entry.mPresentationTimeUs = info.presentationTimeUs;
+        entry.mOffset = info.offset;
+        entry.mSize = info.size;
+        return entry;
+    }
+}
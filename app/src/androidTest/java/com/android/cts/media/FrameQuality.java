@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Measures the quality of a decoded frame against a reference, over every pixel.
+ * <p>
+ * Each plane is compared in bands of rows.  The squared error of every sample is summed for
+ * the PSNR, and optionally the SSIM of every 8x8 block is averaged.  Large planes are split
+ * into bands that run in parallel on a fork-join pool.
+ * <p>
+ * Frames are seen through {@link YuvFrameView}, so they may be in different layouts, e.g. a
+ * planar reference and a semi-planar decode with a larger stride.
+ */
+public class FrameQuality {
+    private static final int BLOCK_SIZE = 8;                // SSIM block is 8x8
+    private static final int BAND_HEIGHT = 8 * BLOCK_SIZE;  // rows per fork-join task
+    private static final int PARALLEL_MIN_SAMPLES = 1024 * 1024;
+
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    /**
+     * Quality of each plane of a frame.
+     */
+    public static class Result {
+        private final double[] mPsnr;
+        private final double[] mSsim;
+
+        Result(int planeCount) {
+            mPsnr = new double[planeCount];
+            mSsim = new double[planeCount];
+        }
+
+        public int getPlaneCount() {
+            return mPsnr.length;
+        }
+
+        /**
+         * Returns the PSNR of a plane in dB, infinite if the planes are identical.
+         */
+        public double getPsnr(int plane) {
+            return mPsnr[plane];
+        }
+
+        /**
+         * Returns the mean SSIM of the 8x8 blocks of a plane, or NaN if not computed.
+         */
+        public double getSsim(int plane) {
+            return mSsim[plane];
+        }
+
+        /**
+         * Returns the PSNR of the worst plane.
+         */
+        public double getMinPsnr() {
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < mPsnr.length; i++) {
+                min = Math.min(min, mPsnr[i]);
+            }
+            return min;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mPsnr.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append("plane ").append(i).append(": psnr ")
+                        .append(String.format("%.2f", mPsnr[i]));
+                if (!Double.isNaN(mSsim[i])) {
+                    sb.append(" ssim ").append(String.format("%.4f", mSsim[i]));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Statistics of a band of rows.
+     */
+    private static class BandStats {
+        long mSquaredError;
+        double mSsimSum;
+        int mSsimBlocks;
+
+        void add(BandStats other) {
+            mSquaredError += other.mSquaredError;
+            mSsimSum += other.mSsimSum;
+            mSsimBlocks += other.mSsimBlocks;
+        }
+    }
+
+    private final boolean mComputeSsim;
+
+    /**
+     * @param computeSsim whether to compute the SSIM as well as the PSNR
+     */
+    public FrameQuality(boolean computeSsim) {
+        mComputeSsim = computeSsim;
+    }
+
+    /**
+     * Compares a frame with a reference, plane by plane.
+     */
+    public Result compare(YuvFrameView frame, YuvFrameView reference) {
+        return compare(frame.getPlanes(), reference.getPlanes());
+    }
+
+    /**
+     * Compares the planes of a frame with those of a reference.
+     */
+    public Result compare(YuvFrameView.Plane[] frame, YuvFrameView.Plane[] reference) {
+        if (frame.length != reference.length) {
+            throw new IllegalArgumentException(
+                    frame.length + " planes vs. " + reference.length + " reference planes");
+        }
+        Result result = new Result(frame.length);
+        for (int i = 0; i < frame.length; i++) {
+            YuvFrameView.Plane a = frame[i];
+            YuvFrameView.Plane b = reference[i];
+            if (a.mWidth != b.mWidth || a.mHeight != b.mHeight) {
+                throw new IllegalArgumentException("plane " + i + " is " + a.mWidth + "x" +
+                        a.mHeight + ", reference is " + b.mWidth + "x" + b.mHeight);
+            }
+
+            BandStats stats;
+            BandTask task = new BandTask(a, b, 0, a.mHeight, mComputeSsim);
+            if ((long) a.mWidth * a.mHeight >= PARALLEL_MIN_SAMPLES) {
+                stats = WorkerPool.get().invoke(task);
+            } else {
+                stats = task.compute();
+            }
+
+            long samples = (long) a.mWidth * a.mHeight;
+            if (stats.mSquaredError == 0 || samples == 0) {
+                result.mPsnr[i] = Double.POSITIVE_INFINITY;
+            } else {
+                double mse = (double) stats.mSquaredError / samples;
+                result.mPsnr[i] = 10 * Math.log10(255.0 * 255.0 / mse);
+            }
+            result.mSsim[i] = (mComputeSsim && stats.mSsimBlocks > 0) ?
+                    stats.mSsimSum / stats.mSsimBlocks : Double.NaN;
+        }
+        return result;
+    }
+
+    /**
+     * Compares rows [y0, y1) of two planes, splitting in half down to BAND_HEIGHT rows.
+     */
+    private static class BandTask extends RecursiveTask<BandStats> {
+        private final YuvFrameView.Plane mA;
+        private final YuvFrameView.Plane mB;
+        private final int mY0;
+        private final int mY1;
+        private final boolean mComputeSsim;
+
+        BandTask(YuvFrameView.Plane a, YuvFrameView.Plane b, int y0, int y1,
+                boolean computeSsim) {
+            mA = a;
+            mB = b;
+            mY0 = y0;
+            mY1 = y1;
+            mComputeSsim = computeSsim;
+        }
+
+        @Override
+        protected BandStats compute() {
+            if (mY1 - mY0 <= BAND_HEIGHT) {
+                return compareBand(mA, mB, mY0, mY1, mComputeSsim);
+            }
+            // split at a block boundary, so SSIM blocks don't straddle tasks
+            int mid = mY0 + ((mY1 - mY0) / 2 / BLOCK_SIZE) * BLOCK_SIZE;
+            BandTask top = new BandTask(mA, mB, mY0, mid, mComputeSsim);
+            BandTask bottom = new BandTask(mA, mB, mid, mY1, mComputeSsim);
+            top.fork();
+            BandStats stats = bottom.compute();
+            stats.add(top.join());
+            return stats;
+        }
+    }
+
+    private static BandStats compareBand(YuvFrameView.Plane a, YuvFrameView.Plane b, int y0,
+            int y1, boolean ssim) {
+        final int width = a.mWidth;
+        byte[][] rowsA = new byte[BLOCK_SIZE][width];
+        byte[][] rowsB = new byte[BLOCK_SIZE][width];
+        byte[] scratch = new byte[Math.max(
+                (width - 1) * Math.max(a.mPixelStride, b.mPixelStride) + 1, 1)];
+        BandStats stats = new BandStats();
+
+        for (int by = y0; by < y1; by += BLOCK_SIZE) {
+            int rows = Math.min(BLOCK_SIZE, y1 - by);
+            long squaredError = 0;
+            for (int r = 0; r < rows; r++) {
+                byte[] ra = rowsA[r];
+                byte[] rb = rowsB[r];
+                a.getRow(by + r, ra, scratch);
+                b.getRow(by + r, rb, scratch);
+                for (int x = 0; x < width; x++) {
+                    int d = (ra[x] & 0xff) - (rb[x] & 0xff);
+                    squaredError += d * d;
+                }
+            }
+            stats.mSquaredError += squaredError;
+
+            if (ssim && rows == BLOCK_SIZE) {
+                for (int bx = 0; bx + BLOCK_SIZE <= width; bx += BLOCK_SIZE) {
+                    stats.mSsimSum += blockSsim(rowsA, rowsB, bx);
+                    stats.mSsimBlocks++;
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the SSIM of the 8x8 blocks at column bx of two sets of rows.
+     */
+    private static double blockSsim(byte[][] rowsA, byte[][] rowsB, int bx) {
+        int sumA = 0;
+        int sumB = 0;
+        int sumAA = 0;
+        int sumBB = 0;
+        int sumAB = 0;
+        for (int r = 0; r < BLOCK_SIZE; r++) {
+            byte[] ra = rowsA[r];
+            byte[] rb = rowsB[r];
+            for (int x = bx; x < bx + BLOCK_SIZE; x++) {
+                int va = ra[x] & 0xff;
+                int vb = rb[x] & 0xff;
+                sumA += va;
+                sumB += vb;
+                sumAA += va * va;
+                sumBB += vb * vb;
+                sumAB += va * vb;
+            }
+        }
+        final double n = BLOCK_SIZE * BLOCK_SIZE;
+        double meanA = sumA / n;
+        double meanB = sumB / n;
+        double varA = sumAA / n - meanA * meanA;
+        double varB = sumBB / n - meanB * meanB;
+        double covAB = sumAB / n - meanA * meanB;
+        return ((2 * meanA * meanB + C1) * (2 * covAB + C2)) /
+                ((meanA * meanA + meanB * meanB + C1) * (varA + varB + C2));
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * A chain of GLES 2.0 filters applied to decoded frames, e.g. scale, then color convert, then
+ * overlay.  Used by TextureRender in place of its single fragment shader.
+ * <p>
+ * Each filter is a fragment shader snippet.  Adjacent filters are fused into a single render
+ * pass where that doesn't change the result: coordinate filters (which only move where the
+ * input is sampled) followed by color filters (which only change the sampled color) become one
+ * shader.  A kernel filter, which samples its input more than once, needs its input in a
+ * texture, so it starts a new pass.  All passes but the last render into one of two textures
+ * attached to a framebuffer object, alternately; the last pass renders to the current EGL
+ * surface, so the chain costs no extra copy over a single shader.
+ * <p>
+ * The time spent in each pass can be measured, see {@link #setTimingEnabled}.  GLES 2.0 has
+ * no timer queries, so this is wall time around a glFinish.
+ * <p>
+ * All methods must be called with the EGL context current.
+ */
+class GlFilterGraph {
+    private static final String TAG = "GlFilterGraph";
+    private static final boolean VERBOSE = false;
+
+    private static final float[] IDENTITY_MATRIX = {
+        1, 0, 0, 0,
+        0, 1, 0, 0,
+        0, 0, 1, 0,
+        0, 0, 0, 1,
+    };
+
+    // The texture transform is applied in the fragment shader, after the coordinate filters,
+    // so that those work in image space.
+    private static final String VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "  gl_Position = aPosition;\n" +
+            "  vTextureCoord = aTextureCoord.xy;\n" +
+            "}\n";
+
+    /**
+     * One filter of the chain.
+     */
+    public static class Filter {
+        static final int COORDINATE = 0;
+        static final int KERNEL = 1;
+        static final int COLOR = 2;
+
+        private final String mName;
+        private final int mType;
+        private final String mBody;
+
+        private Filter(String name, int type, String body) {
+            mName = name;
+            mType = type;
+            mBody = body;
+        }
+
+        /**
+         * Creates a filter that moves where the frame is sampled.  The body modifies
+         * {@code vec2 coord}, the image coordinate ([0,1] both ways) that is sampled for the
+         * output pixel at {@code vTextureCoord}.
+         */
+        public static Filter coordinate(String name, String body) {
+            return new Filter(name, COORDINATE, body);
+        }
+
+        /**
+         * Creates a filter that combines several samples of the frame.  The body sets
+         * {@code vec4 color} from calls to {@code sampleAt(vec2)} around {@code vec2 coord};
+         * {@code uTexelSize} is the size of a texel.
+         */
+        public static Filter kernel(String name, String body) {
+            return new Filter(name, KERNEL, body);
+        }
+
+        /**
+         * Creates a filter that changes the color of each pixel.  The body modifies
+         * {@code vec4 color}, and may use the output position {@code vTextureCoord}.
+         */
+        public static Filter color(String name, String body) {
+            return new Filter(name, COLOR, body);
+        }
+
+        /**
+         * Scales the frame by (sx, sy) around its center.
+         */
+        public static Filter scale(float sx, float sy) {
+            return coordinate("scale", String.format(Locale.US,
+                    "coord = (coord - 0.5) / vec2(%f, %f) + 0.5;", sx, sy));
+        }
+
+        /**
+         * Reorders the color channels, e.g. "rbga" swaps green and blue.
+         */
+        public static Filter swizzle(String channels) {
+            return color("swizzle", "color = color." + channels + ";");
+        }
+
+        /**
+         * Multiplies the color by a 4x4 matrix, in column-major order like
+         * android.opengl.Matrix.
+         */
+        public static Filter colorMatrix(float[] m) {
+            StringBuilder sb = new StringBuilder("color = mat4(");
+            for (int i = 0; i < 16; i++) {
+                sb.append(i == 0 ? "" : ", ").append(String.format(Locale.US, "%f", m[i]));
+            }
+            sb.append(") * color;");
+            return color("colorMatrix", sb.toString());
+        }
+
+        /**
+         * Blends a solid rectangle over the frame.  Coordinates are in [0,1], the origin is
+         * the bottom left corner.
+         */
+        public static Filter overlay(float left, float bottom, float right, float top,
+                float r, float g, float b, float a) {
+            return color("overlay", String.format(Locale.US,
+                    "if (all(greaterThanEqual(vTextureCoord, vec2(%f, %f))) &&\n" +
+                    "    all(lessThan(vTextureCoord, vec2(%f, %f)))) {\n" +
+                    "  color = mix(color, vec4(%f, %f, %f, 1.0), %f);\n" +
+                    "}", left, bottom, right, top, r, g, b, a));
+        }
+
+        /**
+         * Averages each pixel with its 8 neighbours.
+         */
+        public static Filter boxBlur() {
+            return kernel("boxBlur",
+                    "color = vec4(0.0);\n" +
+                    "for (int y = -1; y <= 1; y++) {\n" +
+                    "  for (int x = -1; x <= 1; x++) {\n" +
+                    "    color += sampleAt(coord + vec2(float(x), float(y)) * uTexelSize);\n" +
+                    "  }\n" +
+                    "}\n" +
+                    "color /= 9.0;");
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * A render pass: fused filters that run as one shader.
+     */
+    private static class Pass {
+        final List<Filter> mFilters = new ArrayList<Filter>();
+        String mName;
+        String mFragmentShader;     // samples the decoded frame in the first pass, else the
+                                    // previous pass's texture
+
+        // resolved from the program cache on first use, and again if evicted
+        ProgramCache.Program mProgram;
+        int msTextureHandle;
+        int muSTMatrixHandle;
+        int muTexelSizeHandle;      // -1 if the shader has no kernel filter
+        int maPositionHandle;
+        int maTextureHandle;
+
+        boolean canFuse(Filter filter) {
+            switch (filter.mType) {
+                case Filter.COORDINATE:
+                    // only before anything has been sampled
+                    for (Filter f : mFilters) {
+                        if (f.mType != Filter.COORDINATE) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case Filter.KERNEL:
+                    return mFilters.isEmpty();
+                default:
+                    return true;
+            }
+        }
+    }
+
+    private final ProgramCache mProgramCache;
+    private final FloatBuffer mTriangleVertices;
+    private final List<Pass> mPasses = new ArrayList<Pass>();
+
+    // ping-pong targets, allocated for the current size when there are two passes or more
+    private final int[] mTextures = new int[2];
+    private final int[] mFramebuffer = new int[1];
+    private int mTextureWidth;
+    private int mTextureHeight;
+
+    private boolean mTimingEnabled;
+    private long[] mPassTimesNs = new long[0];
+    private int mTimedFrames;
+
+    private final int[] mViewport = new int[4];
+
+    /**
+     * Creates a filter graph that links its programs through a program cache.
+     */
+    public GlFilterGraph(ProgramCache programCache) {
+        mProgramCache = programCache;
+        mTriangleVertices = ByteBuffer.allocateDirect(
+                TextureRender.TRIANGLE_VERTICES_DATA.length * TextureRender.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mTriangleVertices.put(TextureRender.TRIANGLE_VERTICES_DATA).position(0);
+    }
+
+    /**
+     * Sets the chain of filters, applied in order.  An empty chain copies the frame.
+     */
+    public void setFilters(List<Filter> filters) {
+        mPasses.clear();
+        Pass pass = null;
+        for (Filter filter : filters) {
+            if (pass == null || !pass.canFuse(filter)) {
+                pass = new Pass();
+                mPasses.add(pass);
+            }
+            pass.mFilters.add(filter);
+        }
+        if (mPasses.isEmpty()) {
+            mPasses.add(new Pass());
+        }
+        for (int i = 0; i < mPasses.size(); i++) {
+            Pass p = mPasses.get(i);
+            StringBuilder name = new StringBuilder();
+            for (Filter f : p.mFilters) {
+                name.append(name.length() == 0 ? "" : "+").append(f.mName);
+            }
+            p.mName = name.length() == 0 ? "copy" : name.toString();
+            p.mFragmentShader = createFragmentShader(p.mFilters, i == 0);
+        }
+        if (VERBOSE) Log.d(TAG, filters.size() + " filters in " + mPasses.size() + " passes");
+        mPassTimesNs = new long[mPasses.size()];
+        mTimedFrames = 0;
+    }
+
+    /**
+     * Returns the names of the passes, the fused filter names joined by '+'.
+     */
+    public List<String> getPassNames() {
+        List<String> names = new ArrayList<String>();
+        for (Pass pass : mPasses) {
+            names.add(pass.mName);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Enables measuring the time of each pass.  This waits for each pass to finish, so it
+     * slows rendering down.
+     */
+    public void setTimingEnabled(boolean enabled) {
+        mTimingEnabled = enabled;
+    }
+
+    /**
+     * Returns the mean time of each pass in ns, over the frames drawn with timing enabled.
+     */
+    public long[] getPassTimesNs() {
+        long[] times = new long[mPassTimesNs.length];
+        for (int i = 0; i < times.length && mTimedFrames > 0; i++) {
+            times[i] = mPassTimesNs[i] / mTimedFrames;
+        }
+        return times;
+    }
+
+    /**
+     * Runs the chain on an external texture, rendering to the current framebuffer and
+     * viewport.
+     *
+     * @param stMatrix the texture transform from SurfaceTexture.getTransformMatrix()
+     */
+    public void draw(int externalTexture, float[] stMatrix) {
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        int width = mViewport[2];
+        int height = mViewport[3];
+        if (mPasses.size() > 1) {
+            prepareTargets(width, height);
+        }
+
+        for (int i = 0; i < mPasses.size(); i++) {
+            long start = mTimingEnabled ? System.nanoTime() : 0;
+            Pass pass = mPasses.get(i);
+            boolean last = i == mPasses.size() - 1;
+            if (last) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                GLES20.glViewport(mViewport[0], mViewport[1], width, height);
+            } else {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+                        GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mTextures[i % 2], 0);
+                GLES20.glViewport(0, 0, width, height);
+            }
+            if (i == 0) {
+                drawPass(pass, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, externalTexture, stMatrix,
+                        width, height);
+            } else {
+                drawPass(pass, GLES20.GL_TEXTURE_2D, mTextures[(i - 1) % 2], IDENTITY_MATRIX,
+                        width, height);
+            }
+            if (mTimingEnabled) {
+                GLES20.glFinish();
+                mPassTimesNs[i] += System.nanoTime() - start;
+            }
+        }
+        if (mTimingEnabled) {
+            mTimedFrames++;
+        }
+    }
+
+    /**
+     * Deletes the intermediate textures and framebuffer.  The programs stay in the cache.
+     */
+    public void release() {
+        if (mFramebuffer[0] != 0) {
+            GLES20.glDeleteFramebuffers(1, mFramebuffer, 0);
+            GLES20.glDeleteTextures(2, mTextures, 0);
+            mFramebuffer[0] = 0;
+            mTextures[0] = mTextures[1] = 0;
+            mTextureWidth = mTextureHeight = 0;
+        }
+    }
+
+    private void drawPass(Pass pass, int target, int texture, float[] stMatrix, int width,
+            int height) {
+        if (pass.mProgram == null || pass.mProgram.isReleased()) {
+            resolveProgram(pass);
+        }
+        GLES20.glUseProgram(pass.mProgram.getProgram());
+        TextureRender.checkGlError("glUseProgram");
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(target, texture);
+        GLES20.glUniform1i(pass.msTextureHandle, 0);
+        GLES20.glUniformMatrix4fv(pass.muSTMatrixHandle, 1, false, stMatrix, 0);
+        if (pass.muTexelSizeHandle != -1) {
+            GLES20.glUniform2f(pass.muTexelSizeHandle, 1.0f / width, 1.0f / height);
+        }
+
+        mTriangleVertices.position(TextureRender.TRIANGLE_VERTICES_DATA_POS_OFFSET);
+        GLES20.glVertexAttribPointer(pass.maPositionHandle, 3, GLES20.GL_FLOAT, false,
+                TextureRender.TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
+        GLES20.glEnableVertexAttribArray(pass.maPositionHandle);
+
+        mTriangleVertices.position(TextureRender.TRIANGLE_VERTICES_DATA_UV_OFFSET);
+        GLES20.glVertexAttribPointer(pass.maTextureHandle, 2, GLES20.GL_FLOAT, false,
+                TextureRender.TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
+        GLES20.glEnableVertexAttribArray(pass.maTextureHandle);
+        TextureRender.checkGlError("glVertexAttribPointer");
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        TextureRender.checkGlError("glDrawArrays");
+    }
+
+    /**
+     * Looks up the program of a pass in the cache, linking it if needed, and its handles.
+     */
+    private void resolveProgram(Pass pass) {
+        ProgramCache.Program program = mProgramCache.get(VERTEX_SHADER, pass.mFragmentShader);
+        pass.msTextureHandle = program.getUniformLocation("sTexture");
+        pass.muSTMatrixHandle = program.getUniformLocation("uSTMatrix");
+        pass.muTexelSizeHandle = program.findUniformLocation("uTexelSize");
+        pass.maPositionHandle = program.getAttribLocation("aPosition");
+        pass.maTextureHandle = program.getAttribLocation("aTextureCoord");
+        pass.mProgram = program;
+    }
+
+    /**
+     * Allocates the intermediate textures and the framebuffer for a frame size.
+     */
+    private void prepareTargets(int width, int height) {
+        if (mFramebuffer[0] != 0 && width == mTextureWidth && height == mTextureHeight) {
+            return;
+        }
+        release();
+        GLES20.glGenTextures(2, mTextures, 0);
+        for (int texture : mTextures) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+        }
+        TextureRender.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, mFramebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextures[0], 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("framebuffer incomplete: 0x" +
+                    Integer.toHexString(status));
+        }
+        mTextureWidth = width;
+        mTextureHeight = height;
+    }
+
+    /**
+     * Generates the fragment shader of a pass.  Coordinate filters are applied last to first,
+     * as the coordinate of the output is mapped back to the input.
+     */
+    private static String createFragmentShader(List<Filter> filters, boolean external) {
+        StringBuilder sb = new StringBuilder();
+        if (external) {
+            sb.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+        sb.append("precision mediump float;\n");
+        sb.append("varying vec2 vTextureCoord;\n");
+        sb.append("uniform mat4 uSTMatrix;\n");
+        sb.append("uniform vec2 uTexelSize;\n");
+        sb.append(external ? "uniform samplerExternalOES sTexture;\n" :
+                "uniform sampler2D sTexture;\n");
+        sb.append("vec4 sampleAt(vec2 c) {\n");
+        sb.append("  return texture2D(sTexture, (uSTMatrix * vec4(c, 0.0, 1.0)).xy);\n");
+        sb.append("}\n");
+        sb.append("void main() {\n");
+        sb.append("  vec2 coord = vTextureCoord;\n");
+        sb.append("  vec4 color;\n");
+
+        int first = 0;
+        while (first < filters.size() && filters.get(first).mType == Filter.COORDINATE) {
+            first++;
+        }
+        for (int i = first - 1; i >= 0; i--) {
+            appendBody(sb, filters.get(i));
+        }
+        if (first < filters.size() && filters.get(first).mType == Filter.KERNEL) {
+            appendBody(sb, filters.get(first++));
+        } else {
+            sb.append("  color = sampleAt(coord);\n");
+        }
+        for (int i = first; i < filters.size(); i++) {
+            appendBody(sb, filters.get(i));
+        }
+        sb.append("  gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void appendBody(StringBuilder sb, Filter filter) {
+        // a block of its own, so locals of fused filters don't clash
+        sb.append("  {  // ").append(filter.mName).append('\n');
+        sb.append("    ").append(filter.mBody.replace("\n", "\n    ")).append('\n');
+        sb.append("  }\n");
+    }
+}
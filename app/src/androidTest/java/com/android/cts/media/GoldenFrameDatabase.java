@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Golden frame hashes of decoded test streams.
+ * <p>
+ * Maps a raw resource and the name of the codec that decoded it to the {@link FrameHasher}
+ * hash of every output frame, so a decode can be verified frame by frame while it runs,
+ * without a reference decode.  Different codecs may legitimately output different pixels,
+ * hence the codec name in the key.
+ * <p>
+ * The database is a compact binary file, normally shipped as a test asset and mapped into
+ * memory.  The hashes are read from the mapping as they are needed.
+ */
+public class GoldenFrameDatabase {
+    // File layout, little-endian: magic, version, entry count, reserved (int), followed by
+    // the entries.  Each entry is key length, frame count, flags, reserved (int), the UTF-8
+    // key padded to a multiple of 8 bytes and the frame hashes (long).
+    private static final int MAGIC = 0x42444647;    // "GFDB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_HEADER_SIZE = 16;
+
+    private static final int FLAG_COMPLETE = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Golden hashes of the first frames of one decode.
+     */
+    public static class Frames {
+        private final LongBuffer mHashes;
+        private final boolean mComplete;
+
+        private Frames(LongBuffer hashes, boolean complete) {
+            mHashes = hashes;
+            mComplete = complete;
+        }
+
+        /**
+         * Returns the number of frames with a golden hash.
+         */
+        public int getFrameCount() {
+            return mHashes.limit();
+        }
+
+        /**
+         * Returns whether the hashes cover the whole stream, so {@link #getFrameCount} is
+         * the number of frames a complete decode outputs.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        /**
+         * Returns the golden hash of a frame.
+         */
+        public long getHash(int frame) {
+            return mHashes.get(frame);
+        }
+    }
+
+    private final Map<String, Frames> mFrames = new HashMap<String, Frames>();
+
+    /**
+     * Creates an empty database.
+     */
+    public GoldenFrameDatabase() {
+    }
+
+    /**
+     * Loads a database from an asset.  Uncompressed assets are mapped, compressed ones read
+     * into memory.
+     *
+     * @return the database, empty if there is no such asset
+     */
+    public static GoldenFrameDatabase load(AssetManager assets, String name) throws IOException {
+        ByteBuffer buffer;
+        try {
+            AssetFileDescriptor afd = assets.openFd(name);
+            FileInputStream is = afd.createInputStream();
+            try {
+                buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        afd.getStartOffset(), afd.getLength());
+            } finally {
+                is.close();
+            }
+        } catch (FileNotFoundException e) {
+            // either missing or compressed
+            InputStream is;
+            try {
+                is = assets.open(name);
+            } catch (FileNotFoundException e2) {
+                return new GoldenFrameDatabase();
+            }
+            try {
+                buffer = readFully(is);
+            } finally {
+                is.close();
+            }
+        }
+        return parse(buffer, name);
+    }
+
+    /**
+     * Loads a database from a file.
+     *
+     * @return the database, empty if the file doesn't exist
+     */
+    public static GoldenFrameDatabase load(File file) throws IOException {
+        if (!file.isFile()) {
+            return new GoldenFrameDatabase();
+        }
+        RandomAccessFile dbFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = dbFile.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    file.getPath());
+        } finally {
+            dbFile.close();
+        }
+    }
+
+    /**
+     * Returns the golden hashes for a resource decoded by a codec, or null.
+     *
+     * @param resource resource entry name of the stream, e.g. "video_176x144_3gp_h263..."
+     * @param codecName name of the decoder, see MediaCodec.getName()
+     */
+    public Frames get(String resource, String codecName) {
+        return mFrames.get(getKey(resource, codecName));
+    }
+
+    /**
+     * Adds or replaces the golden hashes for a resource decoded by a codec.  Hashes of a
+     * complete decode don't get replaced by hashes of a partial one.
+     *
+     * @param hashes hashes of the first count output frames
+     * @param complete whether the frames are all frames of the stream
+     */
+    public void put(String resource, String codecName, long[] hashes, int count,
+            boolean complete) {
+        String key = getKey(resource, codecName);
+        Frames old = mFrames.get(key);
+        if (old != null && (old.isComplete() && !complete ||
+                old.isComplete() == complete && old.getFrameCount() > count)) {
+            return;
+        }
+        long[] copy = new long[count];
+        System.arraycopy(hashes, 0, copy, 0, count);
+        mFrames.put(key, new Frames(LongBuffer.wrap(copy), complete));
+    }
+
+    /**
+     * Saves the database, see {@link #load(File)}.  The database is written to a temporary
+     * file first and then renamed, so that readers never see a partially written one.
+     */
+    public void save(File file) throws IOException {
+        List<byte[]> keys = new ArrayList<byte[]>();
+        List<Frames> frames = new ArrayList<Frames>();
+        int size = HEADER_SIZE;
+        for (Map.Entry<String, Frames> entry : mFrames.entrySet()) {
+            byte[] key = entry.getKey().getBytes(UTF_8);
+            keys.add(key);
+            frames.add(entry.getValue());
+            size += ENTRY_HEADER_SIZE + align8(key.length) + 8 * entry.getValue().getFrameCount();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(keys.size());
+        buffer.putInt(0);
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            Frames f = frames.get(i);
+            buffer.putInt(key.length);
+            buffer.putInt(f.getFrameCount());
+            buffer.putInt(f.isComplete() ? FLAG_COMPLETE : 0);
+            buffer.putInt(0);
+            buffer.put(key);
+            buffer.position(buffer.position() + align8(key.length) - key.length);
+            LongBuffer hashes = f.mHashes.duplicate();
+            hashes.rewind();
+            buffer.asLongBuffer().put(hashes);
+            buffer.position(buffer.position() + 8 * f.getFrameCount());
+        }
+        buffer.rewind();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile dbFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            dbFile.setLength(0);
+            FileChannel channel = dbFile.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            dbFile.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Returns the number of (resource, codec) entries.
+     */
+    public int size() {
+        return mFrames.size();
+    }
+
+    private static GoldenFrameDatabase parse(ByteBuffer buffer, String name) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC ||
+                buffer.getInt(4) != VERSION) {
+            throw new IOException(name + " is not a golden frame database");
+        }
+        GoldenFrameDatabase db = new GoldenFrameDatabase();
+        int entryCount = buffer.getInt(8);
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + ENTRY_HEADER_SIZE > buffer.limit()) {
+                throw new IOException(name + " is truncated");
+            }
+            int keyLength = buffer.getInt(pos);
+            int frameCount = buffer.getInt(pos + 4);
+            int flags = buffer.getInt(pos + 8);
+            int keyPos = pos + ENTRY_HEADER_SIZE;
+            int hashPos = keyPos + align8(keyLength);
+            if (keyLength < 0 || frameCount < 0 ||
+                    hashPos + 8L * frameCount > buffer.limit()) {
+                throw new IOException(name + " is corrupt at entry " + i);
+            }
+            byte[] key = new byte[keyLength];
+            ByteBuffer view = buffer.duplicate();
+            view.position(keyPos);
+            view.get(key);
+
+            view.position(hashPos);
+            view.limit(hashPos + 8 * frameCount);
+            LongBuffer hashes = view.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            db.mFrames.put(new String(key, UTF_8),
+                    new Frames(hashes, (flags & FLAG_COMPLETE) != 0));
+            pos = hashPos + 8 * frameCount;
+        }
+        return db;
+    }
+
+    private static ByteBuffer readFully(InputStream is) throws IOException {
+        byte[] data = new byte[64 * 1024];
+        int size = 0;
+        int n;
+        while ((n = is.read(data, size, data.length - size)) >= 0) {
+            size += n;
+            if (size == data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+        }
+        return ByteBuffer.wrap(data, 0, size).slice();
+    }
+
+    private static String getKey(String resource, String codecName) {
+        return resource + "/" + codecName;
+    }
+
+    private static int align8(int n) {
+        return (n + 7) & ~7;
+    }
+}
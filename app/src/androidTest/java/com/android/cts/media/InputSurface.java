@@ -18,8 +18,6 @@ package com.android.cts.media;
 
 import android.opengl.EGL14;
 import android.opengl.EGLExt;
-import android.opengl.EGLConfig;
-import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
 import android.opengl.EGLSurface;
 import android.util.Log;
@@ -31,17 +29,15 @@ import android.view.Surface;
  * <p>
  * The constructor takes a Surface obtained from MediaCodec.createInputSurface(), and uses that
  * to create an EGL window surface.  Calls to eglSwapBuffers() cause a frame of data to be sent
- * to the video encoder.
+ * to the video encoder.  The EGL context comes from {@link EglContextPool}, and goes back there
+ * on release.
  */
 class InputSurface {
     private static final String TAG = "InputSurface";
     private static final boolean VERBOSE = false;
 
-    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
-    private static final int EGL_OPENGL_ES2_BIT = 4;
-
+    private EglContextPool.PooledContext mPooledContext;
     private EGLDisplay mEGLDisplay;
-    private EGLContext mEGLContext;
     private EGLSurface mEGLSurface;
 
     private Surface mSurface;
@@ -62,76 +58,37 @@ class InputSurface {
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
     private void eglSetup() {
-        mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
-        if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
-            throw new RuntimeException("unable to get EGL14 display");
-        }
-        int[] version = new int[2];
-        if (!EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1)) {
-            mEGLDisplay = null;
-            throw new RuntimeException("unable to initialize EGL14");
-        }
-
-        // Configure EGL for pbuffer and OpenGL ES 2.0.  We want enough RGB bits
-        // to be able to tell if the frame is reasonable.
-        int[] attribList = {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
-                EGL_RECORDABLE_ANDROID, 1,
-                EGL14.EGL_NONE
-        };
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] numConfigs = new int[1];
-        if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
-                numConfigs, 0)) {
-            throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
-        }
-
-        // Configure context for OpenGL ES 2.0.
-        int[] attrib_list = {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-                EGL14.EGL_NONE
-        };
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.EGL_NO_CONTEXT,
-                attrib_list, 0);
-        checkEglError("eglCreateContext");
-        if (mEGLContext == null) {
-            throw new RuntimeException("null context");
-        }
+        mPooledContext = EglContextPool.acquire(EglContextPool.RECORDABLE_CONFIG);
+        mEGLDisplay = mPooledContext.getDisplay();
 
         // Create a window surface, and attach it to the Surface we received.
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
-                surfaceAttribs, 0);
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mPooledContext.getConfig(),
+                mSurface, surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
+            EglContextPool.release(mPooledContext);
             throw new RuntimeException("surface was null");
         }
     }
 
     /**
-     * Discard all resources held by this class, notably the EGL context.  Also releases the
-     * Surface that was passed to our constructor.
+     * Discard all resources held by this class.  The EGL context goes back to the pool.  Also
+     * releases the Surface that was passed to our constructor.
      */
     public void release() {
-        if (EGL14.eglGetCurrentContext().equals(mEGLContext)) {
-            // Clear the current context and surface to ensure they are discarded immediately.
-            EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
-                    EGL14.EGL_NO_CONTEXT);
-        }
+        // Clears the current context and surface, if ours, so the surface is discarded
+        // immediately.
+        EglContextPool.release(mPooledContext);
         EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-        EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
-        //EGL14.eglTerminate(mEGLDisplay);
 
         mSurface.release();
 
         // null everything out so future attempts to use this object will cause an NPE
+        mPooledContext = null;
         mEGLDisplay = null;
-        mEGLContext = null;
         mEGLSurface = null;
 
         mSurface = null;
@@ -141,9 +98,7 @@ class InputSurface {
      * Makes our EGL context and surface current.
      */
     public void makeCurrent() {
-        if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
-            throw new RuntimeException("eglMakeCurrent failed");
-        }
+        mPooledContext.makeCurrent(mEGLSurface);
     }
 
     /**
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Frame index of an IVF file.
+ *
+ * Keeps file offsets of frame headers, sizes and timestamps of frames
+ * and a table of VP8 key frames in primitive arrays that grow on demand,
+ * so frames can be indexed as they are discovered instead of trusting
+ * the frame count in the file header.
+ *
+ * Frame timestamps are expected to be non-decreasing, which is the
+ * case for VP8 streams as they have no frame reordering.
+ *
+ * An index can be saved to and loaded from a compact binary file, keyed
+ * by length and modification time of the IVF file it was built from, and
+ * a fingerprint of its contents: the file header and the start of the
+ * first and last indexed frames. Modification times can be too coarse to
+ * tell a rewritten file apart, the fingerprint catches that.
+ */
+public class IvfFrameIndex {
+    /**
+     * Number of bytes from the start of a frame that {@link #isKeyFrame} looks at.
+     */
+    public static final int FRAME_TAG_SIZE = 4;
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int FRAME_HEADER_SIZE = 12;
+
+    private static final int FILE_HEADER_SIZE = 32;
+
+    // Saved index layout, little-endian: magic, version, source length,
+    // source modification time, source fingerprint, frame count, key frame
+    // count, followed by frame heads and timestamps (long), frame sizes and
+    // key frames (int).
+    private static final int INDEX_MAGIC = 0x49465649;  // "IVFI"
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_SIZE = 40;
+
+    private long[] mFrameHeads;  // Head of frame header
+    private int[] mFrameSizes;  // Frame size excluding header
+    private long[] mTimestamps;  // Frame timestamp in file timebase
+    private int mFrameCount;
+    private int[] mKeyFrames;  // Indices of key frames, ascending
+    private int mKeyFrameCount;
+
+    /**
+     * Creates an empty index.
+     */
+    public IvfFrameIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty index with room for the given number of frames.
+     *
+     * @param capacity  expected number of frames, e.g. from the file header
+     */
+    public IvfFrameIndex(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mFrameHeads = new long[capacity];
+        mFrameSizes = new int[capacity];
+        mTimestamps = new long[capacity];
+        mKeyFrames = new int[Math.max(capacity / 16, 1)];
+    }
+
+    private IvfFrameIndex(long[] frameHeads, int[] frameSizes, long[] timestamps,
+                          int[] keyFrames) {
+        mFrameHeads = frameHeads;
+        mFrameSizes = frameSizes;
+        mTimestamps = timestamps;
+        mFrameCount = frameHeads.length;
+        mKeyFrames = keyFrames;
+        mKeyFrameCount = keyFrames.length;
+    }
+
+    /**
+     * Loads an index saved by {@link #save}.
+     *
+     * The whole file is mapped and copied into the index arrays in bulk.
+     *
+     * @param file              index file
+     * @param source            the IVF file
+     * @param sourceModified    current modification time of the IVF file
+     * @return the index, or null if the index file is missing, corrupt or
+     * was saved for a different version of the IVF file
+     */
+    public static IvfFrameIndex load(File file, RandomAccessFile source, long sourceModified)
+            throws IOException {
+        if (!file.isFile() || file.length() < INDEX_HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile indexFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = indexFile.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != INDEX_MAGIC || buffer.getInt(4) != INDEX_VERSION ||
+                    buffer.getLong(8) != source.length() || buffer.getLong(16) != sourceModified) {
+                return null;
+            }
+            long fingerprint = buffer.getLong(24);
+            int frameCount = buffer.getInt(32);
+            int keyFrameCount = buffer.getInt(36);
+            if (frameCount < 0 || keyFrameCount < 0 || keyFrameCount > frameCount ||
+                    buffer.limit() != INDEX_HEADER_SIZE + 20L * frameCount + 4L * keyFrameCount) {
+                return null;
+            }
+
+            long[] frameHeads = new long[frameCount];
+            long[] timestamps = new long[frameCount];
+            int[] frameSizes = new int[frameCount];
+            int[] keyFrames = new int[keyFrameCount];
+            buffer.position(INDEX_HEADER_SIZE);
+            buffer.asLongBuffer().get(frameHeads);
+            buffer.position(buffer.position() + 8 * frameCount);
+            buffer.asLongBuffer().get(timestamps);
+            buffer.position(buffer.position() + 8 * frameCount);
+            buffer.asIntBuffer().get(frameSizes);
+            buffer.position(buffer.position() + 4 * frameCount);
+            buffer.asIntBuffer().get(keyFrames);
+            IvfFrameIndex index = new IvfFrameIndex(frameHeads, frameSizes, timestamps, keyFrames);
+            if (index.getEnd(FILE_HEADER_SIZE) > source.length() ||
+                    index.computeFingerprint(source) != fingerprint) {
+                return null;
+            }
+            return index;
+        } finally {
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Saves the index, see {@link #load}.
+     *
+     * The index is written to a temporary file first and then renamed,
+     * so that readers never see a partially written index.
+     *
+     * @param file              index file
+     * @param source            the IVF file the index was built from
+     * @param sourceModified    modification time of the IVF file
+     */
+    public void save(File file, RandomAccessFile source, long sourceModified)
+            throws IOException {
+        long fingerprint = computeFingerprint(source);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                INDEX_HEADER_SIZE + 20 * mFrameCount + 4 * mKeyFrameCount);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(INDEX_VERSION);
+        buffer.putLong(source.length());
+        buffer.putLong(sourceModified);
+        buffer.putLong(fingerprint);
+        buffer.putInt(mFrameCount);
+        buffer.putInt(mKeyFrameCount);
+        buffer.asLongBuffer().put(mFrameHeads, 0, mFrameCount);
+        buffer.position(buffer.position() + 8 * mFrameCount);
+        buffer.asLongBuffer().put(mTimestamps, 0, mFrameCount);
+        buffer.position(buffer.position() + 8 * mFrameCount);
+        buffer.asIntBuffer().put(mFrameSizes, 0, mFrameCount);
+        buffer.position(buffer.position() + 4 * mFrameCount);
+        buffer.asIntBuffer().put(mKeyFrames, 0, mKeyFrameCount);
+        buffer.rewind();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile indexFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            indexFile.setLength(0);
+            FileChannel channel = indexFile.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            indexFile.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * Hashes the file header and the frame headers and tags of the first
+     * and last indexed frames of an IVF file, as found at the indexed
+     * offsets. The file position is not changed.
+     */
+    private long computeFingerprint(RandomAccessFile source) throws IOException {
+        int frameBytes = FRAME_HEADER_SIZE + FRAME_TAG_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_SIZE + 2 * frameBytes);
+        FileChannel channel = source.getChannel();
+        readAt(channel, buffer, 0, FILE_HEADER_SIZE);
+        if (mFrameCount > 0) {
+            readAt(channel, buffer, mFrameHeads[0], frameBytes);
+            readAt(channel, buffer, mFrameHeads[mFrameCount - 1], frameBytes);
+        }
+        return FrameHasher.hash(buffer, 0, buffer.position());
+    }
+
+    /**
+     * Appends up to size bytes of a file at the given offset to a buffer,
+     * fewer if the file ends before.
+     */
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long position, int size)
+            throws IOException {
+        int end = buffer.position() + size;
+        buffer.limit(end);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        buffer.limit(buffer.capacity());
+    }
+
+    /**
+     * Tells if a frame is a key frame, based on its first bytes.
+     *
+     * For VP8, bit 0 of the frame tag is 0 for key frames. For VP9, the
+     * frame_type bit of the uncompressed header is checked. AV1 temporal
+     * units are considered key frames when they carry a sequence header,
+     * which encoders emit with every key frame.
+     *
+     * @param fourcc  fourcc of the stream, see {@link IvfReader#getFourcc}
+     * @param buffer  buffer holding the start of the frame
+     * @param offset  index of the first byte of the frame in buffer
+     * @param size    number of frame bytes available, up to FRAME_TAG_SIZE
+     */
+    public static boolean isKeyFrame(String fourcc, ByteBuffer buffer, int offset, int size) {
+        if (size <= 0) {
+            return false;
+        }
+        int frameTag = buffer.get(offset) & 0xff;
+        switch (fourcc) {
+            case IvfReader.FOURCC_VP9:
+                return isVp9KeyFrame(frameTag);
+            case IvfReader.FOURCC_AV1:
+                return isAv1KeyFrame(buffer, offset, size);
+            default:
+                return (frameTag & 0x01) == 0;
+        }
+    }
+
+    private static boolean isVp9KeyFrame(int header) {
+        // frame_marker(2) profile_low_bit(1) profile_high_bit(1)
+        //     [reserved_zero(1) for profile 3] show_existing_frame(1) frame_type(1)
+        if ((header >> 6) != 2) {
+            return false;
+        }
+        int profile = ((header >> 5) & 0x01) | ((header >> 3) & 0x02);
+        int bit = (profile == 3) ? 2 : 3;
+        boolean showExistingFrame = ((header >> bit) & 0x01) != 0;
+        return !showExistingFrame && ((header >> (bit - 1)) & 0x01) == 0;
+    }
+
+    private static boolean isAv1KeyFrame(ByteBuffer buffer, int offset, int size) {
+        final int OBU_SEQUENCE_HEADER = 1;
+        final int OBU_TEMPORAL_DELIMITER = 2;
+        int end = offset + size;
+        int pos = offset;
+        while (pos < end) {
+            int header = buffer.get(pos) & 0xff;
+            int obuType = (header >> 3) & 0x0f;
+            if (obuType == OBU_SEQUENCE_HEADER) {
+                return true;
+            }
+            if (obuType != OBU_TEMPORAL_DELIMITER) {
+                return false;
+            }
+            // skip the extension byte and the (empty) temporal delimiter payload
+            pos += 1 + ((header >> 2) & 0x01);
+            if ((header & 0x02) != 0) {
+                pos++;  // obu_size, 0 for a temporal delimiter
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends a frame to the index.
+     *
+     * @param frameHead  file offset of the frame header
+     * @param frameSize  frame size excluding header
+     * @param timestamp  frame timestamp in file timebase
+     * @param keyFrame   whether the frame is a key frame
+     */
+    public void add(long frameHead, int frameSize, long timestamp, boolean keyFrame) {
+        if (mFrameCount == mFrameHeads.length) {
+            int capacity = mFrameCount * 2;
+            mFrameHeads = Arrays.copyOf(mFrameHeads, capacity);
+            mFrameSizes = Arrays.copyOf(mFrameSizes, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        }
+        mFrameHeads[mFrameCount] = frameHead;
+        mFrameSizes[mFrameCount] = frameSize;
+        mTimestamps[mFrameCount] = timestamp;
+        if (keyFrame) {
+            if (mKeyFrameCount == mKeyFrames.length) {
+                mKeyFrames = Arrays.copyOf(mKeyFrames, mKeyFrameCount * 2);
+            }
+            mKeyFrames[mKeyFrameCount++] = mFrameCount;
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Returns number of indexed frames.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns file offset of the frame header.
+     */
+    public long getFrameHead(int frameIndex) {
+        checkIndex(frameIndex);
+        return mFrameHeads[frameIndex];
+    }
+
+    /**
+     * Returns frame size excluding header.
+     */
+    public int getFrameSize(int frameIndex) {
+        checkIndex(frameIndex);
+        return mFrameSizes[frameIndex];
+    }
+
+    /**
+     * Returns offset of the end of the last indexed frame, or the given
+     * offset if the index is empty.
+     *
+     * @param firstFrameHead  file offset of the first frame header
+     */
+    public long getEnd(long firstFrameHead) {
+        if (mFrameCount == 0) {
+            return firstFrameHead;
+        }
+        return mFrameHeads[mFrameCount - 1] + FRAME_HEADER_SIZE + mFrameSizes[mFrameCount - 1];
+    }
+
+    /**
+     * Returns frame timestamp in file timebase.
+     */
+    public long getTimestamp(int frameIndex) {
+        checkIndex(frameIndex);
+        return mTimestamps[frameIndex];
+    }
+
+    /**
+     * Tells if the frame is a key frame.
+     */
+    public boolean isKeyFrame(int frameIndex) {
+        checkIndex(frameIndex);
+        return Arrays.binarySearch(mKeyFrames, 0, mKeyFrameCount, frameIndex) >= 0;
+    }
+
+    /**
+     * Returns number of indexed key frames.
+     */
+    public int getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    /**
+     * Returns index of the last frame with a timestamp less-equal than
+     * the given one, or -1 if all frames are later.
+     *
+     * @param timestamp  timestamp in file timebase
+     */
+    public int findFrameAtOrBefore(long timestamp) {
+        int low = 0;
+        int high = mFrameCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[mid] <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Returns index of the last key frame at or before the given frame,
+     * or -1 if there is none.
+     */
+    public int findKeyFrameAtOrBefore(int frameIndex) {
+        int i = Arrays.binarySearch(mKeyFrames, 0, mKeyFrameCount, frameIndex);
+        if (i < 0) {
+            i = -i - 2;  // entry before the insertion point
+        }
+        return i >= 0 ? mKeyFrames[i] : -1;
+    }
+
+    /**
+     * Returns index of the first key frame at or after the given frame,
+     * or -1 if there is none.
+     */
+    public int findKeyFrameAtOrAfter(int frameIndex) {
+        int i = Arrays.binarySearch(mKeyFrames, 0, mKeyFrameCount, frameIndex);
+        if (i < 0) {
+            i = -i - 1;  // insertion point
+        }
+        return i < mKeyFrameCount ? mKeyFrames[i] : -1;
+    }
+
+    private void checkIndex(int frameIndex) {
+        if (frameIndex >= mFrameCount || frameIndex < 0) {
+            throw new IndexOutOfBoundsException("frame " + frameIndex + " of " + mFrameCount);
+        }
+    }
+}
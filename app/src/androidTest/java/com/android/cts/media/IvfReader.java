@@ -16,34 +16,65 @@
 
 package com.android.cts.media;
 
+import android.media.MediaExtractor;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * A simple reader for an IVF file.
  *
- * IVF format is a simple container format for VP8 encoded frames.
+ * IVF format is a simple container format for VP8 encoded frames,
+ * also used for VP9 and AV1 (see {@link #getFourcc}).
  * This reader is capable of getting frame count, width and height
  * from the header, and access individual frames randomly by
  * frame number.
+ *
+ * Optionally the file can be memory-mapped, in which case frames
+ * are handed out as read-only slices of the mapping and can be
+ * put into codec input buffers without an intermediate copy.
+ *
+ * Frame timestamps and key frames are indexed as well, so reading
+ * can be started from a given time, see {@link #seekToTimeUs}.
+ *
+ * The frame index can be cached in a sidecar file next to the IVF file
+ * (see {@link #getIndexFilename}), in which case opening the file again
+ * doesn't need to scan the frame headers.
  */
 
 public class IvfReader {
+    public static final String FOURCC_VP8 = "VP80";
+    public static final String FOURCC_VP9 = "VP90";
+    public static final String FOURCC_AV1 = "AV01";
+
     private static final byte HEADER_END = 32;
     private static final byte FOURCC_HEAD = 8;
     private static final byte WIDTH_HEAD = 12;
     private static final byte HEIGHT_HEAD = 14;
+    private static final byte RATE_HEAD = 16;
+    private static final byte SCALE_HEAD = 20;
     private static final byte FRAMECOUNT_HEAD = 24;
     private static final byte FRAME_HEADER_SIZE = 12;
+    private static final String INDEX_SUFFIX = ".idx";
 
     private RandomAccessFile mIvfFile;
+    private MappedByteBuffer mMappedFile;  // null unless memory-mapped
+    private ByteBuffer mReadOnlyView;  // read-only view of mMappedFile
     private boolean mHeaderValid;
+    private String mFourcc;
     private int mWidth;
     private int mHeight;
+    private int mScale;
+    private int mRate;
     private int mFrameCount;
-    private int[] mFrameHeads;  // Head of frame header
-    private int[] mFrameSizes;  // Frame size excluding header
-
+    private IvfFrameIndex mIndex;
+    private boolean mIndexCached;  // mIndex was loaded from the sidecar file
+    private int mNextFrame;  // Index of the frame returned by nextFrame()
 
     /**
      * Initializes the IVF file reader.
@@ -56,11 +87,84 @@ public class IvfReader {
      * @param filename   name of the IVF file
      */
     public IvfReader(String filename) throws IOException{
+        this(filename, false);
+    }
+
+    /**
+     * Initializes the IVF file reader, optionally memory-mapping the file.
+     *
+     * In memory-mapped mode the frame index is built in a single pass
+     * over the mapping, and frames that run past the end of the file
+     * are left out of the frame count.
+     *
+     * @param filename      name of the IVF file
+     * @param memoryMapped  whether to map the whole file into memory
+     */
+    public IvfReader(String filename, boolean memoryMapped) throws IOException{
+        this(filename, memoryMapped, false);
+    }
+
+    /**
+     * Initializes the IVF file reader, optionally memory-mapping the file
+     * and caching the frame index.
+     *
+     * With index caching the frame index is loaded from the sidecar file
+     * if it was saved for the current length, modification time and
+     * contents of the IVF file (see {@link IvfFrameIndex#load}). Otherwise
+     * frame headers are read as usual and the index is saved for the next
+     * time; failing to save it is not an error.
+     *
+     * @param filename      name of the IVF file
+     * @param memoryMapped  whether to map the whole file into memory
+     * @param cacheIndex    whether to use a sidecar index file
+     */
+    public IvfReader(String filename, boolean memoryMapped, boolean cacheIndex)
+            throws IOException{
         mIvfFile = new RandomAccessFile(filename, "r");
+        if (memoryMapped) {
+            FileChannel channel = mIvfFile.getChannel();
+            mMappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mMappedFile.order(ByteOrder.LITTLE_ENDIAN);
+            mReadOnlyView = mMappedFile.asReadOnlyBuffer();
+        }
 
         mHeaderValid = verifyHeader();
         readHeaderData();
-        readFrameMetadata();
+        if (!cacheIndex) {
+            readFrameMetadata();
+            return;
+        }
+
+        File ivfFile = new File(filename);
+        File indexFile = new File(getIndexFilename(filename));
+        long modified = ivfFile.lastModified();
+        IvfFrameIndex index = IvfFrameIndex.load(indexFile, mIvfFile, modified);
+        if (index != null) {
+            mIndex = index;
+            mFrameCount = index.getFrameCount();
+            mIndexCached = true;
+        } else {
+            readFrameMetadata();
+            try {
+                mIndex.save(indexFile, mIvfFile, modified);
+            } catch (IOException e) {
+                // The cache is an optimization only, e.g. the directory may be read-only.
+            }
+        }
+    }
+
+    /**
+     * Returns name of the sidecar index file for an IVF file.
+     */
+    public static String getIndexFilename(String filename){
+        return filename + INDEX_SUFFIX;
+    }
+
+    /**
+     * Tells if the frame index was loaded from the sidecar index file.
+     */
+    public boolean isIndexCached(){
+        return mIndexCached;
     }
 
     /**
@@ -73,6 +177,50 @@ public class IvfReader {
         return mHeaderValid;
     }
 
+    /**
+     * Returns fourcc of the codec according to header information,
+     * e.g. {@link #FOURCC_VP8}.
+     */
+    public String getFourcc(){
+        return mFourcc;
+    }
+
+    /**
+     * Returns MediaCodec MIME type of the codec according to header
+     * information, or null if the codec is unknown.
+     */
+    public String getMimeType(){
+        return getMimeType(mFourcc);
+    }
+
+    /**
+     * Returns MediaCodec MIME type for an IVF fourcc, or null if unknown.
+     */
+    public static String getMimeType(String fourcc){
+        switch (fourcc) {
+            case FOURCC_VP8:
+                return "video/x-vnd.on2.vp8";
+            case FOURCC_VP9:
+                return "video/x-vnd.on2.vp9";
+            case FOURCC_AV1:
+                return "video/av01";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns IVF fourcc for a MediaCodec MIME type, or null if unknown.
+     */
+    public static String getFourcc(String mimeType){
+        for (String fourcc : new String[] { FOURCC_VP8, FOURCC_VP9, FOURCC_AV1 }) {
+            if (getMimeType(fourcc).equalsIgnoreCase(mimeType)) {
+                return fourcc;
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns frame width according to header information.
      */
@@ -94,6 +242,13 @@ public class IvfReader {
         return mFrameCount;
     }
 
+    /**
+     * Tells if the file is memory-mapped.
+     */
+    public boolean isMemoryMapped(){
+        return mMappedFile != null;
+    }
+
     /**
      * Returns frame data by index.
      *
@@ -101,30 +256,184 @@ public class IvfReader {
      * than 0 and less than frameCount.
      */
     public byte[] readFrame(int frameIndex) throws IOException {
-        if (frameIndex > mFrameCount | frameIndex < 0){
+        if (frameIndex >= mFrameCount | frameIndex < 0){
             return null;
         }
-        int frameSize = mFrameSizes[frameIndex];
-        int frameHead = mFrameHeads[frameIndex];
+        int frameSize = mIndex.getFrameSize(frameIndex);
+        long frameHead = mIndex.getFrameHead(frameIndex);
 
         byte[] frame = new byte[frameSize];
-        mIvfFile.seek(frameHead + FRAME_HEADER_SIZE);
-        mIvfFile.read(frame);
+        if (mMappedFile != null) {
+            getFrame(frameIndex).get(frame);
+        } else {
+            mIvfFile.seek(frameHead + FRAME_HEADER_SIZE);
+            mIvfFile.readFully(frame);
+        }
 
         return frame;
     }
 
+    /**
+     * Returns frame data by index as a read-only buffer.
+     *
+     * In memory-mapped mode the buffer is a slice of the mapping and
+     * no frame data is copied; otherwise the frame is read into a new
+     * array first. Position of the returned buffer is 0 and its limit
+     * is the frame size.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than frameCount.
+     */
+    public ByteBuffer getFrame(int frameIndex) throws IOException {
+        if (frameIndex >= mFrameCount | frameIndex < 0){
+            return null;
+        }
+        if (mMappedFile == null) {
+            return ByteBuffer.wrap(readFrame(frameIndex)).asReadOnlyBuffer();
+        }
+        int frameStart = (int) mIndex.getFrameHead(frameIndex) + FRAME_HEADER_SIZE;
+
+        ByteBuffer frame = mReadOnlyView.duplicate();
+        frame.limit(frameStart + mIndex.getFrameSize(frameIndex));
+        frame.position(frameStart);
+        return frame.slice();
+    }
+
+    /**
+     * Tells if there are frames left for {@link #nextFrame}.
+     */
+    public boolean hasNextFrame(){
+        return mNextFrame < mFrameCount;
+    }
+
+    /**
+     * Returns index of the frame that the next {@link #nextFrame} call returns.
+     */
+    public int getNextFrameIndex(){
+        return mNextFrame;
+    }
+
+    /**
+     * Returns the next frame in file order, as with {@link #getFrame},
+     * and advances to the following frame.
+     *
+     * @return frame data, or null after the last frame
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (!hasNextFrame()) {
+            return null;
+        }
+        return getFrame(mNextFrame++);
+    }
+
+    /**
+     * Moves sequential reading to the given frame.
+     *
+     * @param frameIndex index of the frame {@link #nextFrame} returns next,
+     * greater-equal than 0 and less-equal than frameCount.
+     */
+    public void seekToFrame(int frameIndex){
+        if (frameIndex > mFrameCount | frameIndex < 0){
+            throw new IndexOutOfBoundsException("frame " + frameIndex + " of " + mFrameCount);
+        }
+        mNextFrame = frameIndex;
+    }
+
+    /**
+     * Returns frame timestamp in the timebase of the file.
+     */
+    public long getFrameTimestamp(int frameIndex){
+        return mIndex.getTimestamp(frameIndex);
+    }
+
+    /**
+     * Returns frame timestamp in microseconds.
+     */
+    public long getFrameTimeUs(int frameIndex){
+        return toTimeUs(mIndex.getTimestamp(frameIndex));
+    }
+
+    /**
+     * Tells if the frame is a key frame.
+     */
+    public boolean isKeyFrame(int frameIndex){
+        return mIndex.isKeyFrame(frameIndex);
+    }
+
+    /**
+     * Moves sequential reading to a key frame near the given time, like
+     * MediaExtractor.seekTo() does.
+     *
+     * If there is no key frame in the requested direction, the nearest key
+     * frame in the other direction is used. Without any key frames, reading
+     * moves to the end of the file.
+     *
+     * @param timeUs    time to seek to, in microseconds
+     * @param mode      one of MediaExtractor.SEEK_TO_PREVIOUS_SYNC,
+     *                  SEEK_TO_NEXT_SYNC or SEEK_TO_CLOSEST_SYNC
+     * @return index of the frame {@link #nextFrame} returns next
+     */
+    public int seekToTimeUs(long timeUs, int mode){
+        int frameIndex = mIndex.findFrameAtOrBefore(toTimestamp(timeUs));
+        int previous = frameIndex < 0 ? -1 : mIndex.findKeyFrameAtOrBefore(frameIndex);
+        int next;
+        if (frameIndex >= 0 && getFrameTimeUs(frameIndex) >= timeUs) {
+            next = mIndex.findKeyFrameAtOrAfter(frameIndex);
+        } else {
+            next = mIndex.findKeyFrameAtOrAfter(frameIndex + 1);
+        }
+
+        int keyFrame;
+        switch (mode) {
+            case MediaExtractor.SEEK_TO_PREVIOUS_SYNC:
+                keyFrame = previous >= 0 ? previous : next;
+                break;
+            case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                keyFrame = next >= 0 ? next : previous;
+                break;
+            case MediaExtractor.SEEK_TO_CLOSEST_SYNC:
+                if (previous < 0 || next < 0) {
+                    keyFrame = previous >= 0 ? previous : next;
+                } else if (timeUs - getFrameTimeUs(previous) <= getFrameTimeUs(next) - timeUs) {
+                    keyFrame = previous;
+                } else {
+                    keyFrame = next;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown seek mode " + mode);
+        }
+        mNextFrame = keyFrame >= 0 ? keyFrame : mFrameCount;
+        return mNextFrame;
+    }
+
     /**
      * Closes IVF file.
      */
     public void close() throws IOException{
+        mMappedFile = null;
+        mReadOnlyView = null;
         mIvfFile.close();
     }
 
     private boolean verifyHeader() throws IOException{
+        byte[] fourcc = new byte[4];
+        if (mMappedFile != null) {
+            if (mMappedFile.limit() < HEADER_END) {
+                mFourcc = "";
+                return false;
+            }
+            for (int i = 0; i < fourcc.length; i++) {
+                fourcc[i] = mMappedFile.get(FOURCC_HEAD + i);
+            }
+            mFourcc = new String(fourcc, "US-ASCII");
+            return matchTag(mMappedFile, 0, "DKIF") && getMimeType(mFourcc) != null;
+        }
+
         mIvfFile.seek(0);
 
         if (mIvfFile.length() < HEADER_END){
+            mFourcc = "";
             return false;
         }
 
@@ -136,15 +445,23 @@ public class IvfReader {
 
         // Fourcc
         mIvfFile.seek(FOURCC_HEAD);
-        boolean fourccMatch = ((mIvfFile.readByte() == (byte)'V') &&
-                (mIvfFile.readByte() == (byte)'P') &&
-                (mIvfFile.readByte() == (byte)'8') &&
-                (mIvfFile.readByte() == (byte)'0'));
+        mIvfFile.readFully(fourcc);
+        mFourcc = new String(fourcc, "US-ASCII");
 
-        return signatureMatch && fourccMatch;
+        return signatureMatch && getMimeType(mFourcc) != null;
     }
 
     private void readHeaderData() throws IOException{
+        if (mMappedFile != null) {
+            mWidth = mMappedFile.getShort(WIDTH_HEAD);
+            mHeight = mMappedFile.getShort(HEIGHT_HEAD);
+            mRate = mMappedFile.getInt(RATE_HEAD);
+            mScale = mMappedFile.getInt(SCALE_HEAD);
+            mFrameCount = mMappedFile.getInt(FRAMECOUNT_HEAD);
+            mIndex = new IvfFrameIndex(mFrameCount);
+            return;
+        }
+
         // width
         mIvfFile.seek(WIDTH_HEAD);
         mWidth = (int) changeEndianness(mIvfFile.readShort());
@@ -153,27 +470,103 @@ public class IvfReader {
         mIvfFile.seek(HEIGHT_HEAD);
         mHeight = (int) changeEndianness(mIvfFile.readShort());
 
+        // timebase
+        mIvfFile.seek(RATE_HEAD);
+        mRate = changeEndianness(mIvfFile.readInt());
+        mScale = changeEndianness(mIvfFile.readInt());
+
         // frame count
         mIvfFile.seek(FRAMECOUNT_HEAD);
         mFrameCount = changeEndianness(mIvfFile.readInt());
 
         // allocate frame metadata
-        mFrameHeads = new int[mFrameCount];
-        mFrameSizes = new int[mFrameCount];
+        mIndex = new IvfFrameIndex(mFrameCount);
     }
 
     private void readFrameMetadata() throws IOException{
-        int frameHead = HEADER_END;
+        if (mMappedFile != null) {
+            readMappedFrameMetadata();
+            return;
+        }
+
+        ByteBuffer frameHeader =
+                ByteBuffer.allocate(FRAME_HEADER_SIZE + IvfFrameIndex.FRAME_TAG_SIZE);
+        frameHeader.order(ByteOrder.LITTLE_ENDIAN);
+        long fileEnd = mIvfFile.length();
+        long frameHead = HEADER_END;
         for(int i = 0; i < mFrameCount; i++){
+            // frame header and the frame tag that follows it
+            int tagSize = (int) Math.max(0,
+                    Math.min(IvfFrameIndex.FRAME_TAG_SIZE, fileEnd - frameHead - FRAME_HEADER_SIZE));
             mIvfFile.seek(frameHead);
-            int frameSize = changeEndianness(mIvfFile.readInt());
-            mFrameHeads[i] = frameHead;
-            mFrameSizes[i] = frameSize;
+            mIvfFile.readFully(frameHeader.array(), 0, FRAME_HEADER_SIZE + tagSize);
+            int frameSize = frameHeader.getInt(0);
+            long timestamp = frameHeader.getLong(4);
+            boolean keyFrame = IvfFrameIndex.isKeyFrame(mFourcc, frameHeader,
+                    FRAME_HEADER_SIZE, Math.min(frameSize, tagSize));
+            mIndex.add(frameHead, frameSize, timestamp, keyFrame);
+            // next frame
+            frameHead += FRAME_HEADER_SIZE + frameSize;
+        }
+    }
+
+    private void readMappedFrameMetadata(){
+        int fileEnd = mMappedFile.limit();
+        int frameHead = HEADER_END;
+        for(int i = 0; i < mFrameCount; i++){
+            if (frameHead + FRAME_HEADER_SIZE > fileEnd) {
+                mFrameCount = i;
+                break;
+            }
+            int frameSize = mMappedFile.getInt(frameHead);
+            if (frameSize < 0 || frameSize > fileEnd - frameHead - FRAME_HEADER_SIZE) {
+                mFrameCount = i;
+                break;
+            }
+            long timestamp = mMappedFile.getLong(frameHead + 4);
+            boolean keyFrame = IvfFrameIndex.isKeyFrame(mFourcc, mMappedFile,
+                    frameHead + FRAME_HEADER_SIZE,
+                    Math.min(frameSize, IvfFrameIndex.FRAME_TAG_SIZE));
+            mIndex.add(frameHead, frameSize, timestamp, keyFrame);
             // next frame
             frameHead += FRAME_HEADER_SIZE + frameSize;
         }
     }
 
+    /**
+     * Converts a timestamp in file timebase to microseconds. Files without
+     * a timebase are assumed to use microseconds.
+     */
+    private long toTimeUs(long timestamp){
+        if (mRate <= 0 || mScale <= 0) {
+            return timestamp;
+        }
+        return timestamp * mScale * 1000000L / mRate;
+    }
+
+    /**
+     * Converts microseconds to the last timestamp in file timebase that
+     * is not later than that.
+     */
+    private long toTimestamp(long timeUs){
+        if (mRate <= 0 || mScale <= 0) {
+            return timeUs;
+        }
+        long scaledTime = timeUs * mRate;
+        long scale = mScale * 1000000L;
+        long timestamp = scaledTime / scale;
+        return (scaledTime % scale < 0) ? timestamp - 1 : timestamp;
+    }
+
+    private static boolean matchTag(ByteBuffer buffer, int index, String tag){
+        for (int i = 0; i < tag.length(); i++){
+            if (buffer.get(index + i) != (byte) tag.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static short changeEndianness(short value){
         // Rationale for down-cast;
         // Java Language specification 15.19:
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A streaming reader for an IVF file.
+ *
+ * Unlike {@link IvfReader}, this reader does not trust the frame count
+ * in the file header. Frame boundaries are found lazily by walking the
+ * frame headers, so it can read files whose header was never finalized
+ * (e.g. written by an IvfWriter that wasn't closed) and can follow a file
+ * that is still being written: {@link #nextFrame} returns null until the
+ * next frame has been written completely.
+ *
+ * The exception is a preallocated file that an IvfWriter is still
+ * writing (see {@link IvfWriter#preallocate}). Its length says nothing
+ * about the written data, so only as many frames as the writer has
+ * published in the header are read.
+ *
+ * Frames are read into a single reused buffer, so memory use does not
+ * depend on the length of the stream.
+ */
+public class IvfStreamReader {
+    private static final byte HEADER_END = 32;
+    private static final byte FOURCC_HEAD = 8;
+    private static final byte WIDTH_HEAD = 12;
+    private static final byte HEIGHT_HEAD = 14;
+    private static final byte FRAME_HEADER_SIZE = 12;
+    private static final int INITIAL_FRAME_CAPACITY = 64 * 1024;
+
+    private RandomAccessFile mIvfFile;
+    private FileChannel mChannel;
+    private IvfFrameIndex mIndex = new IvfFrameIndex();
+    private ByteBuffer mFrameHeader;
+    private ByteBuffer mFrame;
+    private boolean mHeaderValid;
+    private String mFourcc = IvfReader.FOURCC_VP8;
+    private int mWidth;
+    private int mHeight;
+    private long mNextFrameHead = HEADER_END;  // Head of first frame not yet indexed
+    private int mNextFrame;  // Index of the frame returned by nextFrame()
+    private int mPublishedFrameCount = -1;  // -1 if the file isn't marked as being written
+    private long mMarkCheckedLength = -1;  // File length when the header was last checked
+
+    /**
+     * Initializes the streaming IVF file reader.
+     *
+     * File header is read if it's already present; frames are not
+     * read until requested.
+     *
+     * @param filename   name of the IVF file
+     */
+    public IvfStreamReader(String filename) throws IOException {
+        mIvfFile = new RandomAccessFile(filename, "r");
+        mChannel = mIvfFile.getChannel();
+        mFrameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE + IvfFrameIndex.FRAME_TAG_SIZE);
+        mFrameHeader.order(ByteOrder.LITTLE_ENDIAN);
+        mFrame = ByteBuffer.allocate(INITIAL_FRAME_CAPACITY);
+        readHeader();
+    }
+
+    /**
+     * Tells if file header seems to be valid.
+     *
+     * Header is reread if it wasn't valid before, as the writer only
+     * finalizes it when the file is closed.
+     */
+    public boolean isHeaderValid() throws IOException {
+        if (!mHeaderValid) {
+            readHeader();
+        }
+        return mHeaderValid;
+    }
+
+    /**
+     * Returns fourcc of the codec according to header information.
+     * VP8 is assumed until a valid header has been read.
+     */
+    public String getFourcc() {
+        return mFourcc;
+    }
+
+    /**
+     * Returns frame width according to header information, or 0 if
+     * the header is not valid.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns frame height according to header information, or 0 if
+     * the header is not valid.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns number of frames found so far.
+     */
+    public int getFrameCount() {
+        return mIndex.getFrameCount();
+    }
+
+    /**
+     * Indexes all frames that have been completely written so far.
+     *
+     * @return number of frames found so far
+     */
+    public int scanFrames() throws IOException {
+        while (indexNextFrame()) {
+        }
+        return mIndex.getFrameCount();
+    }
+
+    /**
+     * Returns the next frame, or null if it has not been completely
+     * written (yet). Calling again after the file has grown continues
+     * from the same frame.
+     *
+     * The returned buffer is only valid until the next read from this
+     * reader; its position is 0 and its limit is the frame size.
+     */
+    public ByteBuffer nextFrame() throws IOException {
+        if (mNextFrame == mIndex.getFrameCount() && !indexNextFrame()) {
+            return null;
+        }
+        return readFrame(mNextFrame++);
+    }
+
+    /**
+     * Returns an already found frame by index.
+     *
+     * The returned buffer is only valid until the next read from this
+     * reader; its position is 0 and its limit is the frame size.
+     *
+     * @param frameIndex index of the frame to read, greater-equal
+     * than 0 and less than {@link #getFrameCount}.
+     */
+    public ByteBuffer readFrame(int frameIndex) throws IOException {
+        int frameSize = mIndex.getFrameSize(frameIndex);
+        if (mFrame.capacity() < frameSize) {
+            mFrame = ByteBuffer.allocate(Math.max(frameSize, mFrame.capacity() * 2));
+        }
+        mFrame.clear();
+        mFrame.limit(frameSize);
+        readFully(mFrame, mIndex.getFrameHead(frameIndex) + FRAME_HEADER_SIZE);
+        mFrame.flip();
+        return mFrame;
+    }
+
+    /**
+     * Returns index of the frame that the next {@link #nextFrame} call returns.
+     */
+    public int getNextFrameIndex() {
+        return mNextFrame;
+    }
+
+    /**
+     * Closes IVF file.
+     */
+    public void close() throws IOException {
+        mIvfFile.close();
+    }
+
+    /**
+     * Finds the frame following the last indexed one, if it is complete.
+     */
+    private boolean indexNextFrame() throws IOException {
+        long fileLength = mChannel.size();
+        // The header only needs reading again once the frames published so far have all
+        // been indexed, or, for an unmarked file, when it may have been preallocated since.
+        if (mPublishedFrameCount >= 0 ? mIndex.getFrameCount() >= mPublishedFrameCount
+                : fileLength != mMarkCheckedLength) {
+            mPublishedFrameCount = readPublishedFrameCount(fileLength);
+            mMarkCheckedLength = fileLength;
+            if (mPublishedFrameCount >= 0 && mIndex.getFrameCount() >= mPublishedFrameCount) {
+                return false;
+            }
+        }
+        if (mNextFrameHead + FRAME_HEADER_SIZE > fileLength) {
+            return false;
+        }
+        mFrameHeader.clear();
+        mFrameHeader.limit(FRAME_HEADER_SIZE);
+        readFully(mFrameHeader, mNextFrameHead);
+        int frameSize = mFrameHeader.getInt(0);
+        long timestamp = mFrameHeader.getLong(4);
+        if (frameSize < 0) {
+            throw new IOException("Invalid frame size " + frameSize + " at " + mNextFrameHead);
+        }
+        if (mNextFrameHead + FRAME_HEADER_SIZE + frameSize > fileLength) {
+            return false;
+        }
+        int tagSize = Math.min(frameSize, IvfFrameIndex.FRAME_TAG_SIZE);
+        mFrameHeader.limit(FRAME_HEADER_SIZE + tagSize);
+        readFully(mFrameHeader, mNextFrameHead + FRAME_HEADER_SIZE);
+        boolean keyFrame =
+                IvfFrameIndex.isKeyFrame(mFourcc, mFrameHeader, FRAME_HEADER_SIZE, tagSize);
+
+        mIndex.add(mNextFrameHead, frameSize, timestamp, keyFrame);
+        mNextFrameHead += FRAME_HEADER_SIZE + frameSize;
+        return true;
+    }
+
+    /**
+     * Returns the number of frames published by an IvfWriter writing a
+     * preallocated file, or -1 if the file isn't being written that way.
+     */
+    private int readPublishedFrameCount(long fileLength) throws IOException {
+        if (fileLength < HEADER_END) {
+            return -1;
+        }
+        mFrameHeader.clear();
+        mFrameHeader.limit(8);
+        readFully(mFrameHeader, IvfWriter.FRAME_COUNT_HEAD);
+        if (mFrameHeader.getInt(4) != IvfWriter.WRITING_MARK) {
+            return -1;
+        }
+        return mFrameHeader.getInt(0);
+    }
+
+    private void readHeader() throws IOException {
+        if (mChannel.size() < HEADER_END) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_END).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        String fourcc = new String(header.array(), FOURCC_HEAD, 4, "US-ASCII");
+        mHeaderValid = (header.get(0) == 'D') && (header.get(1) == 'K') &&
+                (header.get(2) == 'I') && (header.get(3) == 'F') &&
+                (IvfReader.getMimeType(fourcc) != null);
+        if (mHeaderValid) {
+            mFourcc = fourcc;
+            mWidth = header.getShort(WIDTH_HEAD);
+            mHeight = header.getShort(HEIGHT_HEAD);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+}
@@ -18,21 +18,53 @@ package com.android.cts.media;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 /**
  * Writes an IVF file.
  *
- * IVF format is a simple container format for VP8 encoded frames.
+ * IVF format is a simple container format for VP8 encoded frames,
+ * also used for VP9 and AV1 (see {@link IvfReader#getFourcc}).
+ *
+ * Frames are written through a FileChannel, with the frame header and
+ * frame data going out in a single gathering write. Optionally frames
+ * are collected in a direct write buffer (see {@link #setBufferSize}),
+ * the file is preallocated (see {@link #preallocate}) and data is synced
+ * to the device periodically (see {@link #setSyncInterval}), so that
+ * long encodes don't cost an allocation or a system call per frame.
+ *
+ * While a preallocated file is open, the header marks it as being
+ * written and holds the number of frames that have reached the file,
+ * so that {@link IvfStreamReader} can tell written frames from the
+ * preallocated tail.
  */
 
 public class IvfWriter {
     private static final byte HEADER_END = 32;
+    private static final byte FRAME_HEADER_SIZE = 12;
+    static final byte FRAME_COUNT_HEAD = 24;
+    static final byte WRITING_MARK_HEAD = 28;
+    // In the unused last header field while a preallocated file is written
+    static final int WRITING_MARK = 0x474e5257;  // "WRNG"
     private RandomAccessFile mOutputFile;
+    private FileChannel mChannel;
+    private ByteBuffer mFrameHeader;  // Reused for every frame
+    private ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+    private ByteBuffer mWriteBuffer;  // null if unbuffered
+    private long mPosition;  // End of data written so far, including mWriteBuffer
+    private long mPreallocatedLength;
+    private int mFlushInterval;
+    private int mSyncInterval;
+    private String mFourcc;
     private int mWidth;
     private int mHeight;
     private int mScale;
     private int mRate;
     private int mFrameCount;
+    private int mPublishedFrameCount;
+    private ByteBuffer mFrameCountField;  // Reused to publish the frame count
 
     /**
      * Initializes the IVF file writer.
@@ -50,13 +82,44 @@ public class IvfWriter {
     public IvfWriter(String filename,
                      int width, int height,
                      int scale, int rate) throws IOException {
+        this(filename, width, height, scale, rate, IvfReader.FOURCC_VP8);
+    }
+
+    /**
+     * Initializes the IVF file writer for a given codec.
+     *
+     * Timebase fraction is in format scale/rate, e.g. 1/1000
+     * Timestamp values supplied while writing frames should be in accordance
+     * with this timebase value.
+     *
+     * @param filename   name of the IVF file
+     * @param width      frame width
+     * @param height     frame height
+     * @param scale      timebase scale (or numerator of the timebase fraction)
+     * @param rate       timebase rate (or denominator of the timebase fraction)
+     * @param fourcc     fourcc of the codec, e.g. {@link IvfReader#FOURCC_VP9}
+     */
+    public IvfWriter(String filename,
+                     int width, int height,
+                     int scale, int rate,
+                     String fourcc) throws IOException {
+        if (fourcc.length() != 4) {
+            throw new IllegalArgumentException("invalid fourcc " + fourcc);
+        }
+        mFourcc = fourcc;
         mOutputFile = new RandomAccessFile(filename, "rw");
+        mChannel = mOutputFile.getChannel();
+        mFrameHeader = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
         mWidth = width;
         mHeight = height;
         mScale = scale;
         mRate = rate;
         mFrameCount = 0;
-        mOutputFile.seek(HEADER_END);  // Skip the header for now, as framecount is unknown
+        // Write a provisional header with zero frame count, so that the file
+        // can be identified even if it's never closed. Framecount is patched
+        // in close().
+        mOutputFile.write(makeIvfHeader(mFourcc, 0, mWidth, mHeight, mScale, mRate));
+        mPosition = HEADER_END;
     }
 
     /**
@@ -73,26 +136,196 @@ public class IvfWriter {
         this(filename, width, height, 1, 1000000);
     }
 
+    /**
+     * Initializes the IVF file writer for a given codec with a microsecond timebase.
+     *
+     * @param filename   name of the IVF file
+     * @param width      frame width
+     * @param height     frame height
+     * @param fourcc     fourcc of the codec, e.g. {@link IvfReader#FOURCC_VP9}
+     */
+    public IvfWriter(String filename, int width, int height, String fourcc) throws IOException {
+        this(filename, width, height, 1, 1000000, fourcc);
+    }
+
+    /**
+     * Returns fourcc of the codec written to the header.
+     */
+    public String getFourcc() {
+        return mFourcc;
+    }
+
+    /**
+     * Collects frames in a direct buffer of the given size, writing them
+     * out when it fills up, when the flush interval is reached or when
+     * the file is closed. Frames that don't fit into the buffer are
+     * written directly. A size of 0 (default) disables buffering.
+     *
+     * @param bytes     size of the write buffer
+     */
+    public void setBufferSize(int bytes) throws IOException {
+        flush();
+        mWriteBuffer = bytes > 0 ? ByteBuffer.allocateDirect(bytes) : null;
+    }
+
+    /**
+     * Writes out the write buffer every N frames. 0 (default) writes it out
+     * only when it is full or the file is closed.
+     *
+     * @param frames    number of frames between flushes
+     */
+    public void setFlushInterval(int frames) {
+        mFlushInterval = frames;
+    }
+
+    /**
+     * Syncs written data to the storage device every N frames, and when
+     * the file is closed. 0 (default) never syncs explicitly.
+     *
+     * @param frames    number of frames between syncs
+     */
+    public void setSyncInterval(int frames) {
+        mSyncInterval = frames;
+    }
+
+    /**
+     * Reserves room for the given amount of frame data (including frame
+     * headers) in the file. The file is truncated to the written data
+     * when closed.
+     *
+     * Until then the header is marked as being written, and the frame
+     * count in it is updated whenever frames reach the file, so that
+     * {@link IvfStreamReader} doesn't mistake the zero filled tail for
+     * frames.
+     *
+     * @param bytes     expected size of frame data
+     */
+    public void preallocate(long bytes) throws IOException {
+        flush();
+        long length = HEADER_END + bytes;
+        if (length > mOutputFile.length()) {
+            mOutputFile.setLength(length);
+        }
+        if (mPreallocatedLength == 0) {
+            ByteBuffer mark = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            mark.putInt(0, WRITING_MARK);
+            writeFully(mark, WRITING_MARK_HEAD);
+            mFrameCountField = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+            mPublishedFrameCount = -1;
+            publishFrameCount();
+        }
+        mPreallocatedLength = length;
+    }
+
     /**
      * Finalizes the IVF header and closes the file.
      */
     public void close() throws IOException{
+        flush();
+        if (mPreallocatedLength > 0 || mOutputFile.length() > mPosition) {
+            mOutputFile.setLength(mPosition);
+        }
         // Write header now
         mOutputFile.seek(0);
-        mOutputFile.write(makeIvfHeader(mFrameCount, mWidth, mHeight, mScale, mRate));
+        mOutputFile.write(makeIvfHeader(mFourcc, mFrameCount, mWidth, mHeight, mScale, mRate));
+        if (mSyncInterval > 0) {
+            mChannel.force(true);
+        }
         mOutputFile.close();
     }
 
     /**
-     * Writes a single encoded VP8 frame with its frame header.
+     * Writes a single encoded frame with its frame header.
      *
      * @param frame     actual contents of the encoded frame data
-     * @param width     timestamp of the frame (in accordance to specified timebase)
+     * @param timeStamp timestamp of the frame (in accordance to specified timebase)
      */
     public void writeFrame(byte[] frame, long timeStamp) throws IOException {
-        mOutputFile.write(makeIvfFrameHeader(frame.length, timeStamp));
-        mOutputFile.write(frame);
+        writeFrame(ByteBuffer.wrap(frame), timeStamp);
+    }
+
+    /**
+     * Writes a single encoded frame with its frame header.
+     *
+     * The frame is the data between position and limit of the buffer, e.g.
+     * a codec output buffer adjusted to BufferInfo offset and size. The
+     * buffer's position is advanced to its limit.
+     *
+     * @param frame     actual contents of the encoded frame data
+     * @param timeStamp timestamp of the frame (in accordance to specified timebase)
+     */
+    public void writeFrame(ByteBuffer frame, long timeStamp) throws IOException {
+        int frameSize = frame.remaining();
+        mFrameHeader.clear();
+        mFrameHeader.putInt(frameSize);
+        mFrameHeader.putLong(timeStamp);
+        mFrameHeader.flip();
+
+        if (mWriteBuffer != null && mWriteBuffer.remaining() < FRAME_HEADER_SIZE + frameSize) {
+            flush();
+        }
+        boolean buffered =
+                mWriteBuffer != null && mWriteBuffer.remaining() >= FRAME_HEADER_SIZE + frameSize;
+        if (buffered) {
+            mWriteBuffer.put(mFrameHeader);
+            mWriteBuffer.put(frame);
+        } else {
+            mGatherBuffers[0] = mFrameHeader;
+            mGatherBuffers[1] = frame;
+            while (mFrameHeader.hasRemaining() || frame.hasRemaining()) {
+                mChannel.write(mGatherBuffers);
+            }
+            mGatherBuffers[1] = null;
+        }
+        mPosition += FRAME_HEADER_SIZE + frameSize;
         mFrameCount++;
+        if (!buffered) {
+            // The write buffer is empty, all frames are in the file.
+            publishFrameCount();
+        }
+
+        if (mFlushInterval > 0 && mFrameCount % mFlushInterval == 0) {
+            flush();
+        }
+        if (mSyncInterval > 0 && mFrameCount % mSyncInterval == 0) {
+            flush();
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * Writes out frames collected in the write buffer.
+     */
+    public void flush() throws IOException {
+        if (mWriteBuffer == null || mWriteBuffer.position() == 0) {
+            return;
+        }
+        mWriteBuffer.flip();
+        while (mWriteBuffer.hasRemaining()) {
+            mChannel.write(mWriteBuffer);
+        }
+        mWriteBuffer.clear();
+        publishFrameCount();
+    }
+
+    /**
+     * Updates the frame count in the header of a preallocated file, once
+     * all frames counted have been written to it.
+     */
+    private void publishFrameCount() throws IOException {
+        if (mFrameCountField == null || mPublishedFrameCount == mFrameCount) {
+            return;
+        }
+        mFrameCountField.clear();
+        mFrameCountField.putInt(0, mFrameCount);
+        writeFully(mFrameCountField, FRAME_COUNT_HEAD);
+        mPublishedFrameCount = mFrameCount;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
     }
 
     /**
@@ -100,13 +333,15 @@ public class IvfWriter {
      *
      * Timebase fraction is in format scale/rate, e.g. 1/1000
      *
+     * @param fourcc     fourcc of the codec
      * @param frameCount total number of frames file contains
      * @param width      frame width
      * @param height     frame height
      * @param scale      timebase scale (or numerator of the timebase fraction)
      * @param rate       timebase rate (or denominator of the timebase fraction)
      */
-    private static byte[] makeIvfHeader(int frameCount, int width, int height, int scale, int rate){
+    private static byte[] makeIvfHeader(String fourcc, int frameCount,
+                                        int width, int height, int scale, int rate){
         byte[] ivfHeader = new byte[32];
         ivfHeader[0] = 'D';
         ivfHeader[1] = 'K';
@@ -114,10 +349,9 @@ public class IvfWriter {
         ivfHeader[3] = 'F';
         lay16Bits(ivfHeader, 4, 0);  // version
         lay16Bits(ivfHeader, 6, 32);  // header size
-        ivfHeader[8] = 'V';  // fourcc
-        ivfHeader[9] = 'P';
-        ivfHeader[10] = '8';
-        ivfHeader[11] = '0';
+        for (int i = 0; i < 4; i++) {
+            ivfHeader[8 + i] = (byte) fourcc.charAt(i);  // fourcc
+        }
         lay16Bits(ivfHeader, 12, width);
         lay16Bits(ivfHeader, 14, height);
         lay32Bits(ivfHeader, 16, rate);  // scale/rate
@@ -127,19 +361,6 @@ public class IvfWriter {
         return ivfHeader;
     }
 
-    /**
-     * Makes a 12 byte header for an encoded frame.
-     *
-     * @param size      frame size
-     * @param timestamp presentation timestamp of the frame
-     */
-    private static byte[] makeIvfFrameHeader(int size, long timestamp){
-        byte[] frameHeader = new byte[12];
-        lay32Bits(frameHeader, 0, size);
-        lay64bits(frameHeader, 4, timestamp);
-        return frameHeader;
-    }
-
 
     /**
      * Lays least significant 16 bits of an int into 2 items of a byte array.
@@ -169,19 +390,4 @@ public class IvfWriter {
             array[index + i] = (byte) (value >> (i * 8));
         }
     }
-
-    /**
-     * Lays a long int into 8 items of a byte array.
-     *
-     * Note that ordering is little-endian.
-     *
-     * @param array     the array to be modified
-     * @param index     index of the array to start laying down
-     * @param value     the integer to use
-     */
-    private static void lay64bits(byte[] array, int index, long value){
-        for (int i = 0; i < 8; i++){
-            array[index + i] = (byte) (value >> (i * 8));
-        }
-    }
 }
@@ -19,7 +19,6 @@ package com.android.cts.media;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
-import android.media.MediaCodec.BufferInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
@@ -32,7 +31,9 @@ import com.android.cts.media.R;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class MediaMuxerTest extends AndroidTestCase {
     private static final String TAG = "MediaMuxerTest";
@@ -154,7 +155,7 @@ public class MediaMuxerTest extends AndroidTestCase {
      * Using the MediaMuxer to clone a media file.
      */
     private void cloneMediaUsingMuxer(int srcMedia, String dstMediaPath,
-            int expectedTrackCount, int degrees) throws IOException {
+            int expectedTrackCount, int degrees) throws Exception {
         // Set up MediaExtractor to read from the source.
         AssetFileDescriptor srcFd = mResources.openRawResourceFd(srcMedia);
         MediaExtractor extractor = new MediaExtractor();
@@ -169,59 +170,20 @@ public class MediaMuxerTest extends AndroidTestCase {
         muxer = new MediaMuxer(dstMediaPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 
         // Set up the tracks.
-        HashMap<Integer, Integer> indexMap = new HashMap<Integer, Integer>(trackCount);
-        for (int i = 0; i < trackCount; i++) {
-            extractor.selectTrack(i);
-            MediaFormat format = extractor.getTrackFormat(i);
-            int dstIndex = muxer.addTrack(format);
-            indexMap.put(i, dstIndex);
-        }
+        MediaRemuxer remuxer = new MediaRemuxer(extractor, muxer);
 
         // Copy the samples from MediaExtractor to MediaMuxer.
-        boolean sawEOS = false;
-        int bufferSize = MAX_SAMPLE_SIZE;
-        int frameCount = 0;
-        int offset = 100;
-
-        ByteBuffer dstBuf = ByteBuffer.allocate(bufferSize);
-        BufferInfo bufferInfo = new BufferInfo();
-
         if (degrees >= 0) {
             muxer.setOrientationHint(degrees);
         }
-        muxer.start();
-        while (!sawEOS) {
-            bufferInfo.offset = offset;
-            bufferInfo.size = extractor.readSampleData(dstBuf, offset);
-
-            if (bufferInfo.size < 0) {
-                if (VERBOSE) {
-                    Log.d(TAG, "saw input EOS.");
-                }
-                sawEOS = true;
-                bufferInfo.size = 0;
-            } else {
-                bufferInfo.presentationTimeUs = extractor.getSampleTime();
-                bufferInfo.flags = extractor.getSampleFlags();
-                int trackIndex = extractor.getSampleTrackIndex();
-
-                muxer.writeSampleData(indexMap.get(trackIndex), dstBuf,
-                        bufferInfo);
-                extractor.advance();
-
-                frameCount++;
-                if (VERBOSE) {
-                    Log.d(TAG, "Frame (" + frameCount + ") " +
-                            "PresentationTimeUs:" + bufferInfo.presentationTimeUs +
-                            " Flags:" + bufferInfo.flags +
-                            " TrackIndex:" + trackIndex +
-                            " Size(KB) " + bufferInfo.size / 1024);
-                }
-            }
+        int frameCount = remuxer.remux();
+        if (VERBOSE) {
+            Log.d(TAG, "copied " + frameCount + " samples");
         }
 
         muxer.stop();
         muxer.release();
+        extractor.release();
         srcFd.close();
         return;
     }
@@ -231,10 +193,11 @@ public class MediaMuxerTest extends AndroidTestCase {
      * sure they match.
      */
     private void cloneAndVerify(int srcMedia, String outputMediaFile,
-            int expectedTrackCount, int degrees) throws IOException {
+            int expectedTrackCount, int degrees) throws Exception {
         try {
             cloneMediaUsingMuxer(srcMedia, outputMediaFile, expectedTrackCount, degrees);
             verifyAttributesMatch(srcMedia, outputMediaFile, degrees);
+            verifyStreamsMatch(srcMedia, outputMediaFile);
             // Check the sample on 1s and 0.5s.
             verifySamplesMatch(srcMedia, outputMediaFile, 1000000);
             verifySamplesMatch(srcMedia, outputMediaFile, 500000);
@@ -276,20 +239,79 @@ public class MediaMuxerTest extends AndroidTestCase {
                 MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
         String widthTest = retrieverTest.extractMetadata(
                 MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-        assertEquals("Different height", widthSrc,
+        assertEquals("Different width", widthSrc,
                 widthTest);
 
         String durationSrc = retrieverSrc.extractMetadata(
-                MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
+                MediaMetadataRetriever.METADATA_KEY_DURATION);
         String durationTest = retrieverTest.extractMetadata(
-                MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH);
-        assertEquals("Different height", durationSrc,
+                MediaMetadataRetriever.METADATA_KEY_DURATION);
+        assertEquals("Different duration", durationSrc,
                 durationTest);
 
         retrieverSrc.release();
         retrieverTest.release();
     }
 
+    /**
+     * Hashes every sample of every track of both files, and makes sure the tracks match
+     * sample for sample.  The two files are read at the same time.
+     */
+    private void verifyStreamsMatch(int srcMedia, String testMediaPath) throws Exception {
+        AssetFileDescriptor testFd = mResources.openRawResourceFd(srcMedia);
+        final MediaExtractor extractorSrc = new MediaExtractor();
+        MediaExtractor extractorTest = new MediaExtractor();
+        FutureTask<StreamDigest> srcTask = null;
+        try {
+            extractorSrc.setDataSource(testFd.getFileDescriptor(),
+                    testFd.getStartOffset(), testFd.getLength());
+            extractorTest.setDataSource(testMediaPath);
+
+            srcTask = new FutureTask<StreamDigest>(
+                    new Callable<StreamDigest>() {
+                        @Override
+                        public StreamDigest call() throws Exception {
+                            return StreamDigest.compute(extractorSrc);
+                        }
+                    });
+            new Thread(srcTask, TAG + " source digest").start();
+            StreamDigest digestTest = StreamDigest.compute(extractorTest);
+            StreamDigest digestSrc = srcTask.get();
+
+            assertEquals("wrong number of tracks", digestSrc.getTrackCount(),
+                    digestTest.getTrackCount());
+            for (int i = 0; i < digestSrc.getTrackCount(); i++) {
+                if (VERBOSE) {
+                    Log.d(TAG, "track " + i + ": " + digestSrc.getSampleCount(i) +
+                            " samples, hash " + Long.toHexString(digestSrc.getTrackHash(i)));
+                }
+                int mismatch = digestSrc.findMismatch(i, digestTest);
+                if (mismatch == -1) {
+                    continue;
+                }
+                if (mismatch == Math.min(digestSrc.getSampleCount(i),
+                        digestTest.getSampleCount(i))) {
+                    fail("track " + i + " has " + digestTest.getSampleCount(i) +
+                            " samples, expected " + digestSrc.getSampleCount(i));
+                }
+                fail("track " + i + " differs at sample " + mismatch + ", time " +
+                        digestSrc.getSampleTimeUs(i, mismatch) + " us");
+            }
+        } finally {
+            if (srcTask != null) {
+                // don't release the extractor while the source is still being read
+                try {
+                    srcTask.get();
+                } catch (ExecutionException e) {
+                    // already reported, or superseded by the failure that got us here
+                }
+            }
+            extractorSrc.release();
+            extractorTest.release();
+            testFd.close();
+        }
+    }
+
     /**
      * Uses 2 MediaExtractor, seeking to the same position, reads the sample and
      * makes sure the samples match.
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaExtractor;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies the samples of all selected tracks of a MediaExtractor to a MediaMuxer, without
+ * decoding them.
+ * <p>
+ * Samples are read ahead on a separate thread by a {@link SampleBatchReader}, in batches
+ * packed into one direct buffer each, so that extracting and writeSampleData() overlap and
+ * the two threads only hand over once per batch.  A few batches are recycled, so the copy
+ * allocates nothing per sample.
+ */
+class MediaRemuxer {
+    private static final String TAG = "MediaRemuxer";
+    private static final boolean VERBOSE = false;
+
+    // batches in flight: one being read, one being written, one queued
+    private static final int BATCH_COUNT = 3;
+
+    // marks the end of the samples, or an error on the reading thread
+    private static final SampleBatchReader.Batch END = new SampleBatchReader.Batch(0);
+
+    private final MediaMuxer mMuxer;
+    private final SampleBatchReader mReader;
+    private final int[] mTrackMap;
+
+    private final BlockingQueue<SampleBatchReader.Batch> mFree =
+            new ArrayBlockingQueue<SampleBatchReader.Batch>(BATCH_COUNT);
+    private final BlockingQueue<SampleBatchReader.Batch> mFilled =
+            new ArrayBlockingQueue<SampleBatchReader.Batch>(BATCH_COUNT + 1);
+    private volatile Throwable mReadError;
+
+    /**
+     * Selects all tracks of the extractor and adds them to the muxer, in order.  The muxer
+     * is not started, so its orientation hint etc. can still be set.
+     */
+    public MediaRemuxer(MediaExtractor extractor, MediaMuxer muxer) {
+        mMuxer = muxer;
+        int trackCount = extractor.getTrackCount();
+        mTrackMap = new int[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            extractor.selectTrack(i);
+            mTrackMap[i] = muxer.addTrack(extractor.getTrackFormat(i));
+        }
+        mReader = new SampleBatchReader(extractor);
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            mFree.add(new SampleBatchReader.Batch(mReader.getBatchBytes()));
+        }
+    }
+
+    /**
+     * Starts the muxer and copies all samples to it.  Doesn't stop the muxer.  Can only be
+     * called once.
+     *
+     * @return the number of samples copied
+     */
+    public int remux() throws Exception {
+        mMuxer.start();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read();
+                } catch (InterruptedException e) {
+                    // stopped by the writer
+                } catch (Throwable th) {
+                    mReadError = th;
+                } finally {
+                    // never blocks, there is room for all batches plus END
+                    mFilled.offer(END);
+                }
+            }
+        }, TAG + " reader");
+        reader.start();
+
+        int sampleCount = 0;
+        try {
+            BufferInfo info = new BufferInfo();
+            while (true) {
+                SampleBatchReader.Batch batch = mFilled.take();
+                if (batch == END) {
+                    break;
+                }
+                for (int i = 0; i < batch.mCount; i++) {
+                    info.set(batch.mOffsets[i], batch.mSizes[i], batch.mTimesUs[i],
+                            batch.mFlags[i]);
+                    mMuxer.writeSampleData(mTrackMap[batch.mTracks[i]], batch.mData, info);
+                }
+                sampleCount += batch.mCount;
+                mFree.put(batch);
+            }
+        } finally {
+            reader.interrupt();
+            reader.join();
+        }
+
+        Throwable error = mReadError;
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+        if (VERBOSE) Log.d(TAG, "remuxed " + sampleCount + " samples");
+        return sampleCount;
+    }
+
+    /**
+     * Reads all samples into batches, on the reading thread.
+     */
+    private void read() throws InterruptedException {
+        boolean more = true;
+        while (more) {
+            SampleBatchReader.Batch batch = mFree.take();
+            more = mReader.fill(batch);
+            if (batch.mCount > 0) {
+                mFilled.put(batch);
+            } else {
+                mFree.put(batch);
+            }
+        }
+    }
+}
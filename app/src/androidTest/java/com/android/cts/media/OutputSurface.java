@@ -18,6 +18,9 @@ package com.android.cts.media;
 
 import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
 import android.opengl.GLES20;
 import android.opengl.GLES11Ext;
 import android.opengl.GLSurfaceView;
@@ -26,13 +29,8 @@ import android.util.Log;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
-import javax.microedition.khronos.egl.EGL10;
-import javax.microedition.khronos.egl.EGLConfig;
-import javax.microedition.khronos.egl.EGLContext;
-import javax.microedition.khronos.egl.EGLDisplay;
-import javax.microedition.khronos.egl.EGLSurface;
-import javax.microedition.khronos.opengles.GL;
 import javax.microedition.khronos.opengles.GL10;
 
 
@@ -43,7 +41,8 @@ import javax.microedition.khronos.opengles.GL10;
  * The (width,height) constructor for this class will prepare GL, create a SurfaceTexture,
  * and then create a Surface for that SurfaceTexture.  The Surface can be passed to
  * MediaCodec.configure() to receive decoder output.  When a frame arrives, we latch the
- * texture with updateTexImage, then render the texture with GL to a pbuffer.
+ * texture with updateTexImage, then render the texture with GL to a pbuffer.  The EGL
+ * context comes from {@link EglContextPool}, and goes back there on release.
  * <p>
  * The no-arg constructor skips the GL preparation step and doesn't allocate a pbuffer.
  * Instead, it just creates the Surface and SurfaceTexture, and when a frame arrives
@@ -51,25 +50,42 @@ import javax.microedition.khronos.opengles.GL10;
  * <p>
  * By default, the Surface will be using a BufferQueue in asynchronous mode, so we
  * can potentially drop frames.
+ * <p>
+ * By default a frame must be latched with awaitNewImage before the next one arrives, and
+ * a second frame arriving early is an error.  After {@link #setMaxPendingFrames}, up to N
+ * frames may be pending, so the decoder can run ahead of GL.  Frames arriving while N are
+ * already pending, and frames that take longer than the frame timeout to arrive, are then
+ * counted (see {@link #getOverflowFrames} and {@link #getLateFrames}) instead of failing
+ * the test.
  */
 class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private static final String TAG = "OutputSurface";
     private static final boolean VERBOSE = false;
 
-    private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int FRAME_TIMEOUT_MS = 500;
+    // in pipelined mode, how long a late frame is waited for before giving up
+    private static final int LATE_FRAME_TIMEOUT_MS = 5000;
 
-    private EGL10 mEGL;
-    private EGLDisplay mEGLDisplay;
-    private EGLContext mEGLContext;
+    private EglContextPool.PooledContext mPooledContext;
     private EGLSurface mEGLSurface;
 
     private SurfaceTexture mSurfaceTexture;
     private Surface mSurface;
 
-    private Object mFrameSyncObject = new Object();     // guards mFrameAvailable
-    private boolean mFrameAvailable;
+    private Object mFrameSyncObject = new Object();     // guards the frame counts below
+    private int mPendingFrames;
+    private int mMaxPendingFrames;                      // 0 in the default, strict mode
+    private int mPendingFramesHighWater;
+    private int mLatchedFrames;
+    private int mOverflowFrames;
+    private int mLateFrames;
 
     private TextureRender mTextureRender;
+    // the context the texture lives in, and the surfaces it was current with
+    private EGLDisplay mTextureDisplay;
+    private EGLContext mTextureContext;
+    private EGLSurface mTextureDrawSurface;
+    private EGLSurface mTextureReadSurface;
 
     /**
      * Creates an OutputSurface backed by a pbuffer with the specifed dimensions.  The new
@@ -102,6 +118,10 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private void setup() {
         mTextureRender = new TextureRender();
         mTextureRender.surfaceCreated();
+        mTextureDisplay = EGL14.eglGetCurrentDisplay();
+        mTextureContext = EGL14.eglGetCurrentContext();
+        mTextureDrawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        mTextureReadSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
 
         // Even if we don't access the SurfaceTexture after the constructor returns, we
         // still need to keep a reference to it.  The Surface doesn't retain a reference
@@ -130,67 +150,37 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports pbuffer.
      */
     private void eglSetup(int width, int height) {
-        mEGL = (EGL10)EGLContext.getEGL();
-        mEGLDisplay = mEGL.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-        if (!mEGL.eglInitialize(mEGLDisplay, null)) {
-            throw new RuntimeException("unable to initialize EGL10");
-        }
-
-        // Configure EGL for pbuffer and OpenGL ES 2.0.  We want enough RGB bits
-        // to be able to tell if the frame is reasonable.
-        int[] attribList = {
-                EGL10.EGL_RED_SIZE, 8,
-                EGL10.EGL_GREEN_SIZE, 8,
-                EGL10.EGL_BLUE_SIZE, 8,
-                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
-                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
-                EGL10.EGL_NONE
-        };
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] numConfigs = new int[1];
-        if (!mEGL.eglChooseConfig(mEGLDisplay, attribList, configs, 1, numConfigs)) {
-            throw new RuntimeException("unable to find RGB888+pbuffer EGL config");
-        }
-
-        // Configure context for OpenGL ES 2.0.
-        int[] attrib_list = {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-                EGL10.EGL_NONE
-        };
-        mEGLContext = mEGL.eglCreateContext(mEGLDisplay, configs[0], EGL10.EGL_NO_CONTEXT,
-                attrib_list);
-        checkEglError("eglCreateContext");
-        if (mEGLContext == null) {
-            throw new RuntimeException("null context");
-        }
+        mPooledContext = EglContextPool.acquire(EglContextPool.PBUFFER_CONFIG);
 
         // Create a pbuffer surface.  By using this for output, we can use glReadPixels
         // to test values in the output.
         int[] surfaceAttribs = {
-                EGL10.EGL_WIDTH, width,
-                EGL10.EGL_HEIGHT, height,
-                EGL10.EGL_NONE
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
         };
-        mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, configs[0], surfaceAttribs);
+        mEGLSurface = EGL14.eglCreatePbufferSurface(mPooledContext.getDisplay(),
+                mPooledContext.getConfig(), surfaceAttribs, 0);
         checkEglError("eglCreatePbufferSurface");
         if (mEGLSurface == null) {
+            EglContextPool.release(mPooledContext);
+            mPooledContext = null;
             throw new RuntimeException("surface was null");
         }
     }
 
     /**
-     * Discard all resources held by this class, notably the EGL context.
+     * Discard all resources held by this class.  The EGL context, if we have one, goes back
+     * to the pool.
      */
     public void release() {
-        if (mEGL != null) {
-            if (mEGL.eglGetCurrentContext().equals(mEGLContext)) {
-                // Clear the current context and surface to ensure they are discarded immediately.
-                mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
-                        EGL10.EGL_NO_CONTEXT);
-            }
-            mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
-            mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
-            //mEGL.eglTerminate(mEGLDisplay);
+        if (mPooledContext != null) {
+            makeCurrent();
+            mTextureRender.release();
+            EglContextPool.release(mPooledContext);
+            EGL14.eglDestroySurface(mPooledContext.getDisplay(), mEGLSurface);
+        } else {
+            releaseTextureRender();
         }
 
         mSurface.release();
@@ -200,27 +190,61 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         //mSurfaceTexture.release();
 
         // null everything out so future attempts to use this object will cause an NPE
-        mEGLDisplay = null;
-        mEGLContext = null;
+        mPooledContext = null;
         mEGLSurface = null;
-        mEGL = null;
+        mTextureDisplay = null;
+        mTextureContext = null;
+        mTextureDrawSurface = null;
+        mTextureReadSurface = null;
 
         mTextureRender = null;
         mSurface = null;
         mSurfaceTexture = null;
     }
 
+    /**
+     * Releases the TextureRender of a surface that uses the caller's EGL context.  The
+     * context may be a pooled one that outlives this surface, so the texture is deleted in
+     * that context even if another one is current now; the current one is restored after.
+     */
+    private void releaseTextureRender() {
+        EGLDisplay display = EGL14.eglGetCurrentDisplay();
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (context.equals(mTextureContext)) {
+            mTextureRender.release();
+            return;
+        }
+
+        EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+        // The surfaces may have been destroyed since, deleting a texture doesn't need one.
+        if (EGL14.eglMakeCurrent(mTextureDisplay, mTextureDrawSurface, mTextureReadSurface,
+                mTextureContext)
+                || EGL14.eglMakeCurrent(mTextureDisplay, EGL14.EGL_NO_SURFACE,
+                        EGL14.EGL_NO_SURFACE, mTextureContext)) {
+            mTextureRender.release();
+        } else {
+            Log.w(TAG, "unable to make texture context current, leaking texture "
+                    + mTextureRender.getTextureId());
+        }
+
+        if (context.equals(EGL14.EGL_NO_CONTEXT)) {
+            EGL14.eglMakeCurrent(mTextureDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+        } else if (!EGL14.eglMakeCurrent(display, drawSurface, readSurface, context)) {
+            throw new RuntimeException("eglMakeCurrent failed");
+        }
+    }
+
     /**
      * Makes our EGL context and surface current.
      */
     public void makeCurrent() {
-        if (mEGL == null) {
+        if (mPooledContext == null) {
             throw new RuntimeException("not configured for makeCurrent");
         }
         checkEglError("before makeCurrent");
-        if (!mEGL.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
-            throw new RuntimeException("eglMakeCurrent failed");
-        }
+        mPooledContext.makeCurrent(mEGLSurface);
     }
 
     /**
@@ -237,37 +261,109 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         mTextureRender.changeFragmentShader(fragmentShader);
     }
 
+    /**
+     * Allows up to maxPendingFrames frames to arrive before they are latched.  Must be called
+     * before the Surface is given to the decoder.
+     *
+     * @param maxPendingFrames the number of frames that may be pending, or 0 to go back to
+     *     the default mode, where a frame arriving before the previous one was latched is an
+     *     error
+     */
+    public void setMaxPendingFrames(int maxPendingFrames) {
+        if (maxPendingFrames < 0) {
+            throw new IllegalArgumentException();
+        }
+        synchronized (mFrameSyncObject) {
+            mMaxPendingFrames = maxPendingFrames;
+        }
+    }
+
+    /**
+     * Replaces the fragment shader with a chain of filters, see {@link GlFilterGraph}.
+     */
+    public GlFilterGraph setFilters(List<GlFilterGraph.Filter> filters) {
+        return mTextureRender.setFilters(filters);
+    }
+
     /**
      * Latches the next buffer into the texture.  Must be called from the thread that created
      * the OutputSurface object, after the onFrameAvailable callback has signaled that new
      * data is available.
      */
     public void awaitNewImage() {
-        final int TIMEOUT_MS = 500;
-
         synchronized (mFrameSyncObject) {
-            while (!mFrameAvailable) {
-                try {
-                    // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
-                    // stalling the test if it doesn't arrive.
-                    mFrameSyncObject.wait(TIMEOUT_MS);
-                    if (!mFrameAvailable) {
-                        // TODO: if "spurious wakeup", continue while loop
+            // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid stalling
+            // the test if it doesn't arrive.  In pipelined mode a late frame is counted,
+            // and waited for a while longer.
+            long now = System.nanoTime();
+            long deadline = now + FRAME_TIMEOUT_MS * 1000000L;
+            boolean late = false;
+            while (mPendingFrames == 0) {
+                if (now >= deadline) {
+                    if (mMaxPendingFrames == 0 || late) {
                         throw new RuntimeException("Surface frame wait timed out");
                     }
+                    late = true;
+                    mLateFrames++;
+                    deadline = now + LATE_FRAME_TIMEOUT_MS * 1000000L;
+                }
+                try {
+                    // wait() may return early (spurious wakeup), so check against the deadline
+                    mFrameSyncObject.wait(Math.max(1, (deadline - now) / 1000000L));
                 } catch (InterruptedException ie) {
                     // shouldn't happen
                     throw new RuntimeException(ie);
                 }
+                now = System.nanoTime();
             }
-            mFrameAvailable = false;
+            mPendingFrames--;
+            mLatchedFrames++;
         }
 
         // Latch the data.
-        mTextureRender.checkGlError("before updateTexImage");
+        TextureRender.checkGlError("before updateTexImage");
         mSurfaceTexture.updateTexImage();
     }
 
+    /**
+     * Returns the number of frames latched by awaitNewImage.
+     */
+    public int getLatchedFrames() {
+        synchronized (mFrameSyncObject) {
+            return mLatchedFrames;
+        }
+    }
+
+    /**
+     * Returns the number of frames that arrived while the maximum number of frames was
+     * already pending.  Such frames are still latched, but the producer got further ahead
+     * than allowed.  Only counted after {@link #setMaxPendingFrames}.
+     */
+    public int getOverflowFrames() {
+        synchronized (mFrameSyncObject) {
+            return mOverflowFrames;
+        }
+    }
+
+    /**
+     * Returns the number of frames awaitNewImage waited longer than the frame timeout for.
+     * Only counted after {@link #setMaxPendingFrames}.
+     */
+    public int getLateFrames() {
+        synchronized (mFrameSyncObject) {
+            return mLateFrames;
+        }
+    }
+
+    /**
+     * Returns the largest number of frames that were pending at once.
+     */
+    public int getPendingFramesHighWater() {
+        synchronized (mFrameSyncObject) {
+            return mPendingFramesHighWater;
+        }
+    }
+
     /**
      * Draws the data from SurfaceTexture onto the current EGL surface.
      */
@@ -279,10 +375,21 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     public void onFrameAvailable(SurfaceTexture st) {
         if (VERBOSE) Log.d(TAG, "new frame available");
         synchronized (mFrameSyncObject) {
-            if (mFrameAvailable) {
-                throw new RuntimeException("mFrameAvailable already set, frame could be dropped");
+            if (mMaxPendingFrames == 0) {
+                if (mPendingFrames > 0) {
+                    throw new RuntimeException("frame already pending, frame could be dropped");
+                }
+                mPendingFrames = 1;
+            } else {
+                // Every call is for a newly queued buffer, so it is always pending; running
+                // past the maximum is only recorded.
+                if (mPendingFrames >= mMaxPendingFrames) {
+                    if (VERBOSE) Log.d(TAG, "frame overflow, " + mPendingFrames + " pending");
+                    mOverflowFrames++;
+                }
+                mPendingFrames++;
             }
-            mFrameAvailable = true;
+            mPendingFramesHighWater = Math.max(mPendingFramesHighWater, mPendingFrames);
             mFrameSyncObject.notifyAll();
         }
     }
@@ -293,7 +400,7 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private void checkEglError(String msg) {
         boolean failed = false;
         int error;
-        while ((error = mEGL.eglGetError()) != EGL10.EGL_SUCCESS) {
+        while ((error = EGL14.eglGetError()) != EGL14.EGL_SUCCESS) {
             Log.e(TAG, msg + ": EGL error: 0x" + Integer.toHexString(error));
             failed = true;
         }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+/**
+ * Collects 16 bit PCM samples, e.g. from decoder output buffers.
+ * <p>
+ * Samples are stored in a list of chunks that grow geometrically up to a maximum size, so
+ * appending never copies samples that are already stored, and a long decode doesn't need
+ * one huge contiguous array until {@link #toArray} is called.  Samples are copied in bulk
+ * through a ShortBuffer view of the input.
+ * <p>
+ * Only one thread may append at a time.  A thread reading the samples must synchronize with
+ * the writer, e.g. by waiting for the decode to complete.
+ */
+public class PcmAccumulator {
+    private static final int FIRST_CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final ArrayList<short[]> mChunks = new ArrayList<short[]>();
+    private short[] mChunk;             // last chunk, being filled
+    private int mChunkFill;             // samples in mChunk
+    private int mSize;                  // samples in all chunks
+
+    /**
+     * Appends the samples between position and limit of a buffer, in the buffer's byte
+     * order.  The buffer's position is not changed.  An odd trailing byte is ignored.
+     */
+    public void append(ByteBuffer buffer) {
+        append(buffer.asShortBuffer());
+    }
+
+    /**
+     * Appends the remaining samples of a buffer, advancing its position.
+     */
+    public void append(ShortBuffer samples) {
+        int count = samples.remaining();
+        while (count > 0) {
+            int n = Math.min(count, reserve());
+            samples.get(mChunk, mChunkFill, n);
+            mChunkFill += n;
+            mSize += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Appends count samples from an array.
+     */
+    public void append(short[] samples, int offset, int count) {
+        while (count > 0) {
+            int n = Math.min(count, reserve());
+            System.arraycopy(samples, offset, mChunk, mChunkFill, n);
+            mChunkFill += n;
+            mSize += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Returns the number of samples appended.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns all samples in one array.
+     */
+    public short[] toArray() {
+        short[] result = new short[mSize];
+        int pos = 0;
+        for (int i = 0; i < mChunks.size(); i++) {
+            short[] chunk = mChunks.get(i);
+            int n = (chunk == mChunk) ? mChunkFill : chunk.length;
+            System.arraycopy(chunk, 0, result, pos, n);
+            pos += n;
+        }
+        return result;
+    }
+
+    /**
+     * Discards all samples, keeping the first chunk for reuse.
+     */
+    public void clear() {
+        if (!mChunks.isEmpty()) {
+            mChunk = mChunks.get(0);
+            mChunks.clear();
+            mChunks.add(mChunk);
+        }
+        mChunkFill = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Makes sure the last chunk has room, and returns how many samples fit in it.
+     */
+    private int reserve() {
+        if (mChunk == null || mChunkFill == mChunk.length) {
+            int size = (mChunk == null) ? FIRST_CHUNK_SIZE :
+                    Math.min(mChunk.length * 2, MAX_CHUNK_SIZE);
+            mChunk = new short[size];
+            mChunks.add(mChunk);
+            mChunkFill = 0;
+        }
+        return mChunk.length - mChunkFill;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Cache of linked GLES 2.0 programs of one EGL context, keyed by shader source.
+ * <p>
+ * Switching shaders is a table lookup once a program has been linked.  The least recently
+ * used program is deleted when the cache is full.  All methods must be called with the
+ * context current.
+ */
+class ProgramCache {
+    private static final String TAG = "ProgramCache";
+    private static final boolean VERBOSE = false;
+
+    /**
+     * A linked program, and the locations of its attributes and uniforms.
+     */
+    public static class Program {
+        private final int mProgram;
+        private final Map<String, Integer> mLocations = new HashMap<String, Integer>();
+        private boolean mReleased;
+
+        private Program(int program) {
+            mProgram = program;
+        }
+
+        /**
+         * Returns the program name, for glUseProgram.
+         */
+        public int getProgram() {
+            return mProgram;
+        }
+
+        /**
+         * Returns the location of an attribute.
+         *
+         * @throws RuntimeException if the program has no such attribute
+         */
+        public int getAttribLocation(String name) {
+            Integer location = mLocations.get(name);
+            if (location == null) {
+                location = GLES20.glGetAttribLocation(mProgram, name);
+                checkGlError("glGetAttribLocation " + name);
+                if (location == -1) {
+                    throw new RuntimeException("Could not get attrib location for " + name);
+                }
+                mLocations.put(name, location);
+            }
+            return location;
+        }
+
+        /**
+         * Returns the location of a uniform.
+         *
+         * @throws RuntimeException if the program has no such uniform
+         */
+        public int getUniformLocation(String name) {
+            int location = findUniformLocation(name);
+            if (location == -1) {
+                throw new RuntimeException("Could not get uniform location for " + name);
+            }
+            return location;
+        }
+
+        /**
+         * Returns the location of a uniform, or -1 if the program has no such uniform, e.g.
+         * because the shader doesn't use it.
+         */
+        public int findUniformLocation(String name) {
+            Integer location = mLocations.get(name);
+            if (location == null) {
+                location = GLES20.glGetUniformLocation(mProgram, name);
+                checkGlError("glGetUniformLocation " + name);
+                mLocations.put(name, location);
+            }
+            return location;
+        }
+
+        /**
+         * Returns whether the program was evicted from its cache, or the cache was released.
+         * A released program must be looked up again.
+         */
+        public boolean isReleased() {
+            return mReleased;
+        }
+
+        private void release() {
+            GLES20.glDeleteProgram(mProgram);
+            mReleased = true;
+        }
+    }
+
+    private final LinkedHashMap<String, Program> mPrograms;
+
+    /**
+     * @param maxPrograms the number of programs kept
+     */
+    public ProgramCache(final int maxPrograms) {
+        // access order, so the eldest entry is the least recently used
+        mPrograms = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+                if (size() <= maxPrograms) {
+                    return false;
+                }
+                if (VERBOSE) Log.d(TAG, "evicting program " + eldest.getValue().mProgram);
+                eldest.getValue().release();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the program linked from two shaders, linking it if it is not in the cache.
+     * The lookup builds and hashes a key from the sources, so code that draws every frame
+     * should keep the program, and look it up again only once it {@link Program#isReleased}.
+     *
+     * @throws RuntimeException if the shaders fail to compile or link
+     */
+    public Program get(String vertexShader, String fragmentShader) {
+        String key = vertexShader + '\0' + fragmentShader;
+        Program program = mPrograms.get(key);
+        if (program == null) {
+            int name = createProgram(vertexShader, fragmentShader);
+            if (name == 0) {
+                throw new RuntimeException("failed creating program");
+            }
+            program = new Program(name);
+            mPrograms.put(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Returns the number of programs in the cache.
+     */
+    public int size() {
+        return mPrograms.size();
+    }
+
+    /**
+     * Deletes all programs.  The cache can still be used afterwards.
+     */
+    public void release() {
+        for (Program program : new ArrayList<Program>(mPrograms.values())) {
+            program.release();
+        }
+        mPrograms.clear();
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        checkGlError("glCreateShader type=" + shaderType);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Could not compile shader " + shaderType + ":");
+            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            shader = 0;
+        }
+        return shader;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        checkGlError("glCreateProgram");
+        if (program == 0) {
+            Log.e(TAG, "Could not create program");
+        }
+        GLES20.glAttachShader(program, vertexShader);
+        checkGlError("glAttachShader");
+        GLES20.glAttachShader(program, pixelShader);
+        checkGlError("glAttachShader");
+        GLES20.glLinkProgram(program);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.e(TAG, "Could not link program: ");
+            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        }
+        // The shaders are only flagged for deletion while attached, and go with the program.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        return program;
+    }
+
+    private static void checkGlError(String op) {
+        int error;
+        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+            Log.e(TAG, op + ": glError " + error);
+            throw new RuntimeException(op + ": glError " + error);
+        }
+    }
+}
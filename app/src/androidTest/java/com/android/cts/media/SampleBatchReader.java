@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the samples of the selected tracks of a MediaExtractor in batches, with up to
+ * {@link #BATCH_SAMPLES} samples packed back to back in one direct buffer.
+ * <p>
+ * Batches are allocated by the caller and can be reused, so reading allocates nothing per
+ * sample.  A batch is closed while it still has room for a sample as large as the largest
+ * KEY_MAX_INPUT_SIZE of the tracks.  A sample larger than that doesn't fit in the rest of
+ * the buffer, which readSampleData() reports with an IllegalArgumentException; it is left
+ * for the next batch, whose buffer grows until it fits.
+ */
+class SampleBatchReader {
+    private static final String TAG = "SampleBatchReader";
+    private static final boolean VERBOSE = false;
+
+    public static final int BATCH_SAMPLES = 64;
+    private static final int MIN_BATCH_BYTES = 1024 * 1024;
+    // largest sample size assumed if no track has KEY_MAX_INPUT_SIZE
+    private static final int DEFAULT_MAX_SAMPLE_SIZE = 256 * 1024;
+    // a sample that doesn't fit in this is taken to be a read error
+    private static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Samples packed back to back in a direct buffer.  The track indexes are those of the
+     * extractor.
+     */
+    public static class Batch {
+        ByteBuffer mData;
+        int mCount;
+        int mBytes;
+        final int[] mTracks = new int[BATCH_SAMPLES];
+        final int[] mOffsets = new int[BATCH_SAMPLES];
+        final int[] mSizes = new int[BATCH_SAMPLES];
+        final long[] mTimesUs = new long[BATCH_SAMPLES];
+        final int[] mFlags = new int[BATCH_SAMPLES];
+
+        Batch(int capacity) {
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+
+        /**
+         * Replaces the buffer with one twice as large.  Only done while the batch is empty.
+         */
+        void grow() {
+            mData = ByteBuffer.allocateDirect(mData.capacity() * 2);
+        }
+    }
+
+    private final MediaExtractor mExtractor;
+    private final int mMaxSampleSize;
+
+    /**
+     * @param extractor extractor with the tracks to read selected
+     */
+    public SampleBatchReader(MediaExtractor extractor) {
+        mExtractor = extractor;
+        int maxSampleSize = 0;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                maxSampleSize = Math.max(maxSampleSize,
+                        format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+            }
+        }
+        mMaxSampleSize = maxSampleSize > 0 ? maxSampleSize : DEFAULT_MAX_SAMPLE_SIZE;
+    }
+
+    /**
+     * Returns the capacity new batches should start with.
+     */
+    public int getBatchBytes() {
+        return Math.max(MIN_BATCH_BYTES, mMaxSampleSize);
+    }
+
+    /**
+     * Replaces the samples of a batch with the next samples of the extractor.
+     *
+     * @return false if the end of the stream was reached; the batch may still hold samples
+     */
+    public boolean fill(Batch batch) {
+        batch.mCount = 0;
+        batch.mBytes = 0;
+        while (batch.mCount < BATCH_SAMPLES) {
+            int size;
+            try {
+                size = mExtractor.readSampleData(batch.mData, batch.mBytes);
+            } catch (IllegalArgumentException e) {
+                // The sample doesn't fit in the rest of the buffer.  Leave it for the next
+                // batch, or grow the buffer if the sample is alone and still doesn't fit.
+                if (batch.mCount > 0) {
+                    return true;
+                } else if (batch.mData.capacity() >= MAX_BATCH_BYTES) {
+                    throw e;
+                }
+                batch.grow();
+                if (VERBOSE) Log.d(TAG, "grew batch to " + batch.mData.capacity());
+                continue;
+            }
+            if (size < 0) {
+                return false;
+            }
+
+            int i = batch.mCount++;
+            batch.mTracks[i] = mExtractor.getSampleTrackIndex();
+            batch.mOffsets[i] = batch.mBytes;
+            batch.mSizes[i] = size;
+            batch.mTimesUs[i] = mExtractor.getSampleTime();
+            batch.mFlags[i] = mExtractor.getSampleFlags();
+            batch.mBytes += size;
+            mExtractor.advance();
+
+            // Keep room for a sample as large as the tracks allow.
+            if (batch.mData.capacity() - batch.mBytes < mMaxSampleSize) {
+                break;
+            }
+        }
+        return true;
+    }
+}
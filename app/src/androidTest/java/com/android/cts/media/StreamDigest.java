@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Hashes every sample of every track of a MediaExtractor, for checking that two files
+ * hold the same streams, e.g. a file and a copy remuxed with MediaMuxer.
+ * <p>
+ * The hash of a sample covers its size, presentation time, flags and payload; the payload
+ * is hashed with {@link FrameHasher#hash}.  The extractor is read once, front to back, into
+ * batches of samples (see {@link SampleBatchReader}) that are hashed in parallel on the
+ * {@link WorkerPool} while the next batches are read, so hashing a file takes about as long
+ * as reading it.
+ */
+class StreamDigest {
+    /**
+     * A batch of samples, and their hashes once computed.
+     */
+    private static class HashedBatch extends SampleBatchReader.Batch
+            implements Callable<HashedBatch> {
+        final long[] mHashes = new long[SampleBatchReader.BATCH_SAMPLES];
+
+        HashedBatch(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public HashedBatch call() {
+            for (int i = 0; i < mCount; i++) {
+                mHashes[i] = hashSample(mData, mOffsets[i], mSizes[i], mTimesUs[i],
+                        mFlags[i]);
+            }
+            return this;
+        }
+    }
+
+    private final long[][] mHashes;
+    private final long[][] mTimesUs;
+    private final int[] mCounts;
+
+    private StreamDigest(int trackCount) {
+        mHashes = new long[trackCount][16];
+        mTimesUs = new long[trackCount][16];
+        mCounts = new int[trackCount];
+    }
+
+    /**
+     * Selects all tracks of an extractor and hashes all their samples.  The extractor is
+     * left at the end of the stream.
+     */
+    public static StreamDigest compute(MediaExtractor extractor) throws Exception {
+        int trackCount = extractor.getTrackCount();
+        for (int i = 0; i < trackCount; i++) {
+            extractor.selectTrack(i);
+        }
+        StreamDigest digest = new StreamDigest(trackCount);
+        SampleBatchReader reader = new SampleBatchReader(extractor);
+
+        ForkJoinPool pool = WorkerPool.get();
+        ArrayDeque<HashedBatch> free = new ArrayDeque<HashedBatch>();
+        ArrayDeque<Future<HashedBatch>> pending = new ArrayDeque<Future<HashedBatch>>();
+        // enough batches to keep every worker busy while the next ones are read
+        int maxBatches = 2 * pool.getParallelism() + 1;
+        int batchCount = 0;
+
+        boolean more = true;
+        while (more) {
+            HashedBatch batch;
+            if (!free.isEmpty()) {
+                batch = free.remove();
+            } else if (batchCount < maxBatches) {
+                batch = new HashedBatch(reader.getBatchBytes());
+                batchCount++;
+            } else {
+                batch = digest.collect(pending.remove());
+            }
+            more = reader.fill(batch);
+            if (batch.mCount > 0) {
+                pending.add(pool.submit(batch));
+            } else {
+                free.add(batch);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            digest.collect(pending.remove());
+        }
+        return digest;
+    }
+
+    /**
+     * Stores the hashes of a batch, in the order the batches were read.
+     */
+    private HashedBatch collect(Future<HashedBatch> future) throws Exception {
+        HashedBatch batch;
+        try {
+            batch = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+        for (int i = 0; i < batch.mCount; i++) {
+            int track = batch.mTracks[i];
+            int index = mCounts[track]++;
+            if (index == mHashes[track].length) {
+                mHashes[track] = Arrays.copyOf(mHashes[track], index * 2);
+                mTimesUs[track] = Arrays.copyOf(mTimesUs[track], index * 2);
+            }
+            mHashes[track][index] = batch.mHashes[i];
+            mTimesUs[track][index] = batch.mTimesUs[i];
+        }
+        return batch;
+    }
+
+    public int getTrackCount() {
+        return mCounts.length;
+    }
+
+    public int getSampleCount(int track) {
+        return mCounts[track];
+    }
+
+    /**
+     * Returns the presentation time of a sample of a track.
+     */
+    public long getSampleTimeUs(int track, int index) {
+        return mTimesUs[track][index];
+    }
+
+    /**
+     * Returns a hash of all samples of a track, in order.
+     */
+    public long getTrackHash(int track) {
+        long h = mCounts[track];
+        for (int i = 0; i < mCounts[track]; i++) {
+            h = FrameHasher.combine(h, mHashes[track][i]);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the index of the first sample of a track that differs from the same sample
+     * of the same track of another digest, or -1 if the tracks match.  If one track is a
+     * prefix of the other, returns the length of the shorter one.
+     */
+    public int findMismatch(int track, StreamDigest other) {
+        int count = Math.min(mCounts[track], other.mCounts[track]);
+        for (int i = 0; i < count; i++) {
+            if (mHashes[track][i] != other.mHashes[track][i]) {
+                return i;
+            }
+        }
+        return mCounts[track] == other.mCounts[track] ? -1 : count;
+    }
+
+    private static long hashSample(ByteBuffer data, int offset, int size, long timeUs,
+            int flags) {
+        long h = FrameHasher.hash(data, offset, size);
+        h = FrameHasher.combine(h, size);
+        h = FrameHasher.combine(h, timeUs);
+        return FrameHasher.combine(h, flags);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Reads back the frame rendered on the current EGL surface, for checking it on the CPU.
+ * <p>
+ * Each glReadPixels call stalls until rendering has finished, so the whole frame is read
+ * with a single call into a direct buffer that is reused for every frame, and all pixel
+ * checks then run on that copy.  (The contexts used by the tests are GLES 2.0, so there
+ * are no pixel buffer objects to make the readback asynchronous.)
+ * <p>
+ * Coordinates are GL window coordinates: the origin is the bottom left corner.
+ */
+class SurfaceFrameReader {
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer mPixels;
+
+    /**
+     * Creates a reader for frames of the given size.
+     */
+    public SurfaceFrameReader(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mPixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL);
+        mPixels.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Reads the current frame from the surface.
+     */
+    public void readFrame() {
+        mPixels.rewind();
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE,
+                mPixels);
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new RuntimeException("glReadPixels: glError " + error);
+        }
+    }
+
+    /**
+     * Returns the red component of a pixel of the last frame read.
+     */
+    public int getRed(int x, int y) {
+        return mPixels.get(getIndex(x, y)) & 0xff;
+    }
+
+    /**
+     * Returns the green component of a pixel of the last frame read.
+     */
+    public int getGreen(int x, int y) {
+        return mPixels.get(getIndex(x, y) + 1) & 0xff;
+    }
+
+    /**
+     * Returns the blue component of a pixel of the last frame read.
+     */
+    public int getBlue(int x, int y) {
+        return mPixels.get(getIndex(x, y) + 2) & 0xff;
+    }
+
+    /**
+     * Returns the last frame read, RGBA rows from the bottom up.  Don't modify it.
+     */
+    public ByteBuffer getPixels() {
+        return mPixels;
+    }
+
+    private int getIndex(int x, int y) {
+        return (y * mWidth + x) * BYTES_PER_PIXEL;
+    }
+}
@@ -19,6 +19,7 @@ package com.android.cts.media;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -37,11 +38,15 @@ import android.util.Log;
 class TextureRender {
     private static final String TAG = "TextureRender";
 
-    private static final int FLOAT_SIZE_BYTES = 4;
-    private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
-    private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-    private final float[] mTriangleVerticesData = {
+    // linked programs kept when not in a pooled EGL context
+    private static final int MAX_PROGRAMS = 4;
+
+    // a full-screen quad, also drawn by GlFilterGraph
+    static final int FLOAT_SIZE_BYTES = 4;
+    static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
+    static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
+    static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
+    static final float[] TRIANGLE_VERTICES_DATA = {
         // X, Y, Z, U, V
         -1.0f, -1.0f, 0, 0.f, 0.f,
         1.0f, -1.0f, 0, 1.f, 0.f,
@@ -74,7 +79,11 @@ class TextureRender {
     private float[] mMVPMatrix = new float[16];
     private float[] mSTMatrix = new float[16];
 
-    private int mProgram;
+    private ProgramCache mProgramCache;
+    private boolean mProgramCachePooled;    // whether mProgramCache belongs to the context pool
+    private String mFragmentShader;
+    private ProgramCache.Program mProgram;
+    private GlFilterGraph mFilterGraph;     // replaces mProgram when set
     private int mTextureID = -12345;
     private int muMVPMatrixHandle;
     private int muSTMatrixHandle;
@@ -83,9 +92,9 @@ class TextureRender {
 
     public TextureRender() {
         mTriangleVertices = ByteBuffer.allocateDirect(
-            mTriangleVerticesData.length * FLOAT_SIZE_BYTES)
+            TRIANGLE_VERTICES_DATA.length * FLOAT_SIZE_BYTES)
                 .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mTriangleVertices.put(mTriangleVerticesData).position(0);
+        mTriangleVertices.put(TRIANGLE_VERTICES_DATA).position(0);
 
         Matrix.setIdentityM(mSTMatrix, 0);
     }
@@ -96,12 +105,22 @@ class TextureRender {
 
     public void drawFrame(SurfaceTexture st) {
         checkGlError("onDrawFrame start");
+        if (mProgram.isReleased()) {
+            // evicted by another user of the context's cache
+            setProgram(mFragmentShader);
+        }
         st.getTransformMatrix(mSTMatrix);
 
         GLES20.glClearColor(0.0f, 1.0f, 0.0f, 1.0f);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-        GLES20.glUseProgram(mProgram);
+        if (mFilterGraph != null) {
+            mFilterGraph.draw(mTextureID, mSTMatrix);
+            GLES20.glFinish();
+            return;
+        }
+
+        GLES20.glUseProgram(mProgram.getProgram());
         checkGlError("glUseProgram");
 
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -134,32 +153,15 @@ class TextureRender {
      * Initializes GL state.  Call this after the EGL surface has been created and made current.
      */
     public void surfaceCreated() {
-        mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
-        if (mProgram == 0) {
-            throw new RuntimeException("failed creating program");
-        }
-        maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
-        if (maPositionHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aPosition");
-        }
-        maTextureHandle = GLES20.glGetAttribLocation(mProgram, "aTextureCoord");
-        checkGlError("glGetAttribLocation aTextureCoord");
-        if (maTextureHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for aTextureCoord");
-        }
-
-        muMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
-        if (muMVPMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uMVPMatrix");
-        }
-
-        muSTMatrixHandle = GLES20.glGetUniformLocation(mProgram, "uSTMatrix");
-        checkGlError("glGetUniformLocation uSTMatrix");
-        if (muSTMatrixHandle == -1) {
-            throw new RuntimeException("Could not get attrib location for uSTMatrix");
+        EglContextPool.PooledContext context = EglContextPool.getCurrent();
+        if (context != null) {
+            mProgramCache = context.getProgramCache();
+            mProgramCachePooled = true;
+        } else {
+            mProgramCache = new ProgramCache(MAX_PROGRAMS);
+            mProgramCachePooled = false;
         }
+        setProgram(FRAGMENT_SHADER);
 
 
         int[] textures = new int[1];
@@ -181,64 +183,62 @@ class TextureRender {
     }
 
     /**
-     * Replaces the fragment shader.
+     * Replaces the fragment shader.  Shaders used before in the same context are not linked
+     * again, so this is cheap enough to switch effects between frames.
      */
     public void changeFragmentShader(String fragmentShader) {
-        GLES20.glDeleteProgram(mProgram);
-        mProgram = createProgram(VERTEX_SHADER, fragmentShader);
-        if (mProgram == 0) {
-            throw new RuntimeException("failed creating program");
-        }
+        releaseFilterGraph();
+        setProgram(fragmentShader);
     }
 
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        checkGlError("glCreateShader type=" + shaderType);
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
-        int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-        if (compiled[0] == 0) {
-            Log.e(TAG, "Could not compile shader " + shaderType + ":");
-            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
-            shader = 0;
+    /**
+     * Replaces the fragment shader with a chain of filters, see {@link GlFilterGraph}.
+     *
+     * @return the filter graph, e.g. to measure the time of its passes
+     */
+    public GlFilterGraph setFilters(List<GlFilterGraph.Filter> filters) {
+        if (mFilterGraph == null) {
+            mFilterGraph = new GlFilterGraph(mProgramCache);
         }
-        return shader;
+        mFilterGraph.setFilters(filters);
+        return mFilterGraph;
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
+    /**
+     * Releases the texture, and the programs unless they are kept by the EGL context pool.
+     * The context the texture was created in must be current.
+     */
+    public void release() {
+        releaseFilterGraph();
+        GLES20.glDeleteTextures(1, new int[] { mTextureID }, 0);
+        mTextureID = -12345;
+        if (!mProgramCachePooled) {
+            mProgramCache.release();
         }
+        mProgramCache = null;
+        mProgram = null;
+    }
 
-        int program = GLES20.glCreateProgram();
-        checkGlError("glCreateProgram");
-        if (program == 0) {
-            Log.e(TAG, "Could not create program");
+    private void releaseFilterGraph() {
+        if (mFilterGraph != null) {
+            mFilterGraph.release();
+            mFilterGraph = null;
         }
-        GLES20.glAttachShader(program, vertexShader);
-        checkGlError("glAttachShader");
-        GLES20.glAttachShader(program, pixelShader);
-        checkGlError("glAttachShader");
-        GLES20.glLinkProgram(program);
-        int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-        if (linkStatus[0] != GLES20.GL_TRUE) {
-            Log.e(TAG, "Could not link program: ");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
-            program = 0;
-        }
-        return program;
     }
 
-    public void checkGlError(String op) {
+    /**
+     * Makes mProgram the program with the given fragment shader, and looks up its handles.
+     */
+    private void setProgram(String fragmentShader) {
+        mProgram = mProgramCache.get(VERTEX_SHADER, fragmentShader);
+        mFragmentShader = fragmentShader;
+        maPositionHandle = mProgram.getAttribLocation("aPosition");
+        maTextureHandle = mProgram.getAttribLocation("aTextureCoord");
+        muMVPMatrixHandle = mProgram.getUniformLocation("uMVPMatrix");
+        muSTMatrixHandle = mProgram.getUniformLocation("uSTMatrix");
+    }
+
+    public static void checkGlError(String op) {
         int error;
         while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, op + ": glError " + error);
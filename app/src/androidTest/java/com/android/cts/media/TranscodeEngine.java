@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Transcodes the tracks of a file and muxes them into a new one, with every track running
+ * in its own pipeline.
+ * <p>
+ * Each codec is driven by a {@link CodecDriver}, so extracting runs on the codec's feeding
+ * thread and output is handled in its callbacks.  The stages of a track are connected by
+ * bounded queues: a stage that gets ahead blocks until the next one catches up, so a slow
+ * encoder throttles its decoder and extractor instead of buffering the whole stream.
+ * Encoded samples of all tracks go to a single writer thread, which interleaves them by
+ * presentation time and is the only user of the muxer.
+ * <p>
+ * A video track decodes to an {@link OutputSurface} and is edited with GL into the
+ * encoder's {@link InputSurface}.  The GL stage runs on the thread that calls
+ * {@link #run}, which must be the thread where the input surface is current.
+ * <p>
+ * The tracks only wait on each other in the writer, so a transcode runs at the speed of
+ * its slowest codec rather than of all of them in turn.
+ */
+class TranscodeEngine {
+    private static final String TAG = "TranscodeEngine";
+    private static final boolean VERBOSE = false;           // lots of logging
+
+    // samples buffered between a codec and the next stage, per track
+    private static final int QUEUE_DEPTH = 4;
+    // decoded video frames the decoder may render ahead of the GL stage
+    private static final int FRAME_QUEUE_DEPTH = 2;
+    // how often blocked stages check whether the transcode has failed
+    private static final long POLL_MS = 100;
+
+    /**
+     * A track being transcoded, and its counters.  The counters are only meaningful once
+     * {@link TranscodeEngine#run} has returned.
+     */
+    public static class Track {
+        private final MediaExtractor mExtractor;
+        private final CodecDriver mDecoder;
+        private final CodecDriver mEncoder;
+        private final InputSurface mInputSurface;
+        private final OutputSurface mOutputSurface;
+
+        // encoded samples for the writer, and the recycled ones
+        private final BlockingQueue<Sample> mEncoded = new ArrayBlockingQueue<Sample>(QUEUE_DEPTH);
+        private final BlockingQueue<Sample> mFreeEncoded =
+                new ArrayBlockingQueue<Sample>(QUEUE_DEPTH);
+        // decoded audio for the encoder, and the recycled buffers
+        private BlockingQueue<Sample> mDecoded;
+        private BlockingQueue<Sample> mFreeDecoded;
+        // presentation times of the video frames rendered to the output surface
+        private BlockingQueue<Frame> mFrames;
+
+        private volatile MediaFormat mEncoderFormat;
+        private volatile int mBytesPerFrame = 2;            // of decoded 16-bit PCM
+        private volatile int mSampleRate;
+        private int mMuxerTrack = -1;                       // on the writer thread only
+
+        private volatile int mExtractedCount;
+        private volatile int mDecodedCount;
+        private volatile int mEncodedCount;
+        private volatile long mDecodedBytes;
+        private volatile long mEncoderInputBytes;
+
+        private Track(MediaExtractor extractor, CodecDriver decoder, CodecDriver encoder,
+                InputSurface inputSurface, OutputSurface outputSurface) {
+            mExtractor = extractor;
+            mDecoder = decoder;
+            mEncoder = encoder;
+            mInputSurface = inputSurface;
+            mOutputSurface = outputSurface;
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                mFreeEncoded.add(new Sample());
+            }
+            if (isVideo()) {
+                mFrames = new ArrayBlockingQueue<Frame>(FRAME_QUEUE_DEPTH);
+            } else {
+                mDecoded = new ArrayBlockingQueue<Sample>(QUEUE_DEPTH);
+                mFreeDecoded = new ArrayBlockingQueue<Sample>(QUEUE_DEPTH);
+                for (int i = 0; i < QUEUE_DEPTH; i++) {
+                    mFreeDecoded.add(new Sample());
+                }
+            }
+        }
+
+        private boolean isVideo() {
+            return mOutputSurface != null;
+        }
+
+        /** Returns the number of samples read from the extractor. */
+        public int getExtractedCount() {
+            return mExtractedCount;
+        }
+
+        /**
+         * Returns the number of buffers with data output by the decoder, not counting codec
+         * config or an empty end of stream buffer.
+         */
+        public int getDecodedCount() {
+            return mDecodedCount;
+        }
+
+        /**
+         * Returns the number of buffers with data output by the encoder, not counting codec
+         * config or an empty end of stream buffer.
+         */
+        public int getEncodedCount() {
+            return mEncodedCount;
+        }
+
+        /** Returns the number of bytes of PCM output by an audio decoder. */
+        public long getDecodedBytes() {
+            return mDecodedBytes;
+        }
+
+        /** Returns the number of bytes of PCM queued to an audio encoder. */
+        public long getEncoderInputBytes() {
+            return mEncoderInputBytes;
+        }
+    }
+
+    /**
+     * Data handed from one stage to the next.  The buffer grows to the largest sample seen
+     * and is reused.
+     */
+    private static class Sample {
+        ByteBuffer mData = ByteBuffer.allocateDirect(0);
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+        void set(ByteBuffer data, MediaCodec.BufferInfo info) {
+            if (mData.capacity() < info.size) {
+                mData = ByteBuffer.allocateDirect(info.size);
+            }
+            mData.clear();
+            if (data != null) {
+                mData.put(data);
+            }
+            mData.flip();
+            mInfo.set(0, mData.remaining(), info.presentationTimeUs, info.flags);
+        }
+
+        boolean isEndOfStream() {
+            return (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        }
+    }
+
+    /**
+     * A decoded video frame, or the end of the stream.
+     */
+    private static class Frame {
+        final long mPresentationTimeUs;
+        final boolean mEndOfStream;
+
+        Frame(long presentationTimeUs, boolean endOfStream) {
+            mPresentationTimeUs = presentationTimeUs;
+            mEndOfStream = endOfStream;
+        }
+    }
+
+    private final MediaMuxer mMuxer;
+    private final ArrayList<Track> mTracks = new ArrayList<Track>();
+    private final long mTimeoutMs;
+
+    private volatile boolean mAborted;
+    private volatile Throwable mWriterError;
+
+    /**
+     * @param muxer muxer to write to, with no tracks added yet.  It is started once the
+     *     output formats of all encoders are known, and must be stopped by the caller.
+     * @param timeoutMs how long any stage may go without making progress before the
+     *     transcode fails
+     */
+    public TranscodeEngine(MediaMuxer muxer, long timeoutMs) {
+        mMuxer = muxer;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Adds a video track.  The decoder must be configured to output to the output surface,
+     * and the encoder to take its input from the input surface.  Muxer tracks are added in
+     * the order the tracks are added here.
+     *
+     * @param extractor extractor with only the video track selected
+     */
+    public Track addVideoTrack(MediaExtractor extractor, CodecDriver decoder,
+            CodecDriver encoder, InputSurface inputSurface, OutputSurface outputSurface) {
+        // the frames in the frame queue, plus the one being waited for
+        outputSurface.setMaxPendingFrames(FRAME_QUEUE_DEPTH + 1);
+        Track track = new Track(extractor, decoder, encoder, inputSurface, outputSurface);
+        mTracks.add(track);
+        return track;
+    }
+
+    /**
+     * Adds an audio track.  The decoder must output 16-bit PCM in the layout the encoder
+     * is configured for.
+     *
+     * @param extractor extractor with only the audio track selected
+     */
+    public Track addAudioTrack(MediaExtractor extractor, CodecDriver decoder,
+            CodecDriver encoder) {
+        Track track = new Track(extractor, decoder, encoder, null, null);
+        mTracks.add(track);
+        return track;
+    }
+
+    /**
+     * Transcodes all tracks to the end, and stops their codecs.  Runs the GL stage of the
+     * video track, if any, on the calling thread.
+     */
+    public void run() throws Exception {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write();
+                } catch (Throwable th) {
+                    mWriterError = th;
+                    mAborted = true;
+                }
+            }
+        }, TAG + " writer");
+
+        Track video = null;
+        boolean success = false;
+        try {
+            writer.start();
+            // Start from the end of the pipelines, so no stage produces into a stopped one.
+            for (Track track : mTracks) {
+                track.mEncoder.start(track.isVideo() ? null : new EncoderSource(track),
+                        new EncoderSink(track));
+                track.mDecoder.start(new ExtractorSource(track), track.isVideo() ?
+                        new VideoDecoderSink(track) : new AudioDecoderSink(track));
+                if (track.isVideo()) {
+                    video = track;
+                }
+            }
+
+            if (video != null) {
+                editFrames(video);
+            }
+            for (Track track : mTracks) {
+                track.mDecoder.awaitCompletion(mTimeoutMs);
+                track.mEncoder.awaitCompletion(mTimeoutMs);
+            }
+            joinWriter(writer);
+            success = true;
+        } catch (InterruptedException e) {
+            // A stage gave up because another one failed, report the original error.
+            mAborted = true;
+            writer.join();
+            rethrowWriterError();
+            throw e;
+        } finally {
+            if (!success) {
+                mAborted = true;
+            }
+            for (Track track : mTracks) {
+                track.mDecoder.stop();
+                track.mEncoder.stop();
+            }
+            writer.join();
+        }
+    }
+
+    /**
+     * The GL stage: draws every frame the video decoder renders into the encoder's input
+     * surface.
+     */
+    private void editFrames(Track track) throws Exception {
+        while (true) {
+            Frame frame = take(track.mFrames);
+            if (frame.mEndOfStream) {
+                OutputSurface surface = track.mOutputSurface;
+                Log.i(TAG, "video: latched " + surface.getLatchedFrames() + " frames, " +
+                        surface.getPendingFramesHighWater() + " pending at most, " +
+                        surface.getOverflowFrames() + " overflowed, " +
+                        surface.getLateFrames() + " late");
+                if (VERBOSE) Log.d(TAG, "video: signaling EOS to encoder");
+                track.mEncoder.getCodec().signalEndOfInputStream();
+                return;
+            }
+            track.mOutputSurface.awaitNewImage();
+            track.mOutputSurface.drawImage();
+            track.mInputSurface.setPresentationTime(frame.mPresentationTimeUs * 1000);
+            track.mInputSurface.swapBuffers();
+            if (VERBOSE) Log.d(TAG, "video: edited frame " + frame.mPresentationTimeUs);
+        }
+    }
+
+    /**
+     * The writer stage: adds the muxer tracks once all encoders have reported their output
+     * format, then writes the encoded samples of all tracks in presentation time order.
+     */
+    private void write() throws Exception {
+        long startMs = SystemClock.elapsedRealtime();
+        for (Track track : mTracks) {
+            while (track.mEncoderFormat == null) {
+                if (mAborted) {
+                    return;
+                }
+                if (SystemClock.elapsedRealtime() - startMs > mTimeoutMs) {
+                    throw new TimeoutException("no encoder output format in " + mTimeoutMs +
+                            " ms");
+                }
+                Thread.sleep(10);
+            }
+        }
+        for (Track track : mTracks) {
+            track.mMuxerTrack = mMuxer.addTrack(track.mEncoderFormat);
+        }
+        if (VERBOSE) Log.d(TAG, "muxer: starting");
+        mMuxer.start();
+
+        // The head of each track's queue.  A sample is only written once every unfinished
+        // track has one waiting, so samples go out in order.
+        int count = mTracks.size();
+        Sample[] heads = new Sample[count];
+        boolean[] done = new boolean[count];
+        int remaining = count;
+        while (remaining > 0) {
+            int next = -1;
+            for (int i = 0; i < count; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                if (heads[i] == null) {
+                    heads[i] = take(mTracks.get(i).mEncoded);
+                }
+                if (next == -1 || heads[i].mInfo.presentationTimeUs <
+                        heads[next].mInfo.presentationTimeUs) {
+                    next = i;
+                }
+            }
+
+            Track track = mTracks.get(next);
+            Sample sample = heads[next];
+            heads[next] = null;
+            if (sample.mInfo.size != 0) {
+                mMuxer.writeSampleData(track.mMuxerTrack, sample.mData, sample.mInfo);
+            }
+            if (sample.isEndOfStream()) {
+                if (VERBOSE) Log.d(TAG, "muxer: track " + track.mMuxerTrack + " done");
+                done[next] = true;
+                remaining--;
+            }
+            track.mFreeEncoded.put(sample);
+        }
+    }
+
+    private void joinWriter(Thread writer) throws Exception {
+        writer.join(mTimeoutMs);
+        if (writer.isAlive()) {
+            throw new TimeoutException("muxer writer did not finish in " + mTimeoutMs + " ms");
+        }
+        rethrowWriterError();
+    }
+
+    private void rethrowWriterError() throws Exception {
+        Throwable error = mWriterError;
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        } else if (error != null) {
+            throw (Error) error;
+        }
+    }
+
+    /**
+     * Takes the next item from a queue, waiting for it.
+     *
+     * @throws InterruptedException if the transcode is aborted
+     * @throws TimeoutException if nothing arrives for the timeout
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException, TimeoutException {
+        long startMs = SystemClock.elapsedRealtime();
+        while (true) {
+            T item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+            if (mAborted) {
+                throw new InterruptedException("transcode aborted");
+            }
+            if (SystemClock.elapsedRealtime() - startMs > mTimeoutMs) {
+                throw new TimeoutException("stage made no progress in " + mTimeoutMs + " ms");
+            }
+        }
+    }
+
+    /**
+     * Puts an item on a queue, waiting for space.
+     *
+     * @throws InterruptedException if the transcode is aborted
+     * @throws TimeoutException if no space frees up for the timeout
+     */
+    private <T> void put(BlockingQueue<T> queue, T item)
+            throws InterruptedException, TimeoutException {
+        long startMs = SystemClock.elapsedRealtime();
+        while (!queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+            if (mAborted) {
+                throw new InterruptedException("transcode aborted");
+            }
+            if (SystemClock.elapsedRealtime() - startMs > mTimeoutMs) {
+                throw new TimeoutException("stage made no progress in " + mTimeoutMs + " ms");
+            }
+        }
+    }
+
+    /**
+     * Feeds a decoder from the track's extractor.
+     */
+    private static class ExtractorSource implements CodecDriver.Source {
+        private final Track mTrack;
+
+        ExtractorSource(Track track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            MediaExtractor extractor = mTrack.mExtractor;
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                if (VERBOSE) Log.d(TAG, "extractor: EOS");
+                info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            info.set(0, size, extractor.getSampleTime(), extractor.getSampleFlags());
+            mTrack.mExtractedCount++;
+            extractor.advance();
+        }
+    }
+
+    /**
+     * Renders decoded video frames to the output surface, and tells the GL stage about them.
+     * Blocks while the GL stage is {@link #FRAME_QUEUE_DEPTH} frames behind.
+     */
+    private class VideoDecoderSink implements CodecDriver.Sink {
+        private final Track mTrack;
+
+        VideoDecoderSink(Track track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "video decoder: output format changed: " + format);
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws Exception {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                return false;
+            }
+            boolean render = info.size != 0;
+            if (render) {
+                mTrack.mDecodedCount++;
+                put(mTrack.mFrames, new Frame(info.presentationTimeUs, false));
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                put(mTrack.mFrames, new Frame(0, true));
+            }
+            return render;
+        }
+    }
+
+    /**
+     * Copies decoded audio to the queue of the encoder.
+     */
+    private class AudioDecoderSink implements CodecDriver.Sink {
+        private final Track mTrack;
+
+        AudioDecoderSink(Track track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "audio decoder: output format changed: " + format);
+            mTrack.mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mTrack.mBytesPerFrame = 2 * format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws Exception {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                return false;
+            }
+            if (info.size != 0) {
+                mTrack.mDecodedCount++;
+                mTrack.mDecodedBytes += info.size;
+            }
+            Sample sample = take(mTrack.mFreeDecoded);
+            sample.set(buffer, info);
+            put(mTrack.mDecoded, sample);
+            return false;
+        }
+    }
+
+    /**
+     * Feeds an audio encoder from the decoded queue.  A decoded buffer that doesn't fit in
+     * one encoder input buffer is split, with the presentation times of the later parts
+     * advanced by the duration of the parts before.
+     */
+    private class EncoderSource implements CodecDriver.Source {
+        private final Track mTrack;
+        private Sample mPending;                            // partly consumed sample
+        private long mPendingTimeUs;
+
+        EncoderSource(Track track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws Exception {
+            if (mPending == null) {
+                mPending = take(mTrack.mDecoded);
+                mPendingTimeUs = mPending.mInfo.presentationTimeUs;
+            }
+            ByteBuffer data = mPending.mData;
+            int size = Math.min(data.remaining(), buffer.remaining());
+            if (size < data.remaining()) {
+                // whole PCM frames only
+                size -= size % mTrack.mBytesPerFrame;
+            }
+            int limit = data.limit();
+            data.limit(data.position() + size);
+            buffer.put(data);
+            data.limit(limit);
+
+            int flags = mPending.mInfo.flags;
+            info.set(0, size, mPendingTimeUs, data.hasRemaining() ? 0 : flags);
+            mTrack.mEncoderInputBytes += size;
+            if (data.hasRemaining()) {
+                if (mTrack.mSampleRate > 0) {
+                    mPendingTimeUs += (size / mTrack.mBytesPerFrame) * 1000000L /
+                            mTrack.mSampleRate;
+                }
+            } else {
+                mTrack.mFreeDecoded.put(mPending);
+                mPending = null;
+            }
+        }
+    }
+
+    /**
+     * Copies encoded samples to the queue of the writer.  Codec config buffers are dropped,
+     * the muxer gets them from the output format.
+     */
+    private class EncoderSink implements CodecDriver.Sink {
+        private final Track mTrack;
+
+        EncoderSink(Track track) {
+            mTrack = track;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (mTrack.mEncoderFormat != null) {
+                throw new RuntimeException("encoder output format changed twice");
+            }
+            if (VERBOSE) Log.d(TAG, "encoder: output format " + format);
+            mTrack.mEncoderFormat = format;
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                throws Exception {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                if (VERBOSE) Log.d(TAG, "encoder: codec config buffer");
+                return false;
+            }
+            if (info.size != 0) {
+                mTrack.mEncodedCount++;
+            }
+            Sample sample = take(mTrack.mFreeEncoded);
+            sample.set(buffer, info);
+            put(mTrack.mEncoded, sample);
+            return false;
+        }
+    }
+}
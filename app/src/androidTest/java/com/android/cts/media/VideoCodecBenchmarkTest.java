@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how fast every video encoder and decoder in MediaCodecList is.
+ * <p>
+ * Each codec is run flat out through a {@link CodecDriver} at QCIF, QVGA, 720p and 1080p,
+ * if it supports the size.  Encoders are fed the test pattern of EncodeDecodeTest, decoders
+ * get the same pattern encoded by the default encoder for their type.  For every run we
+ * record the sustained frame rate, the percentiles of the per-frame latency from queueing
+ * the input to receiving the output, and the time to the first output frame.
+ * <p>
+ * Results are logged and written as JSON to {@link #RESULTS_FILE_NAME} on external storage,
+ * so they can be collected and compared across builds.  Slow codecs don't fail the test.
+ */
+public class VideoCodecBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "VideoCodecBenchmarkTest";
+    private static final boolean VERBOSE = false;           // lots of logging
+
+    private static final String RESULTS_FILE_NAME = "video_codec_benchmark.json";
+
+    private static final int NUM_FRAMES = 120;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000 / FRAME_RATE;
+    private static final int IFRAME_INTERVAL = 1;           // 1 second between I-frames
+    private static final int BITS_PER_PIXEL_DIVISOR = 10;   // 0.1 bit per pixel per frame
+
+    private static final int[][] SIZES = {
+        { 176, 144 },       // QCIF
+        { 320, 240 },       // QVGA
+        { 1280, 720 },      // 720p
+        { 1920, 1080 },     // 1080p
+    };
+
+    // encoded input for the decoders, by mime type and size; null if it couldn't be encoded
+    private final HashMap<String, List<EncodedFrame>> mEncodedStreams =
+            new HashMap<String, List<EncodedFrame>>();
+
+    public void testVideoCodecBenchmark() throws Exception {
+        JSONArray results = new JSONArray();
+        int measured = 0;
+
+        int codecCount = MediaCodecList.getCodecCount();
+        for (int i = 0; i < codecCount; ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+
+            String[] types = info.getSupportedTypes();
+            for (int j = 0; j < types.length; ++j) {
+                if (!types[j].startsWith("video/")) {
+                    continue;
+                }
+                for (int[] size : SIZES) {
+                    JSONObject result = benchmark(info, types[j], size[0], size[1]);
+                    if (result == null) {
+                        continue;
+                    }
+                    results.put(result);
+                    if (!result.has("error")) {
+                        measured++;
+                    }
+                }
+            }
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("model", Build.MODEL);
+        report.put("fingerprint", Build.FINGERPRINT);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("frames", NUM_FRAMES);
+        report.put("results", results);
+
+        File file = new File(Environment.getExternalStorageDirectory(), RESULTS_FILE_NAME);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "wrote " + results.length() + " results to " + file);
+
+        assertTrue("no video codec could be benchmarked", measured > 0);
+    }
+
+    /**
+     * Benchmarks one codec at one size.
+     *
+     * @return the result, with an "error" if the run failed, or null if the codec doesn't
+     *     support the size
+     */
+    private JSONObject benchmark(MediaCodecInfo info, String mime, int width, int height)
+            throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("codec", info.getName());
+        result.put("mime", mime);
+        result.put("encoder", info.isEncoder());
+        result.put("width", width);
+        result.put("height", height);
+
+        try {
+            CodecCapabilities caps = info.getCapabilitiesForType(mime);
+            if (caps.getVideoCapabilities() != null &&
+                    !caps.getVideoCapabilities().isSizeSupported(width, height)) {
+                if (VERBOSE) Log.d(TAG, info.getName() + " doesn't support " + width + "x" + height);
+                return null;
+            }
+
+            FrameTimer timer;
+            if (info.isEncoder()) {
+                timer = benchmarkEncoder(info.getName(), caps, mime, width, height);
+            } else {
+                timer = benchmarkDecoder(info.getName(), mime, width, height);
+            }
+            timer.putResults(result);
+        } catch (Exception e) {
+            Log.w(TAG, info.getName() + " failed at " + width + "x" + height, e);
+            result.put("error", e.toString());
+        }
+
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private FrameTimer benchmarkEncoder(String name, CodecCapabilities caps, String mime,
+            int width, int height) throws Exception {
+        int colorFormat = selectColorFormat(caps);
+        // the pattern repeats every 8 frames, generate them up front so that isn't measured
+        YuvFrameTemplates frames = YuvFrameTemplates.get(colorFormat, width, height);
+
+        FrameTimer timer = new FrameTimer(NUM_FRAMES);
+        CodecDriver encoder = CodecDriver.createByCodecName(name);
+        try {
+            encoder.configure(createEncoderFormat(mime, width, height, colorFormat),
+                    null /* surface */, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            timer.start();
+            encoder.run(new RawFrameSource(frames, timer), new TimingSink(timer, null),
+                    CodecDriver.DEFAULT_TIMEOUT_MS);
+        } finally {
+            encoder.release();
+        }
+        return timer;
+    }
+
+    private FrameTimer benchmarkDecoder(String name, String mime, int width, int height)
+            throws Exception {
+        List<EncodedFrame> stream = getEncodedStream(mime, width, height);
+        if (stream == null) {
+            throw new IllegalStateException("no encoder to produce " + mime + " input");
+        }
+
+        FrameTimer timer = new FrameTimer(NUM_FRAMES);
+        CodecDriver decoder = CodecDriver.createByCodecName(name);
+        try {
+            decoder.configure(MediaFormat.createVideoFormat(mime, width, height),
+                    null /* surface */, 0 /* flags */);
+            timer.start();
+            decoder.run(new EncodedFrameSource(stream, timer), new TimingSink(timer, null),
+                    CodecDriver.DEFAULT_TIMEOUT_MS);
+        } finally {
+            decoder.release();
+        }
+        return timer;
+    }
+
+    /**
+     * Returns the test pattern encoded by the default encoder for the type, or null if
+     * there is no encoder that can produce it.  The stream is encoded once and shared by
+     * all decoders of the type.
+     */
+    private List<EncodedFrame> getEncodedStream(String mime, int width, int height) {
+        String key = mime + " " + width + "x" + height;
+        if (mEncodedStreams.containsKey(key)) {
+            return mEncodedStreams.get(key);
+        }
+
+        List<EncodedFrame> stream = null;
+        CodecDriver encoder = null;
+        try {
+            encoder = CodecDriver.createEncoderByType(mime);
+            CodecCapabilities caps =
+                    encoder.getCodec().getCodecInfo().getCapabilitiesForType(mime);
+            int colorFormat = selectColorFormat(caps);
+            encoder.configure(createEncoderFormat(mime, width, height, colorFormat),
+                    null /* surface */, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            stream = new ArrayList<EncodedFrame>(NUM_FRAMES + 1);
+            FrameTimer timer = new FrameTimer(NUM_FRAMES);
+            YuvFrameTemplates frames = YuvFrameTemplates.get(colorFormat, width, height);
+            encoder.run(new RawFrameSource(frames, timer), new TimingSink(timer, stream),
+                    CodecDriver.DEFAULT_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.w(TAG, "unable to encode " + key + " decoder input", e);
+            stream = null;
+        } finally {
+            if (encoder != null) {
+                encoder.release();
+            }
+        }
+
+        mEncodedStreams.put(key, stream);
+        return stream;
+    }
+
+    private static MediaFormat createEncoderFormat(String mime, int width, int height,
+            int colorFormat) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                width * height * FRAME_RATE / BITS_PER_PIXEL_DIVISOR);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        return format;
+    }
+
+    /**
+     * Returns the first color format of the codec that EncodeDecodeTest can generate.
+     */
+    private static int selectColorFormat(CodecCapabilities caps) {
+        for (int i = 0; i < caps.colorFormats.length; i++) {
+            if (EncodeDecodeTest.isRecognizedFormat(caps.colorFormats[i])) {
+                return caps.colorFormats[i];
+            }
+        }
+        throw new IllegalArgumentException("no supported YUV 420 color format");
+    }
+
+    private static long computePresentationTime(int frameIndex) {
+        return frameIndex * FRAME_INTERVAL_US;
+    }
+
+    /**
+     * An encoded frame, or codec config data, kept as decoder input.
+     */
+    private static class EncodedFrame {
+        final byte[] mData;
+        final long mPresentationTimeUs;
+        final int mFlags;
+
+        EncodedFrame(ByteBuffer data, MediaCodec.BufferInfo info) {
+            mData = new byte[info.size];
+            data.get(mData);
+            mPresentationTimeUs = info.presentationTimeUs;
+            mFlags = info.flags;
+        }
+    }
+
+    /**
+     * Feeds NUM_FRAMES raw frames to an encoder, cycling through the given frames.
+     */
+    private static class RawFrameSource implements CodecDriver.Source {
+        private final YuvFrameTemplates mFrames;
+        private final FrameTimer mTimer;
+        private int mFrameIndex = 0;
+
+        RawFrameSource(YuvFrameTemplates frames, FrameTimer timer) {
+            mFrames = frames;
+            mTimer = timer;
+        }
+
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            long ptsUsec = computePresentationTime(mFrameIndex);
+            if (mFrameIndex == NUM_FRAMES) {
+                info.set(0, 0, ptsUsec, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            mFrames.putFrame(mFrameIndex, buffer);
+            mTimer.onInput(ptsUsec);
+            info.set(0, mFrames.getFrameSize(), ptsUsec, 0);
+            mFrameIndex++;
+        }
+    }
+
+    /**
+     * Feeds an encoded stream to a decoder, codec config data first.
+     */
+    private static class EncodedFrameSource implements CodecDriver.Source {
+        private final List<EncodedFrame> mStream;
+        private final FrameTimer mTimer;
+        private int mIndex = 0;
+
+        EncodedFrameSource(List<EncodedFrame> stream, FrameTimer timer) {
+            mStream = stream;
+            mTimer = timer;
+        }
+
+        @Override
+        public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (mIndex == mStream.size()) {
+                info.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            EncodedFrame frame = mStream.get(mIndex++);
+            buffer.put(frame.mData);
+            if ((frame.mFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mTimer.onInput(frame.mPresentationTimeUs);
+            }
+            info.set(0, frame.mData.length, frame.mPresentationTimeUs,
+                    frame.mFlags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    /**
+     * Times the output frames, and optionally keeps them.
+     */
+    private static class TimingSink implements CodecDriver.Sink {
+        private final FrameTimer mTimer;
+        private final List<EncodedFrame> mOutput;
+
+        /**
+         * @param output list to add the output to, or null
+         */
+        TimingSink(FrameTimer timer, List<EncodedFrame> output) {
+            mTimer = timer;
+            mOutput = output;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "output format changed: " + format);
+        }
+
+        @Override
+        public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            if (info.size == 0) {
+                return false;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mTimer.onOutput(info.presentationTimeUs);
+            }
+            if (mOutput != null) {
+                mOutput.add(new EncodedFrame(buffer, info));
+            }
+            return false; // no output Surface, nothing to render
+        }
+    }
+
+    /**
+     * Records when each frame went into and came out of a codec.  Frames are identified by
+     * their presentation time, see {@link #computePresentationTime}.
+     */
+    private static class FrameTimer {
+        private final AtomicLongArray mInputNs;     // written by the feeding thread
+        private final long[] mLatencyNs;
+        private int mOutputCount;
+        private long mStartNs;
+        private long mFirstOutputNs;
+        private long mLastOutputNs;
+
+        FrameTimer(int numFrames) {
+            mInputNs = new AtomicLongArray(numFrames);
+            mLatencyNs = new long[numFrames];
+        }
+
+        void start() {
+            mStartNs = System.nanoTime();
+        }
+
+        void onInput(long presentationTimeUs) {
+            mInputNs.set((int) (presentationTimeUs / FRAME_INTERVAL_US), System.nanoTime());
+        }
+
+        void onOutput(long presentationTimeUs) {
+            long now = System.nanoTime();
+            int index = (int) (presentationTimeUs / FRAME_INTERVAL_US);
+            if (index < 0 || index >= mInputNs.length() || mOutputCount == mLatencyNs.length) {
+                Log.w(TAG, "unexpected output frame at " + presentationTimeUs);
+                return;
+            }
+            if (mOutputCount == 0) {
+                mFirstOutputNs = now;
+            }
+            mLastOutputNs = now;
+            mLatencyNs[mOutputCount++] = now - mInputNs.get(index);
+        }
+
+        void putResults(JSONObject result) throws JSONException {
+            result.put("outputFrames", mOutputCount);
+            if (mOutputCount == 0) {
+                return;
+            }
+            result.put("firstOutputMs", (mFirstOutputNs - mStartNs) / 1E6);
+            if (mOutputCount > 1 && mLastOutputNs > mFirstOutputNs) {
+                result.put("fps", (mOutputCount - 1) * 1E9 / (mLastOutputNs - mFirstOutputNs));
+            }
+
+            long[] latencies = Arrays.copyOf(mLatencyNs, mOutputCount);
+            Arrays.sort(latencies);
+            result.put("latencyP50Ms", percentile(latencies, 50) / 1E6);
+            result.put("latencyP95Ms", percentile(latencies, 95) / 1E6);
+            result.put("latencyP99Ms", percentile(latencies, 99) / 1E6);
+        }
+
+        /**
+         * Returns the nearest-rank percentile of sorted values.
+         */
+        private static long percentile(long[] sorted, int percent) {
+            int rank = (sorted.length * percent + 99) / 100;
+            return sorted[Math.max(rank - 1, 0)];
+        }
+    }
+}
@@ -19,15 +19,22 @@ package com.android.cts.media;
 import android.content.Context;
 import android.content.res.Resources;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecList;
+import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.android.cts.media.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Basic verification test for vp8 encoder.
@@ -35,20 +42,19 @@ import java.nio.ByteBuffer;
  * A raw yv12 stream is encoded and written to an IVF
  * file, which is later decoded by vp8 decoder to verify
  * frames are at least decodable.
+ *
+ * The same encode and decode loops are run for VP9 and AV1
+ * with whatever software codecs the device has.
  */
 public class Vp8EncoderTest extends AndroidTestCase {
 
     private static final String TAG = "VP8EncoderTest";
-    private static final String VP8_MIME = "video/x-vnd.on2.vp8";
-    private static final String VPX_DECODER_NAME = "OMX.google.vpx.decoder";
-    private static final String VPX_ENCODER_NAME = "OMX.google.vpx.encoder";
     private static final String BASIC_IVF = "video_176x144_vp8_basic.ivf";
-    private static final long DEFAULT_TIMEOUT_US = 5000;
+    private static final String BASIC_VP9_IVF = "video_176x144_vp9_basic.ivf";
+    private static final String BASIC_AV1_IVF = "video_176x144_av1_basic.ivf";
+    private static final int IVF_WRITE_BUFFER_SIZE = 256 * 1024;
 
     private Resources mResources;
-    private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-    private ByteBuffer[] mInputBuffers;
-    private ByteBuffer[] mOutputBuffers;
 
     @Override
     public void setContext(Context context) {
@@ -71,6 +77,333 @@ public class Vp8EncoderTest extends AndroidTestCase {
         decode(BASIC_IVF);
     }
 
+    /**
+     * A basic test for VP9 encoder, see {@link #testBasic}.
+     */
+    public void testBasicVp9() throws Exception {
+        testBasic(IvfReader.FOURCC_VP9, BASIC_VP9_IVF);
+    }
+
+    /**
+     * A basic test for AV1 encoder, see {@link #testBasic}.
+     */
+    public void testBasicAv1() throws Exception {
+        testBasic(IvfReader.FOURCC_AV1, BASIC_AV1_IVF);
+    }
+
+    private void testBasic(String fourcc, String filename) throws Exception {
+        String mime = IvfReader.getMimeType(fourcc);
+        if (selectSoftwareCodec(mime, true) == null || selectSoftwareCodec(mime, false) == null) {
+            // Not all devices have these codecs, don't fail because of that.
+            Log.i(TAG, "No software codecs for " + mime + ", skipping");
+            return;
+        }
+        encode(filename,
+               fourcc,
+               R.raw.video_176x144_yv12,
+               176,  // width
+               144,  // height
+               30);  // framerate
+
+        IvfReader ivf = new IvfReader(filename);
+        assertEquals(fourcc, ivf.getFourcc());
+        assertTrue(ivf.isHeaderValid());
+        ivf.close();
+
+        decode(filename);
+    }
+
+    /**
+     * Returns name of the first software codec for the given MIME type,
+     * or null if there is none.
+     */
+    private static String selectSoftwareCodec(String mime, boolean encoder) {
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            String name = codecInfo.getName();
+            if (codecInfo.isEncoder() != encoder ||
+                    !(name.startsWith("OMX.google.") || name.startsWith("c2.android."))) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that memory-mapped IvfReader returns the same frames
+     * as the regular, seek and read based one.
+     */
+    public void testIvfReaderMemoryMapped() throws Exception {
+        encode(BASIC_IVF,
+               R.raw.video_176x144_yv12,
+               176,  // width
+               144,  // height
+               30);  // framerate
+
+        IvfReader ivf = null;
+        IvfReader mappedIvf = null;
+        try {
+            ivf = new IvfReader(BASIC_IVF);
+            mappedIvf = new IvfReader(BASIC_IVF, true);
+            assertTrue(mappedIvf.isMemoryMapped());
+            assertTrue(mappedIvf.isHeaderValid());
+            assertEquals(ivf.getWidth(), mappedIvf.getWidth());
+            assertEquals(ivf.getHeight(), mappedIvf.getHeight());
+            assertEquals(ivf.getFrameCount(), mappedIvf.getFrameCount());
+
+            int frameIndex = 0;
+            while (mappedIvf.hasNextFrame()) {
+                ByteBuffer frame = mappedIvf.nextFrame();
+                assertTrue(frame.isReadOnly());
+                assertEquals("frame " + frameIndex + " differs",
+                        ByteBuffer.wrap(ivf.readFrame(frameIndex)), frame);
+                frameIndex++;
+            }
+            assertEquals(ivf.getFrameCount(), frameIndex);
+            assertNull(mappedIvf.nextFrame());
+        } finally {
+            if (ivf != null) {
+                ivf.close();
+            }
+            if (mappedIvf != null) {
+                mappedIvf.close();
+            }
+        }
+    }
+
+
+    /**
+     * Checks IvfReader key frame table and seeking by time against
+     * the frames of an encoded stream.
+     */
+    public void testIvfReaderSeek() throws Exception {
+        encode(BASIC_IVF,
+               R.raw.video_176x144_yv12,
+               176,  // width
+               144,  // height
+               30);  // framerate
+
+        IvfReader ivf = null;
+        try {
+            ivf = new IvfReader(BASIC_IVF, true);
+            int frameCount = ivf.getFrameCount();
+            assertTrue("first frame is not a key frame", ivf.isKeyFrame(0));
+
+            for (int i = 0; i < frameCount; i++) {
+                long timeUs = ivf.getFrameTimeUs(i);
+                if (i > 0) {
+                    assertTrue("timestamps not increasing", timeUs > ivf.getFrameTimeUs(i - 1));
+                }
+
+                int previous = ivf.seekToTimeUs(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                assertTrue(ivf.isKeyFrame(previous));
+                assertTrue(previous <= i);
+                assertEquals(previous, ivf.getNextFrameIndex());
+                for (int j = previous + 1; j <= i; j++) {
+                    assertFalse("missed key frame " + j, ivf.isKeyFrame(j));
+                }
+
+                int next = ivf.seekToTimeUs(timeUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+                assertTrue(ivf.isKeyFrame(next));
+                if (next < i) {
+                    // no key frame after frame i, falls back to the previous one
+                    assertEquals(previous, next);
+                }
+
+                int closest = ivf.seekToTimeUs(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                assertTrue(closest == previous || closest == next);
+                if (ivf.isKeyFrame(i)) {
+                    assertEquals(i, previous);
+                    assertEquals(i, next);
+                    assertEquals(i, closest);
+                }
+            }
+
+            assertEquals(0, ivf.seekToTimeUs(-1, MediaExtractor.SEEK_TO_PREVIOUS_SYNC));
+            assertEquals(ivf.getFrame(0), ivf.nextFrame());
+        } finally {
+            if (ivf != null) {
+                ivf.close();
+            }
+        }
+    }
+
+    /**
+     * Checks that the IvfReader sidecar index is saved on first open,
+     * used on the next one and rebuilt when the IVF file changes.
+     */
+    public void testIvfReaderIndexCache() throws Exception {
+        encode(BASIC_IVF,
+               R.raw.video_176x144_yv12,
+               176,  // width
+               144,  // height
+               30);  // framerate
+        File indexFile = new File(IvfReader.getIndexFilename(BASIC_IVF));
+        indexFile.delete();
+
+        IvfReader ivf = null;
+        IvfReader cachedIvf = null;
+        try {
+            ivf = new IvfReader(BASIC_IVF, true, true);
+            assertFalse(ivf.isIndexCached());
+            assertTrue("index file not saved", indexFile.exists());
+
+            cachedIvf = new IvfReader(BASIC_IVF, true, true);
+            assertTrue(cachedIvf.isIndexCached());
+            assertEquals(ivf.getFrameCount(), cachedIvf.getFrameCount());
+            for (int i = 0; i < ivf.getFrameCount(); i++) {
+                assertEquals(ivf.getFrameTimestamp(i), cachedIvf.getFrameTimestamp(i));
+                assertEquals(ivf.isKeyFrame(i), cachedIvf.isKeyFrame(i));
+                assertEquals("frame " + i + " differs", ivf.getFrame(i), cachedIvf.getFrame(i));
+            }
+            cachedIvf.close();
+            cachedIvf = null;
+
+            // A file rewritten in place with the same length and modification
+            // time must not use the old index: change the last timestamp.
+            int lastFrame = ivf.getFrameCount() - 1;
+            long lastTimestamp = ivf.getFrameTimestamp(lastFrame);
+            int lastFrameSize = ivf.readFrame(lastFrame).length;
+            ivf.close();
+            ivf = null;
+            File ivfFile = new File(BASIC_IVF);
+            long length = ivfFile.length();
+            long modified = ivfFile.lastModified();
+            RandomAccessFile output = new RandomAccessFile(ivfFile, "rw");
+            try {
+                // 12 byte frame header: size (int), timestamp (long), little-endian
+                output.seek(length - lastFrameSize - 8);
+                output.writeLong(Long.reverseBytes(lastTimestamp + 1));
+            } finally {
+                output.close();
+            }
+            ivfFile.setLastModified(modified);
+            assertEquals(length, ivfFile.length());
+
+            cachedIvf = new IvfReader(BASIC_IVF, true, true);
+            assertFalse(cachedIvf.isIndexCached());
+            assertEquals(lastTimestamp + 1, cachedIvf.getFrameTimestamp(lastFrame));
+        } finally {
+            if (ivf != null) {
+                ivf.close();
+            }
+            if (cachedIvf != null) {
+                cachedIvf.close();
+            }
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Checks that IvfStreamReader finds the same frames as IvfReader
+     * without relying on the frame count in the header, and that it
+     * picks up frames appended to a file after it was opened.
+     */
+    public void testIvfStreamReader() throws Exception {
+        encode(BASIC_IVF,
+               R.raw.video_176x144_yv12,
+               176,  // width
+               144,  // height
+               30);  // framerate
+
+        IvfReader ivf = new IvfReader(BASIC_IVF);
+        int frameCount = ivf.getFrameCount();
+        assertTrue(frameCount > 1);
+
+        // Simulate an unfinished write: frame count of zero in the header
+        // and the last frame only partially written.
+        File file = new File(BASIC_IVF);
+        File partialFile = new File(BASIC_IVF + ".partial");
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        input.readFully(data);
+        input.close();
+        int partialLength = data.length - ivf.readFrame(frameCount - 1).length / 2;
+        Arrays.fill(data, 24, 28, (byte) 0);  // frame count
+
+        RandomAccessFile output = new RandomAccessFile(partialFile, "rw");
+        output.setLength(0);
+        output.write(data, 0, partialLength);
+
+        IvfStreamReader stream = null;
+        try {
+            stream = new IvfStreamReader(partialFile.getPath());
+            assertTrue(stream.isHeaderValid());
+            assertEquals(ivf.getWidth(), stream.getWidth());
+            assertEquals(ivf.getHeight(), stream.getHeight());
+            assertEquals(frameCount - 1, stream.scanFrames());
+
+            for (int i = 0; i < frameCount - 1; i++) {
+                assertEquals("frame " + i + " differs",
+                        ByteBuffer.wrap(ivf.readFrame(i)), stream.nextFrame());
+            }
+            assertNull(stream.nextFrame());
+
+            // finish writing the last frame
+            output.write(data, partialLength, data.length - partialLength);
+            assertEquals("last frame differs",
+                    ByteBuffer.wrap(ivf.readFrame(frameCount - 1)), stream.nextFrame());
+            assertNull(stream.nextFrame());
+            assertEquals(frameCount, stream.getFrameCount());
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+            output.close();
+            ivf.close();
+            partialFile.delete();
+        }
+    }
+
+    /**
+     * Checks that IvfStreamReader reads a preallocated file that is still
+     * being written only as far as the writer got, zero length frames
+     * included, and buffered frames only once they are flushed.
+     */
+    public void testIvfStreamReaderPreallocated() throws Exception {
+        String filename = BASIC_IVF + ".preallocated";
+        byte[] frame = new byte[100];
+        IvfWriter writer = new IvfWriter(filename, 176, 144);
+        IvfStreamReader stream = null;
+        try {
+            writer.preallocate(64 * 1024);
+            writer.writeFrame(frame, 0);
+            writer.writeFrame(new byte[0], 1);
+
+            stream = new IvfStreamReader(filename);
+            assertTrue(stream.isHeaderValid());
+            assertEquals(2, stream.scanFrames());
+            assertEquals(frame.length, stream.nextFrame().limit());
+            assertEquals(0, stream.nextFrame().limit());
+            assertNull(stream.nextFrame());
+
+            writer.setBufferSize(4096);
+            writer.writeFrame(frame, 2);
+            assertNull(stream.nextFrame());
+            writer.flush();
+            assertEquals(frame.length, stream.nextFrame().limit());
+            assertNull(stream.nextFrame());
+
+            writer.close();
+            writer = null;
+            assertNull(stream.nextFrame());
+            assertEquals(3, stream.getFrameCount());
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (stream != null) {
+                stream.close();
+            }
+            new File(filename).delete();
+        }
+    }
 
     /**
      * A basic check if an encoded stream is decodable.
@@ -85,85 +418,73 @@ public class Vp8EncoderTest extends AndroidTestCase {
      * whenever vp8 decoder fails to decode a frame, and
      * this test uses that fact to verify the bitstream.
      *
+     * The codec is chosen by the fourcc in the IVF header.
+     *
      * @param filename  The name of the IVF file containing encoded bitsream.
      */
     private void decode(String filename) throws Exception {
         IvfReader ivf = null;
+        CodecDriver decoder = null;
         try {
-            ivf = new IvfReader(filename);
+            ivf = new IvfReader(filename, true);  // memory-mapped
             int frameWidth = ivf.getWidth();
             int frameHeight = ivf.getHeight();
-            int frameCount = ivf.getFrameCount();
+            final int frameCount = ivf.getFrameCount();
 
             assertTrue(frameWidth > 0);
             assertTrue(frameHeight > 0);
             assertTrue(frameCount > 0);
 
-            MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME,
+            String mime = ivf.getMimeType();
+            assertNotNull("unknown fourcc " + ivf.getFourcc(), mime);
+            MediaFormat format = MediaFormat.createVideoFormat(mime,
                                                                ivf.getWidth(),
                                                                ivf.getHeight());
 
-            Log.d(TAG, "Creating decoder");
-            MediaCodec decoder = MediaCodec.createByCodecName(VPX_DECODER_NAME);
+            String decoderName = selectSoftwareCodec(mime, false);
+            assertNotNull("no software decoder for " + mime, decoderName);
+            Log.d(TAG, "Creating decoder " + decoderName);
+            decoder = CodecDriver.createByCodecName(decoderName);
             decoder.configure(format,
                               null,  // surface
-                              null,  // crypto
                               0);  // flags
-            decoder.start();
-
-            mInputBuffers = decoder.getInputBuffers();
-            mOutputBuffers = decoder.getOutputBuffers();
 
             // decode loop
-            int frameIndex = 0;
-            boolean sawOutputEOS = false;
-            boolean sawInputEOS = false;
-
-            while (!sawOutputEOS) {
-                if (!sawInputEOS) {
-                    int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
-                    if (inputBufIndex >= 0) {
-                        byte[] frame = ivf.readFrame(frameIndex);
-
-                        if (frameIndex == frameCount - 1) {
-                            sawInputEOS = true;
-                        }
-
-                        mInputBuffers[inputBufIndex].clear();
-                        mInputBuffers[inputBufIndex].put(frame);
-                        mInputBuffers[inputBufIndex].rewind();
-
-                        Log.d(TAG, "Decoding frame at index " + frameIndex);
-                        try {
-                            decoder.queueInputBuffer(
-                                    inputBufIndex,
-                                    0,  // offset
-                                    frame.length,
-                                    frameIndex,
-                                    sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-                        } catch (IllegalStateException ise) {
-                            //That is all what is passed from MediaCodec in case of
-                            //decode failure.
-                            fail("Failed to decode frame at index " + frameIndex);
-                        }
-                        frameIndex++;
-                    }
+            final IvfReader input = ivf;
+            decoder.run(new CodecDriver.Source() {
+                private int mFrameIndex = 0;
+
+                @Override
+                public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                        throws IOException {
+                    // slice of the mapped file, copied straight into the codec buffer
+                    ByteBuffer frame = input.nextFrame();
+                    int frameSize = frame.remaining();
+                    buffer.put(frame);
+
+                    Log.d(TAG, "Decoding frame at index " + mFrameIndex);
+                    info.set(0,  // offset
+                             frameSize,
+                             mFrameIndex,
+                             mFrameIndex == frameCount - 1 ?
+                                     MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                    mFrameIndex++;
+                }
+            }, new CodecDriver.Sink() {
+                @Override
+                public void onOutputFormatChanged(MediaFormat format) {
                 }
 
-                int result = decoder.dequeueOutputBuffer(mBufferInfo, DEFAULT_TIMEOUT_US);
-                if (result >= 0) {
-                    int outputBufIndex = result;
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        sawOutputEOS = true;
-                    }
-                    decoder.releaseOutputBuffer(outputBufIndex, false);
-                } else if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    mOutputBuffers = decoder.getOutputBuffers();
+                @Override
+                public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                    return false;  // render
                 }
-            }
-            decoder.stop();
-            decoder.release();
+            }, CodecDriver.DEFAULT_TIMEOUT_MS);
+            // a frame the decoder fails on surfaces as a CodecException from run()
         } finally {
+            if (decoder != null) {
+                decoder.release();
+            }
             if (ivf != null) {
                 ivf.close();
             }
@@ -191,91 +512,109 @@ public class Vp8EncoderTest extends AndroidTestCase {
      */
     private void encode(String outputFilename, int rawInputFd,
                        int frameWidth, int frameHeight, int frameRate) throws Exception {
+        encode(outputFilename, IvfReader.FOURCC_VP8, rawInputFd,
+               frameWidth, frameHeight, frameRate);
+    }
+
+    /**
+     * A basic encode loop for the codec given by an IVF fourcc,
+     * see {@link #encode(String, int, int, int, int)}.
+     *
+     * Codec configuration data, if the encoder emits any, is
+     * written as part of the first frame.
+     *
+     * @param fourcc          IVF fourcc of the codec, e.g. IvfReader.FOURCC_VP9
+     */
+    private void encode(String outputFilename, String fourcc, int rawInputFd,
+                       int frameWidth, int frameHeight, int frameRate) throws Exception {
         int frameSize = frameWidth * frameHeight * 3 / 2;
+        String mime = IvfReader.getMimeType(fourcc);
+        String encoderName = selectSoftwareCodec(mime, true);
+        assertNotNull("no software encoder for " + mime, encoderName);
 
 
         // Create a media format signifying desired output
-        MediaFormat format = MediaFormat.createVideoFormat(VP8_MIME, frameWidth, frameHeight);
+        MediaFormat format = MediaFormat.createVideoFormat(mime, frameWidth, frameHeight);
         format.setInteger(MediaFormat.KEY_BIT_RATE, 100000);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                           CodecCapabilities.COLOR_FormatYUV420Planar);
         format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
 
-        Log.d(TAG, "Creating encoder");
-        MediaCodec encoder;
-        encoder = MediaCodec.createByCodecName(VPX_ENCODER_NAME);
-        encoder.configure(format,
-                          null,  // surface
-                          null,  // crypto
-                          MediaCodec.CONFIGURE_FLAG_ENCODE);
-        encoder.start();
-
-        mInputBuffers = encoder.getInputBuffers();
-        mOutputBuffers = encoder.getOutputBuffers();
-
+        Log.d(TAG, "Creating encoder " + encoderName);
+        CodecDriver encoder = CodecDriver.createByCodecName(encoderName);
         InputStream rawStream = null;
         IvfWriter ivf = null;
 
         try {
+            encoder.configure(format,
+                              null,  // surface
+                              MediaCodec.CONFIGURE_FLAG_ENCODE);
+
             rawStream = mResources.openRawResource(rawInputFd);
-            ivf = new IvfWriter(outputFilename, frameWidth, frameHeight);
+            ivf = new IvfWriter(outputFilename, frameWidth, frameHeight, fourcc);
+            ivf.setBufferSize(IVF_WRITE_BUFFER_SIZE);
+            final InputStream input = rawStream;
+            final IvfWriter output = ivf;
+            final byte[] frame = new byte[frameSize];
+            final int rate = frameRate;
+
             // encode loop
-            long presentationTimeUs = 0;
-            int frameIndex = 0;
-            boolean sawInputEOS = false;
-            boolean sawOutputEOS = false;
-
-            while (!sawOutputEOS) {
-                if (!sawInputEOS) {
-                    int inputBufIndex = encoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
-                    if (inputBufIndex >= 0) {
-                        byte[] frame = new byte[frameSize];
-                        int bytesRead = rawStream.read(frame);
-
-                        if (bytesRead == -1) {
-                            sawInputEOS = true;
-                            bytesRead = 0;
-                        }
-
-                        mInputBuffers[inputBufIndex].clear();
-                        mInputBuffers[inputBufIndex].put(frame);
-                        mInputBuffers[inputBufIndex].rewind();
-
-                        presentationTimeUs = (frameIndex * 1000000) / frameRate;
-                        Log.d(TAG, "Encoding frame at index " + frameIndex);
-                        encoder.queueInputBuffer(
-                                inputBufIndex,
-                                0,  // offset
-                                bytesRead,  // size
-                                presentationTimeUs,
-                                sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-
-                        frameIndex++;
+            encoder.run(new CodecDriver.Source() {
+                private int mFrameIndex = 0;
+
+                @Override
+                public void fillInputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                        throws IOException {
+                    int bytesRead = input.read(frame);
+                    int flags = 0;
+
+                    if (bytesRead == -1) {
+                        flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        bytesRead = 0;
                     }
+
+                    buffer.put(frame);
+
+                    long presentationTimeUs = (mFrameIndex * 1000000L) / rate;
+                    Log.d(TAG, "Encoding frame at index " + mFrameIndex);
+                    info.set(0,  // offset
+                             bytesRead,  // size
+                             presentationTimeUs,
+                             flags);
+                    mFrameIndex++;
                 }
+            }, new CodecDriver.Sink() {
+                private byte[] mCodecConfig = null;
 
-                int result = encoder.dequeueOutputBuffer(mBufferInfo, DEFAULT_TIMEOUT_US);
-                if (result >= 0) {
-                    int outputBufIndex = result;
-                    byte[] buffer = new byte[mBufferInfo.size];
-                    mOutputBuffers[outputBufIndex].rewind();
-                    mOutputBuffers[outputBufIndex].get(buffer, 0, mBufferInfo.size);
+                @Override
+                public void onOutputFormatChanged(MediaFormat format) {
+                }
 
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        sawOutputEOS = true;
+                @Override
+                public boolean onOutputBuffer(ByteBuffer buffer, MediaCodec.BufferInfo info)
+                        throws IOException {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        // done
+                    } else if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                        // e.g. AV1 sequence header, IVF has no place for it but the first frame
+                        mCodecConfig = new byte[info.size];
+                        buffer.get(mCodecConfig);
+                    } else if (mCodecConfig != null) {
+                        byte[] firstFrame = new byte[mCodecConfig.length + info.size];
+                        System.arraycopy(mCodecConfig, 0, firstFrame, 0, mCodecConfig.length);
+                        buffer.get(firstFrame, mCodecConfig.length, info.size);
+                        output.writeFrame(firstFrame, info.presentationTimeUs);
+                        mCodecConfig = null;
                     } else {
-                        ivf.writeFrame(buffer, mBufferInfo.presentationTimeUs);
+                        // written straight from the codec buffer, no copy to the heap
+                        output.writeFrame(buffer, info.presentationTimeUs);
                     }
-                    encoder.releaseOutputBuffer(outputBufIndex,
-                                                false);  // render
-                } else if (result == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    mOutputBuffers = encoder.getOutputBuffers();
+                    return false;  // render
                 }
-            }
-
-            encoder.stop();
-            encoder.release();
+            }, CodecDriver.DEFAULT_TIMEOUT_MS);
         } finally {
+            encoder.release();
+
             if (ivf != null) {
                 ivf.close();
             }
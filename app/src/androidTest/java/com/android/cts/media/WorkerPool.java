@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork-join pool shared by the tests for CPU-bound work, such as comparing or hashing
+ * frames.  (ForkJoinPool.commonPool() is only available from API 24.)
+ */
+class WorkerPool {
+    private static ForkJoinPool sPool;                      // guarded by WorkerPool.class
+
+    private WorkerPool() {
+    }
+
+    /**
+     * Returns the pool, creating it on first use with one worker per CPU.
+     */
+    public static synchronized ForkJoinPool get() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool();
+        }
+        return sPool;
+    }
+}
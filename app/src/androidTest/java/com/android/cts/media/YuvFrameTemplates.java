@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The test frames fed to encoders, rendered once per size and color format.
+ * <p>
+ * We have an 8-frame animation sequence that wraps around.  It looks like this:
+ * <pre>
+ *   0 1 2 3
+ *   7 6 5 4
+ * </pre>
+ * Each frame draws one of the eight rectangles and leaves the rest set to the zero-fill
+ * color, which in YUV is a dull green.  The eight templates are rendered a row at a time
+ * with Arrays.fill and System.arraycopy, and frames are then served by copying a whole
+ * template, so feeding an encoder costs one bulk copy per frame.
+ * <p>
+ * Templates are shared and must not be modified.
+ */
+public class YuvFrameTemplates {
+    private static final int NUM_TEMPLATES = 8;
+
+    private static final Map<String, YuvFrameTemplates> sCache =
+            new HashMap<String, YuvFrameTemplates>();
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mSemiPlanar;
+    private final byte[][] mTemplates = new byte[NUM_TEMPLATES][];
+
+    private YuvFrameTemplates(int colorFormat, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mSemiPlanar = EncodeDecodeTest.isSemiPlanarYUV(colorFormat);
+        for (int i = 0; i < NUM_TEMPLATES; i++) {
+            mTemplates[i] = render(i);
+        }
+    }
+
+    /**
+     * Returns the templates for a frame size and color format, rendering them on first use.
+     *
+     * @param colorFormat one of the formats accepted by EncodeDecodeTest.isRecognizedFormat
+     */
+    public static YuvFrameTemplates get(int colorFormat, int width, int height) {
+        String key = colorFormat + " " + width + "x" + height;
+        synchronized (sCache) {
+            YuvFrameTemplates templates = sCache.get(key);
+            if (templates == null) {
+                templates = new YuvFrameTemplates(colorFormat, width, height);
+                sCache.put(key, templates);
+            }
+            return templates;
+        }
+    }
+
+    /**
+     * Returns the size of a frame in bytes.
+     */
+    public int getFrameSize() {
+        return mWidth * mHeight * 3 / 2;
+    }
+
+    /**
+     * Returns the shared template of frame N.  Don't modify it.
+     */
+    public byte[] getFrame(int frameIndex) {
+        return mTemplates[frameIndex % NUM_TEMPLATES];
+    }
+
+    /**
+     * Puts frame N into a buffer at its position, advancing the position.
+     */
+    public void putFrame(int frameIndex, ByteBuffer buffer) {
+        buffer.put(getFrame(frameIndex));
+    }
+
+    private byte[] render(int frameIndex) {
+        final int width = mWidth;
+        final int height = mHeight;
+        final int lumaSize = width * height;
+        final int halfWidth = width / 2;
+
+        // Zero-filled, the background color.
+        byte[] frame = new byte[getFrameSize()];
+
+        int startX, startY;
+        if (frameIndex < 4) {
+            startX = frameIndex * (width / 4);
+            startY = 0;
+        } else {
+            startX = (7 - frameIndex) * (width / 4);
+            startY = height / 2;
+        }
+        int endX = startX + width / 4;          // exclusive
+        int endY = startY + height / 2;
+
+        for (int y = startY; y < endY; y++) {
+            Arrays.fill(frame, y * width + startX, y * width + endX,
+                    (byte) EncodeDecodeTest.TEST_Y);
+        }
+
+        // Chroma is sampled at the even pixels of the rectangle.
+        int firstX = (startX + 1) & ~1;
+        int lastX = (endX - 1) & ~1;
+        if (firstX > lastX) {
+            return frame;
+        }
+        int chromaCount = (lastX - firstX) / 2 + 1;
+        int firstY = (startY + 1) & ~1;
+
+        if (mSemiPlanar) {
+            // full-size Y, followed by UV pairs at half resolution.  A chroma row takes
+            // 2 * (width / 2) bytes, which is one less than width for odd widths.
+            byte[] row = new byte[2 * chromaCount];
+            for (int i = 0; i < row.length; i += 2) {
+                row[i] = (byte) EncodeDecodeTest.TEST_U;
+                row[i + 1] = (byte) EncodeDecodeTest.TEST_V;
+            }
+            for (int y = firstY; y < endY; y += 2) {
+                System.arraycopy(row, 0, frame, lumaSize + y * halfWidth + firstX,
+                        row.length);
+            }
+        } else {
+            // full-size Y, followed by quarter-size U and quarter-size V
+            int vOffset = lumaSize + halfWidth * (height / 2);
+            for (int y = firstY; y < endY; y += 2) {
+                int pos = (y / 2) * halfWidth + firstX / 2;
+                Arrays.fill(frame, lumaSize + pos, lumaSize + pos + chromaCount,
+                        (byte) EncodeDecodeTest.TEST_U);
+                Arrays.fill(frame, vOffset + pos, vOffset + pos + chromaCount,
+                        (byte) EncodeDecodeTest.TEST_V);
+            }
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cts.media;
+
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of the visible part of a YUV frame in a buffer, e.g. a decoder output buffer.
+ * <p>
+ * The view takes the stride, slice height and crop rectangle into account and doesn't copy
+ * anything: the Y, U and V planes are described by an offset, a row stride and a pixel
+ * stride into the original buffer, and samples are read from it directly.  Chroma is seen
+ * at 4:2:0 resolution whatever the layout, so frames in different layouts can be compared
+ * plane by plane.
+ * <p>
+ * Planar and semi-planar 4:2:0 and packed 4:2:2 layouts are supported.  Vendor tiled layouts
+ * are not documented by the API, so there is no view for them.
+ */
+public abstract class YuvFrameView {
+    /**
+     * One plane of 8 bit samples in a buffer.
+     */
+    public static class Plane {
+        final ByteBuffer mData;
+        final int mOffset;
+        final int mRowStride;
+        final int mPixelStride;
+        final int mWidth;
+        final int mHeight;
+
+        /**
+         * @param data buffer holding the samples; its position and limit are ignored
+         * @param offset index of the top left sample
+         * @param rowStride distance between rows, in bytes
+         * @param pixelStride distance between samples of a row, in bytes
+         */
+        public Plane(ByteBuffer data, int offset, int rowStride, int pixelStride, int width,
+                int height) {
+            mData = data;
+            mOffset = offset;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns the sample at (x, y).
+         */
+        public int get(int x, int y) {
+            return mData.get(mOffset + y * mRowStride + x * mPixelStride) & 0xff;
+        }
+
+        /**
+         * Reads a row of samples into an array.
+         *
+         * @param scratch array of at least (width - 1) * pixelStride + 1 bytes, for
+         *     unpacking rows with a pixel stride other than 1
+         */
+        void getRow(int y, byte[] row, byte[] scratch) {
+            ByteBuffer data = mData.duplicate();
+            data.clear();
+            data.position(mOffset + y * mRowStride);
+            if (mPixelStride == 1) {
+                data.get(row, 0, mWidth);
+            } else {
+                data.get(scratch, 0, (mWidth - 1) * mPixelStride + 1);
+                for (int x = 0, i = 0; x < mWidth; x++, i += mPixelStride) {
+                    row[x] = scratch[i];
+                }
+            }
+        }
+    }
+
+    protected final ByteBuffer mData;
+    protected final int mWidth;
+    protected final int mHeight;
+    private final Plane[] mPlanes;
+
+    protected YuvFrameView(ByteBuffer data, int width, int height, Plane y, Plane u, Plane v) {
+        mData = data;
+        mWidth = width;
+        mHeight = height;
+        mPlanes = new Plane[] { y, u, v };
+    }
+
+    /**
+     * Returns whether there is a view for a color format.
+     */
+    public static boolean isSupportedFormat(int colorFormat) {
+        return EncodeDecodeTest.isRecognizedFormat(colorFormat) || isPackedFormat(colorFormat);
+    }
+
+    /**
+     * Creates a view of a frame described by a codec's output format.  The stride and slice
+     * height default to the width and height, and the crop rectangle to the whole frame.
+     *
+     * @param offset index of the frame in the buffer
+     * @return the view, or null if the color format is not supported
+     */
+    public static YuvFrameView create(ByteBuffer buffer, int offset, MediaFormat format) {
+        int colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        if (!isSupportedFormat(colorFormat)) {
+            return null;
+        }
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int stride = getInteger(format, MediaFormat.KEY_STRIDE,
+                isPackedFormat(colorFormat) ? width * 2 : width);
+        int sliceHeight = getInteger(format, MediaFormat.KEY_SLICE_HEIGHT, height);
+        int left = getInteger(format, "crop-left", 0);
+        int top = getInteger(format, "crop-top", 0);
+        int right = getInteger(format, "crop-right", width - 1);
+        int bottom = getInteger(format, "crop-bottom", height - 1);
+        return create(buffer, offset, colorFormat, stride, sliceHeight,
+                left, top, right - left + 1, bottom - top + 1);
+    }
+
+    /**
+     * Creates a view of a frame.
+     *
+     * @param offset index of the frame in the buffer
+     * @param stride distance between rows in bytes; for planar formats, between luma rows
+     *     (chroma rows are stride/2 apart)
+     * @param sliceHeight number of rows of a plane, for locating the next one
+     * @param left left edge of the visible rectangle, should be even
+     * @param top top edge of the visible rectangle, should be even
+     * @return the view, or null if the color format is not supported
+     */
+    public static YuvFrameView create(ByteBuffer buffer, int offset, int colorFormat,
+            int stride, int sliceHeight, int left, int top, int width, int height) {
+        if (isPackedFormat(colorFormat)) {
+            return new Packed(buffer, offset, colorFormat, stride, left, top, width, height);
+        }
+        if (!EncodeDecodeTest.isRecognizedFormat(colorFormat)) {
+            return null;
+        }
+        if (EncodeDecodeTest.isSemiPlanarYUV(colorFormat)) {
+            return new SemiPlanar(buffer, offset, stride, sliceHeight, left, top, width, height);
+        }
+        return new Planar(buffer, offset, stride, sliceHeight, left, top, width, height);
+    }
+
+    /**
+     * Returns the width of the visible rectangle.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the visible rectangle.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the Y, U and V planes, U and V at half resolution.
+     */
+    public Plane[] getPlanes() {
+        return mPlanes.clone();
+    }
+
+    /**
+     * Returns the luma of the pixel at (x, y) of the visible rectangle.
+     */
+    public abstract int getY(int x, int y);
+
+    /**
+     * Returns the Cb of the pixel at (x, y) of the visible rectangle.
+     */
+    public abstract int getU(int x, int y);
+
+    /**
+     * Returns the Cr of the pixel at (x, y) of the visible rectangle.
+     */
+    public abstract int getV(int x, int y);
+
+    private static boolean isPackedFormat(int colorFormat) {
+        switch (colorFormat) {
+            case CodecCapabilities.COLOR_FormatYCbYCr:
+            case CodecCapabilities.COLOR_FormatYCrYCb:
+            case CodecCapabilities.COLOR_FormatCbYCrY:
+            case CodecCapabilities.COLOR_FormatCrYCbY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+
+    /**
+     * Full-size Y, followed by quarter-size U and quarter-size V.
+     */
+    private static class Planar extends YuvFrameView {
+        private final int mYOffset;
+        private final int mUOffset;
+        private final int mVOffset;
+        private final int mStride;
+        private final int mChromaStride;
+
+        Planar(ByteBuffer data, int offset, int stride, int sliceHeight, int left, int top,
+                int width, int height) {
+            this(data, width, height, stride, offset + top * stride + left,
+                    offset + stride * sliceHeight + (top / 2) * (stride / 2) + left / 2,
+                    (stride / 2) * (sliceHeight / 2));
+        }
+
+        private Planar(ByteBuffer data, int width, int height, int stride, int yOffset,
+                int uOffset, int chromaSize) {
+            super(data, width, height,
+                    new Plane(data, yOffset, stride, 1, width, height),
+                    new Plane(data, uOffset, stride / 2, 1, width / 2, height / 2),
+                    new Plane(data, uOffset + chromaSize, stride / 2, 1, width / 2, height / 2));
+            mYOffset = yOffset;
+            mUOffset = uOffset;
+            mVOffset = uOffset + chromaSize;
+            mStride = stride;
+            mChromaStride = stride / 2;
+        }
+
+        @Override
+        public int getY(int x, int y) {
+            return mData.get(mYOffset + y * mStride + x) & 0xff;
+        }
+
+        @Override
+        public int getU(int x, int y) {
+            return mData.get(mUOffset + (y / 2) * mChromaStride + x / 2) & 0xff;
+        }
+
+        @Override
+        public int getV(int x, int y) {
+            return mData.get(mVOffset + (y / 2) * mChromaStride + x / 2) & 0xff;
+        }
+    }
+
+    /**
+     * Full-size Y, followed by UV pairs at half resolution.
+     */
+    private static class SemiPlanar extends YuvFrameView {
+        private final int mYOffset;
+        private final int mUOffset;
+        private final int mStride;
+
+        SemiPlanar(ByteBuffer data, int offset, int stride, int sliceHeight, int left, int top,
+                int width, int height) {
+            this(data, width, height, stride, offset + top * stride + left,
+                    offset + stride * sliceHeight + (top / 2) * stride + (left / 2) * 2);
+        }
+
+        private SemiPlanar(ByteBuffer data, int width, int height, int stride, int yOffset,
+                int uOffset) {
+            super(data, width, height,
+                    new Plane(data, yOffset, stride, 1, width, height),
+                    new Plane(data, uOffset, stride, 2, width / 2, height / 2),
+                    new Plane(data, uOffset + 1, stride, 2, width / 2, height / 2));
+            mYOffset = yOffset;
+            mUOffset = uOffset;
+            mStride = stride;
+        }
+
+        @Override
+        public int getY(int x, int y) {
+            return mData.get(mYOffset + y * mStride + x) & 0xff;
+        }
+
+        @Override
+        public int getU(int x, int y) {
+            return mData.get(mUOffset + (y / 2) * mStride + (x / 2) * 2) & 0xff;
+        }
+
+        @Override
+        public int getV(int x, int y) {
+            return mData.get(mUOffset + (y / 2) * mStride + (x / 2) * 2 + 1) & 0xff;
+        }
+    }
+
+    /**
+     * Interleaved 4:2:2, four bytes per pair of pixels, e.g. Y0 U Y1 V.  The U and V planes
+     * skip every other row to look like 4:2:0.
+     */
+    private static class Packed extends YuvFrameView {
+        private final int mYOffset;
+        private final int mUOffset;
+        private final int mVOffset;
+        private final int mStride;
+
+        Packed(ByteBuffer data, int offset, int colorFormat, int stride, int left, int top,
+                int width, int height) {
+            this(data, width, height, stride, offset + top * stride + (left / 2) * 4,
+                    getComponentOffsets(colorFormat));
+        }
+
+        private Packed(ByteBuffer data, int width, int height, int stride, int pairOffset,
+                int[] components) {
+            super(data, width, height,
+                    new Plane(data, pairOffset + components[0], stride, 2, width, height),
+                    new Plane(data, pairOffset + components[1], stride * 2, 4,
+                            width / 2, height / 2),
+                    new Plane(data, pairOffset + components[2], stride * 2, 4,
+                            width / 2, height / 2));
+            mYOffset = pairOffset + components[0];
+            mUOffset = pairOffset + components[1];
+            mVOffset = pairOffset + components[2];
+            mStride = stride;
+        }
+
+        /**
+         * Returns the offsets of Y0, U and V in a pixel pair; Y1 is 2 bytes after Y0.
+         */
+        private static int[] getComponentOffsets(int colorFormat) {
+            switch (colorFormat) {
+                case CodecCapabilities.COLOR_FormatYCbYCr:
+                    return new int[] { 0, 1, 3 };
+                case CodecCapabilities.COLOR_FormatYCrYCb:
+                    return new int[] { 0, 3, 1 };
+                case CodecCapabilities.COLOR_FormatCbYCrY:
+                    return new int[] { 1, 0, 2 };
+                case CodecCapabilities.COLOR_FormatCrYCbY:
+                    return new int[] { 1, 2, 0 };
+                default:
+                    throw new IllegalArgumentException("not a packed format: " + colorFormat);
+            }
+        }
+
+        @Override
+        public int getY(int x, int y) {
+            return mData.get(mYOffset + y * mStride + x * 2) & 0xff;
+        }
+
+        @Override
+        public int getU(int x, int y) {
+            return mData.get(mUOffset + (y & ~1) * mStride + (x / 2) * 4) & 0xff;
+        }
+
+        @Override
+        public int getV(int x, int y) {
+            return mData.get(mVOffset + (y & ~1) * mStride + (x / 2) * 4) & 0xff;
+        }
+    }
+}